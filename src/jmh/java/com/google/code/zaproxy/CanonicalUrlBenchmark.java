@@ -0,0 +1,96 @@
+package com.google.code.zaproxy;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Canonicalization over the kinds of URL a ZAP session is full of.
+ * Each invocation runs the whole corpus, so the score is corpora per second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CanonicalUrlBenchmark
+{
+    static final String[] EVERYDAY = {
+            "http://www.example.com/",
+            "http://www.example.com/index.html",
+            "https://www.example.com/search?q=zap&hl=en",
+            "https://api.example.com/v1/users/42/orders?page=3&per_page=50",
+            "http://www.example.com/static/js/app.min.js?v=20140304",
+            "https://cdn.example.net/img/logo%2fsmall.png",
+            "http://example.com:8080/a/b/c/d/e?x=1&y=2#frag",
+    };
+
+    static final String[] LONG_QUERIES = {
+            "https://www.example.com/track?utm_source=news&utm_medium=email&utm_campaign=spring" +
+                    "&utm_content=hero&utm_term=zap&ref=abc&sid=0123456789abcdef&ts=1393904644079",
+            "http://www.example.com/s?z=26&y=25&x=24&w=23&v=22&u=21&t=20&s=19&r=18&q=17" +
+                    "&p=16&o=15&n=14&m=13&l=12&k=11&j=10&i=9&h=8&g=7&f=6&e=5&d=4&c=3&b=2&a=1",
+            "https://example.com/form?name=John+Smith&city=New%20York&note=a%2bb%3dc&empty=&flag",
+    };
+
+    static final String[] NON_ASCII = {
+            "http://www.example.com/café/menü?q=über",
+            "https://ja.example.org/日本語/ページ?検索=テスト",
+            "http://www.example.com/запрос?ключ=знач",
+    };
+
+    /** The one from DumpTest. */
+    static final String[] GOOGLE_XJS = {
+            "https://www.google.com/xjs/_/js/k=xjs.s.en_US.Pk6WM5xCqOI.O/m=c,sb_mob,jp,rcs,ivf,jsa,mbsf," +
+                    "bct,elog,r,hsm,pcc,csi/am=cEYFAg/rt=j/d=1/sv=1/rs=AItRSTPrWBBy_Zt149JrvH_iQSWBlQ023Q",
+    };
+
+    @Param({"everyday", "long-queries", "non-ascii", "google-xjs"})
+    public String corpus;
+
+    @Setup
+    public void pickCorpus() {
+        if ("everyday".equals(corpus)) {
+            urls = EVERYDAY;
+        } else if ("long-queries".equals(corpus)) {
+            urls = LONG_QUERIES;
+        } else if ("non-ascii".equals(corpus)) {
+            urls = NON_ASCII;
+        } else if ("google-xjs".equals(corpus)) {
+            urls = GOOGLE_XJS;
+        } else {
+            throw new IllegalArgumentException(corpus);
+        }
+        queries = new String[urls.length];
+        for (int i = 0; i < urls.length; i++) {
+            final int q = urls[i].indexOf('?');
+            queries[i] = -1 == q ? "" : urls[i].substring(q + 1);
+        }
+    }
+
+    @Benchmark
+    public void canonicalUrl(Blackhole bh) throws Exception {
+        for (final String url : urls) {
+            bh.consume(Dump.canonicalUrl(url));
+        }
+    }
+
+    @Benchmark
+    public void canonicalUrlViaUri(Blackhole bh) throws Exception {
+        for (final String url : urls) {
+            bh.consume(Dump.canonicalUrlViaUri(url));
+        }
+    }
+
+    @Benchmark
+    public void sortQueryString(Blackhole bh) {
+        for (final String query : queries) {
+            bh.consume(Dump.sortQueryString(query));
+        }
+    }
+
+    private String[] urls;
+    private String[] queries;
+}
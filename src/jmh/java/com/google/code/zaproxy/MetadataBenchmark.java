@@ -0,0 +1,24 @@
+package com.google.code.zaproxy;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-entry meta.json and pickled_meta, encoded to memory so the disk stays out of it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetadataBenchmark
+{
+    @Benchmark
+    public int encode() {
+        final MetaEncoder meta = MetaEncoder.get().encode("GET",
+                "https://www.example.com/search?hl=en&q=it's+zap", 200, 1393904644079L);
+        return meta.jsonBytes().length + meta.pickleBytes().length;
+    }
+}
@@ -0,0 +1,52 @@
+package com.google.code.zaproxy;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One fingerprint for request bodies from nothing up to a big upload, the old way
+ * (canonicalization included) and from an already canonical URL.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignatureBenchmark
+{
+    @Param({"0", "512", "16384", "1048576"})
+    public int bodySize;
+
+    @Setup
+    public void makeBody() {
+        body = new byte[bodySize];
+        new Random(bodySize).nextBytes(body);
+    }
+
+    @Benchmark
+    public String signatureParts() {
+        final Dump.SignatureParts sig = new Dump.SignatureParts();
+        sig.setRequestMethod("POST");
+        sig.setRequestUrl("https://api.example.com/v1/users/42/orders?page=3&per_page=50");
+        sig.write(body, 0, body.length);
+        return sig.toString();
+    }
+
+    @Benchmark
+    public String fingerprinter() {
+        return Fingerprinter.get().fingerprint("POST", CANONICAL_URL, body);
+    }
+
+    @Benchmark
+    public void rawDigest() {
+        Fingerprinter.get().digest("POST", CANONICAL_URL, body, digest);
+    }
+
+    private static final String CANONICAL_URL =
+            Dump.SignatureParts.canonical("https://api.example.com/v1/users/42/orders?page=3&per_page=50");
+    private final byte[] digest = new byte[Fingerprinter.DIGEST_LENGTH];
+    private byte[] body;
+}
@@ -0,0 +1,62 @@
+package com.google.code.zaproxy;
+
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.String.format;
+
+/**
+ * Names each response body by its content, so a sink can keep one copy of a body
+ * that many entries share (the same script under a dozen cache-busting query strings,
+ * the same error page, the empty body of every 304) and point the others at it.
+ * It also keeps the tally of what that saved. It is safe to use from several threads at once.
+ */
+class BodyDedup
+{
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return Fingerprinter.newDigest();
+        }
+    };
+
+    /**
+     * @return the hex SHA1 of {@code body}
+     */
+    String key(byte[] body) {
+        final MessageDigest sha1 = DIGEST.get();
+        sha1.reset();
+        return Fingerprinter.hex(sha1.digest(body));
+    }
+
+    /**
+     * A body was written out in full, for the first time.
+     */
+    void stored(long bytes) {
+        stored.incrementAndGet();
+        storedBytes.addAndGet(bytes);
+    }
+
+    /**
+     * A body was pointed at the copy already written instead of being written again.
+     */
+    void linked(long bytes) {
+        linked.incrementAndGet();
+        savedBytes.addAndGet(bytes);
+    }
+
+    long savedBytes() {
+        return savedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+        return format("Body dedup: %d distinct bodies (%d bytes) written, %d repeats linked, %d bytes saved",
+                stored.get(), storedBytes.get(), linked.get(), savedBytes.get());
+    }
+
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong storedBytes = new AtomicLong();
+    private final AtomicLong linked = new AtomicLong();
+    private final AtomicLong savedBytes = new AtomicLong();
+}
@@ -0,0 +1,33 @@
+package com.google.code.zaproxy;
+
+/**
+ * Everything a {@link CacheSink} needs to store one response,
+ * already keyed by its fingerprint.
+ */
+class CacheEntry
+{
+    CacheEntry(String fingerprint, String method, String url, int status, long millis,
+               byte[] responseHeaders, byte[] responseBody) {
+        this.fingerprint = fingerprint;
+        this.method = method;
+        this.url = url;
+        this.status = status;
+        this.millis = millis;
+        this.responseHeaders = responseHeaders;
+        this.responseBody = responseBody;
+    }
+
+    final String fingerprint;
+    final String method;
+    /**
+     * The canonical form, which is what Scrapy records.
+     */
+    final String url;
+    final int status;
+    final long millis;
+    /**
+     * UTF-8, without the status line, lines separated by CRLF and no blank line at the end.
+     */
+    final byte[] responseHeaders;
+    final byte[] responseBody;
+}
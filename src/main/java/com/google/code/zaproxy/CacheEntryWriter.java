@@ -0,0 +1,125 @@
+package com.google.code.zaproxy;
+
+import java.io.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+
+/**
+ * Turns one captured {@link HistoryRow} into a Scrapy cache entry
+ * and hands it to a {@link CacheSink}.
+ * It is safe to call {@link #write(HistoryRow)} from several threads at once.
+ */
+class CacheEntryWriter
+{
+    private static final Logger LOG = Logger.getLogger(CacheEntryWriter.class.getName());
+    private static final int LOCK_STRIPES = 64;
+    static final String[] ENTRY_FILES = {
+            "response_body", "response_headers", "meta.json", "pickled_meta"
+    };
+
+    public CacheEntryWriter(CacheSink sink) {
+        this.sink = sink;
+        this.locks = new Object[LOCK_STRIPES];
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Writes the cache entry for the given row.
+     * When two rows share a fingerprint the later one (by {@link HistoryRow#sequence})
+     * wins, just as it did when the rows were written one after the other,
+     * unless {@link #winners} has already picked one.
+     * @return the fingerprint, which is also the entry's name
+     */
+    public String write(HistoryRow row) throws IOException {
+        final Object event = metrics.entryStarted();
+        final long start = System.nanoTime();
+        final String uri = null == cache ? Dump.SignatureParts.canonical(row.uri) : cache.canonicalUrl(row.uri);
+        final long canonicalized = System.nanoTime();
+        metrics.canonicalized(canonicalized - start);
+        final String theSig = null == cache
+                ? Fingerprinter.get().fingerprint(row.method, uri, row.requestBody)
+                : cache.fingerprint(row.method, uri, row.requestBody);
+        metrics.hashed(System.nanoTime() - canonicalized);
+        if (null == row.responseHeaders) {
+            throw new IOException(format(
+                    "Expected to find response_headers on row %s but no", row.id));
+        }
+        if (0 == row.responseHeaders.length) {
+            throw new IOException(format(
+                    "Expected response_headers to be non-empty on row %s", row.id));
+        }
+        if (null != winners && winners.winner(theSig) != row.sequence) {
+            LOG.fine(format("Row %s is not the %s row for %s", row.id, winners.policy(), theSig));
+            return theSig;
+        }
+        synchronized (locks[(theSig.hashCode() & 0x7FFFFFFF) % locks.length]) {
+            final Long newer = inFlight.get(theSig);
+            if (null != newer && newer > row.sequence) {
+                LOG.fine(format("Row %s lost %s to a later row", row.id, theSig));
+                return theSig;
+            }
+            inFlight.put(theSig, row.sequence);
+            if (skipComplete && sink.isComplete(theSig)) {
+                LOG.fine(format("Row %s found %s already complete", row.id, theSig));
+                return theSig;
+            }
+            final long writing = System.nanoTime();
+            sink.write(new CacheEntry(theSig, row.method, uri, row.status, row.millis,
+                    row.responseHeaders, row.responseBody));
+            final long written = System.nanoTime();
+            metrics.entryWritten(event, row, theSig, written - writing, written - start);
+            LOG.finer(format("Wrote<%s> %s<%s> as %s", row.id, row.method, uri, theSig));
+        }
+        return theSig;
+    }
+
+    /**
+     * Called once the row is in the TSV, by which time every earlier row
+     * has been written, so nobody can still lose a race against it.
+     */
+    public void retire(String theSig, long sequence) {
+        inFlight.remove(theSig, sequence);
+    }
+
+    /**
+     * {@link #retire(String, long)} for every row with a sequence in [from, through],
+     * all of which are in the TSV.
+     */
+    public void retire(long from, long through) {
+        for (final Map.Entry<String, Long> e : inFlight.entrySet()) {
+            final long sequence = e.getValue();
+            if (from <= sequence && sequence <= through) {
+                inFlight.remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Trust entries left by an earlier run instead of rewriting them.
+     */
+    public boolean skipComplete;
+    /**
+     * Where to look up URIs seen before; null means work everything out each time.
+     */
+    public FingerprintCache cache;
+    /**
+     * The one row allowed to write each fingerprint; null means the latest one does.
+     */
+    public FingerprintTable winners;
+    /**
+     * Where to count the time spent on each entry.
+     */
+    public ExportMetrics metrics = new ExportMetrics();
+    private final CacheSink sink;
+    private final Object[] locks;
+    /**
+     * The fingerprints written by rows that are not yet in the TSV,
+     * mapped to the sequence of the row that owns the directory.
+     */
+    private final ConcurrentHashMap<String, Long> inFlight = new ConcurrentHashMap<String, Long>();
+}
@@ -0,0 +1,26 @@
+package com.google.code.zaproxy;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Where the cache entries end up.
+ * {@link CacheEntryWriter} never has two calls for the same fingerprint going
+ * at once, but calls for different fingerprints arrive from several threads.
+ * A later {@link #write} for a fingerprint must win over an earlier one.
+ */
+interface CacheSink extends Closeable
+{
+    /**
+     * @return true if an earlier run left a whole entry for this fingerprint,
+     * false if it did not or there is no telling
+     */
+    boolean isComplete(String fingerprint) throws IOException;
+
+    void write(CacheEntry entry) throws IOException;
+
+    /**
+     * Makes every entry written so far survive a crash; called before each checkpoint.
+     */
+    void flush() throws IOException;
+}
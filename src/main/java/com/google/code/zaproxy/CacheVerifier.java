@@ -0,0 +1,381 @@
+package com.google.code.zaproxy;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import static java.lang.String.format;
+
+/**
+ * Checks a whole {@code <spider>} cache directory: every {@code <xx>/<fingerprint>}
+ * entry must have all of {@link CacheEntryWriter#ENTRY_FILES}, and the fingerprint
+ * worked out again from the {@code url} and {@code method} in its {@code meta.json},
+ * plus its {@code request_body} if it has one, must be its name.
+ * Given the session as well, each entry must also belong to a HISTORY row;
+ * an entry without a {@code request_body}, such as a POST this tool exported,
+ * counts as matching when one does.
+ * <p>
+ * The shards are walked on a work-stealing pool, each one splitting its entries
+ * into batches that idle threads take over, and request bodies of any size are
+ * hashed straight out of a mapped file. Entries written with {@code -gzip} are read as such.
+ */
+class CacheVerifier
+{
+    private static final Pattern SHARD = Pattern.compile("[0-9a-f]{2}");
+    private static final Pattern FINGERPRINT = Pattern.compile("[0-9a-f]{40}");
+    private static final int BATCH = 64;
+    private static final long MAP_THRESHOLD = 1 << 16;
+
+    /**
+     * @param known the fingerprints of the session's capture rows, or null to not ask
+     */
+    CacheVerifier(File spiderDir, FingerprintTable known) {
+        this.spiderDir = spiderDir;
+        this.known = known;
+    }
+
+    /**
+     * @return how many entries have something wrong with them, not counting those
+     * that only the session could vouch for
+     */
+    long run(ForkJoinPool pool) throws IOException {
+        if (! spiderDir.isDirectory()) {
+            throw new IOException(format("Expected %s to be a directory", spiderDir));
+        }
+        final long started = System.nanoTime();
+        final File[] shards = spiderDir.listFiles();
+        final List<ShardTask> tasks = new ArrayList<ShardTask>();
+        for (final File shard : null == shards ? new File[0] : shards) {
+            if (shard.isDirectory() && SHARD.matcher(shard.getName()).matches()) {
+                tasks.add(new ShardTask(shard));
+            }
+        }
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+        elapsedNanos = System.nanoTime() - started;
+        return bad.get();
+    }
+
+    /**
+     * One line per problem, {@code <xx>/<fingerprint>}, a tab, and what is wrong, in name order.
+     */
+    List<String> problems() {
+        final List<String> result = new ArrayList<String>(problems);
+        Collections.sort(result);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return format("Verified %d entries in %.1f s: %d mismatched, %d incomplete, %d with no HISTORY row,"
+                        + " %d unverifiable without the session",
+                entries.get(), elapsedNanos / 1e9, mismatched.get(), incomplete.get(), orphaned.get(),
+                unverifiable.get());
+    }
+
+    /**
+     * The fingerprint of every capture row with a body in the session.
+     */
+    static FingerprintTable loadHistory(String databaseFilename) throws SQLException, IOException {
+        final ExportOptions options = new ExportOptions();
+        options.tsv = false;
+        final HistoryQuery query = new HistoryQuery(options, null);
+        final FingerprintTable table = new FingerprintTable(FingerprintTable.Policy.NEWEST);
+        final byte[] fingerprint = new byte[Fingerprinter.DIGEST_LENGTH];
+        final Connection conn = new SessionOpener(databaseFilename, options).connect();
+        try {
+            query.prepare(conn);
+            final PreparedStatement st = conn.prepareStatement(query.winnersSql());
+            try {
+                long after = 0;
+                int n;
+                do {
+                    // HISTORYID is an INTEGER column
+                    query.bindPage(st, after, Integer.MAX_VALUE);
+                    final ResultSet rs = st.executeQuery();
+                    n = 0;
+                    try {
+                        while (rs.next()) {
+                            after = rs.getLong(1);
+                            n++;
+                            final String uri = Dump.SignatureParts.canonical(rs.getString(3));
+                            final byte[] body = ExportPipeline.readBytes(rs, 6, "REQBODY");
+                            Fingerprinter.get().digest(rs.getString(2), uri, body, fingerprint);
+                            table.offer(fingerprint, after, rs.getLong(5), rs.getInt(4));
+                        }
+                    } finally {
+                        rs.close();
+                    }
+                } while (n == options.pageRows);
+            } finally {
+                st.close();
+            }
+        } finally {
+            conn.close();
+        }
+        return table;
+    }
+
+    private void check(File entry) {
+        entries.incrementAndGet();
+        final String name = entry.getParentFile().getName() + "/" + entry.getName();
+        final String theSig = entry.getName();
+        if (! FINGERPRINT.matcher(theSig).matches() || ! theSig.startsWith(entry.getParentFile().getName())) {
+            report(mismatched, name, "not named like a fingerprint");
+            return;
+        }
+        final StringBuilder missing = new StringBuilder();
+        for (final String file : CacheEntryWriter.ENTRY_FILES) {
+            if (! new File(entry, file).isFile()) {
+                missing.append(0 == missing.length() ? "" : ",").append(file);
+            }
+        }
+        if (0 != missing.length()) {
+            report(incomplete, name, "missing " + missing);
+        }
+        final boolean inHistory = null != known && 0 != known.winner(theSig);
+        if (null != known && ! inHistory) {
+            report(orphaned, name, "no HISTORY row");
+        }
+        final File metaFile = new File(entry, "meta.json");
+        if (! metaFile.isFile()) {
+            return;
+        }
+        try {
+            final byte[] raw = readSmall(metaFile);
+            final boolean gzipped = isGzip(raw);
+            final String meta = new String(gzipped ? gunzip(new ByteArrayInputStream(raw)) : raw, Dump.ENCODING);
+            final String url = metaString(meta, "url");
+            final String method = metaString(meta, "method");
+            if (null == url || null == method) {
+                report(mismatched, name, "no url and method in meta.json");
+                return;
+            }
+            final String uri = Dump.SignatureParts.canonical(url);
+            final File requestBody = new File(entry, "request_body");
+            final String actual;
+            if (! requestBody.isFile()) {
+                actual = Fingerprinter.get().fingerprint(method, uri, (byte[]) null);
+            } else if (gzipped) {
+                actual = Fingerprinter.get().fingerprint(method, uri,
+                        gunzip(new FileInputStream(requestBody)));
+            } else {
+                actual = Fingerprinter.get().fingerprint(method, uri, map(requestBody));
+            }
+            if (actual.equals(theSig) || inHistory && ! requestBody.isFile()) {
+                // the session has a request body that this cache does not
+                return;
+            }
+            if (null == known && ! requestBody.isFile()) {
+                // the dump never writes request_body, so only the session could tell
+                unverifiable.incrementAndGet();
+                problems.add(name + "\t" + format("%s %s is unverifiable without the session", method, url));
+                return;
+            }
+            report(mismatched, name, format("%s %s is %s", method, url, actual));
+        } catch (IOException e) {
+            report(mismatched, name, "unreadable: " + e.getMessage());
+        } catch (RuntimeException e) {
+            report(mismatched, name, "unreadable: " + e);
+        }
+    }
+
+    private void report(AtomicLong counter, String name, String what) {
+        counter.incrementAndGet();
+        problems.add(name + "\t" + what);
+        if (reported.add(name)) {
+            bad.incrementAndGet();
+        }
+    }
+
+    /**
+     * The value of {@code key} in either our {@code "key": "value"} or Scrapy's
+     * own {@code {'key': 'value'}}, or null if it is not there.
+     */
+    static String metaString(String meta, String key) {
+        for (final char q : new char[] { '"', '\'' }) {
+            int at = meta.indexOf(q + key + q);
+            if (-1 == at) {
+                continue;
+            }
+            at += key.length() + 2;
+            while (at < meta.length() && (' ' == meta.charAt(at) || ':' == meta.charAt(at))) {
+                at++;
+            }
+            if (at >= meta.length()) {
+                return null;
+            }
+            final char open = meta.charAt(at);
+            if ('"' != open && '\'' != open) {
+                return null;
+            }
+            final StringBuilder sb = new StringBuilder();
+            for (int i = at + 1; i < meta.length(); i++) {
+                final char c = meta.charAt(i);
+                if (open == c) {
+                    return sb.toString();
+                }
+                if ('\\' != c || i + 1 >= meta.length()) {
+                    sb.append(c);
+                    continue;
+                }
+                final char e = meta.charAt(++i);
+                switch (e) {
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'u':
+                        sb.append((char) Integer.parseInt(meta.substring(i + 1, i + 5), 16));
+                        i += 4;
+                        break;
+                    case 'x':
+                        sb.append((char) Integer.parseInt(meta.substring(i + 1, i + 3), 16));
+                        i += 2;
+                        break;
+                    default:
+                        sb.append(e);
+                }
+            }
+            return null;
+        }
+        return null;
+    }
+
+    /**
+     * The file through a read-only mapping once it is big enough to be worth one,
+     * so a huge body is never copied onto the heap.
+     */
+    static ByteBuffer map(File f) throws IOException {
+        final FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+        try {
+            final long size = ch.size();
+            if (size >= MAP_THRESHOLD) {
+                return ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            final ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && -1 != ch.read(buffer)) {
+                // keep going
+            }
+            buffer.flip();
+            return buffer;
+        } finally {
+            ch.close();
+        }
+    }
+
+    private static byte[] readSmall(File f) throws IOException {
+        final ByteBuffer buffer = map(f);
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static boolean isGzip(byte[] bytes) {
+        return bytes.length >= 2 && (byte) 0x1f == bytes[0] && (byte) 0x8b == bytes[1];
+    }
+
+    private static byte[] gunzip(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            Dump.streamOut(new GZIPInputStream(in), out);
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Lists one shard and checks its entries, a batch at a time.
+     */
+    private class ShardTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        ShardTask(File shard) {
+            this.shard = shard;
+        }
+
+        @Override
+        protected void compute() {
+            final File[] listed = shard.listFiles();
+            if (null == listed) {
+                return;
+            }
+            final List<File> entryDirs = new ArrayList<File>(listed.length);
+            for (final File f : listed) {
+                if (f.isDirectory()) {
+                    entryDirs.add(f);
+                } else {
+                    report(mismatched, shard.getName() + "/" + f.getName(), "not a directory");
+                }
+            }
+            invokeAll(new EntryTask(entryDirs.toArray(new File[0]), 0, entryDirs.size()));
+        }
+
+        private final File shard;
+    }
+
+    private class EntryTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        EntryTask(File[] entryDirs, int lo, int hi) {
+            this.entryDirs = entryDirs;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= BATCH) {
+                for (int i = lo; i < hi; i++) {
+                    check(entryDirs[i]);
+                }
+                return;
+            }
+            final int mid = (lo + hi) >>> 1;
+            invokeAll(new EntryTask(entryDirs, lo, mid), new EntryTask(entryDirs, mid, hi));
+        }
+
+        private final File[] entryDirs;
+        private final int lo;
+        private final int hi;
+    }
+
+    private final File spiderDir;
+    private final FingerprintTable known;
+    private final ConcurrentLinkedQueue<String> problems = new ConcurrentLinkedQueue<String>();
+    /**
+     * The entries already counted in {@link #bad}, which can have more than one problem.
+     */
+    private final Set<String> reported = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicLong entries = new AtomicLong();
+    private final AtomicLong mismatched = new AtomicLong();
+    private final AtomicLong incomplete = new AtomicLong();
+    private final AtomicLong orphaned = new AtomicLong();
+    private final AtomicLong unverifiable = new AtomicLong();
+    private final AtomicLong bad = new AtomicLong();
+    private volatile long elapsedNanos;
+}
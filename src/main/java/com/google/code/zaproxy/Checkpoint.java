@@ -0,0 +1,85 @@
+package com.google.code.zaproxy;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+import static java.lang.String.format;
+
+/**
+ * How far a dump got: every row up to and including {@link #historyId} has its
+ * cache entry on disk and, if the dump wrote one, its line in the first
+ * {@link #tsvLength} bytes of the TSV.
+ * It lives next to the TSV as {@code <db>.checkpoint}.
+ */
+class Checkpoint
+{
+    private static final String HISTORY_ID = "historyid";
+    private static final String TSV_LENGTH = "tsvlength";
+    private static final String TSV = "tsv";
+
+    Checkpoint(long historyId, long tsvLength, boolean tsv) {
+        this.historyId = historyId;
+        this.tsvLength = tsvLength;
+        this.tsv = tsv;
+    }
+
+    static File fileFor(String databaseFilename) {
+        return new File(format("%s.checkpoint", databaseFilename));
+    }
+
+    /**
+     * @return the saved checkpoint, or null if there is none
+     */
+    static Checkpoint load(File file) throws IOException {
+        if (! file.exists()) {
+            return null;
+        }
+        final Properties props = new Properties();
+        final InputStream in = new FileInputStream(file);
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+        final String id = props.getProperty(HISTORY_ID);
+        final String length = props.getProperty(TSV_LENGTH);
+        final String tsv = props.getProperty(TSV);
+        if (null == id || null == length || null == tsv) {
+            throw new IOException(format("Expected %s, %s and %s in %s", HISTORY_ID, TSV_LENGTH, TSV, file));
+        }
+        try {
+            return new Checkpoint(Long.parseLong(id.trim()), Long.parseLong(length.trim()),
+                    Boolean.parseBoolean(tsv.trim()));
+        } catch (NumberFormatException e) {
+            throw new IOException(format("Garbled checkpoint %s", file), e);
+        }
+    }
+
+    /**
+     * Replaces the file in one step, so a crash leaves either the old checkpoint or the new one.
+     */
+    void save(File file) throws IOException {
+        final Properties props = new Properties();
+        props.setProperty(HISTORY_ID, String.valueOf(historyId));
+        props.setProperty(TSV_LENGTH, String.valueOf(tsvLength));
+        props.setProperty(TSV, String.valueOf(tsv));
+        final File tmp = new File(file.getPath() + ".tmp");
+        final OutputStream out = new FileOutputStream(tmp);
+        try {
+            props.store(out, "zapdump progress; delete me to start over");
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    final long historyId;
+    final long tsvLength;
+    /**
+     * Whether the dump wrote a TSV at all; without one {@link #tsvLength} means nothing.
+     */
+    final boolean tsv;
+}
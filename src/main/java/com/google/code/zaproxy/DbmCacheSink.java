@@ -0,0 +1,195 @@
+package com.google.code.zaproxy;
+
+import java.io.*;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.lang.String.format;
+
+/**
+ * Scrapy's {@code DbmCacheStorage} in the {@code dbm.dumb} format, which any
+ * Python can open: {@code <spider>.db.dat} holds the values, each starting on
+ * a 512 byte boundary, and {@code <spider>.db.dir} has one
+ * {@code 'key', (offset, length)} line per key.
+ * Each entry is two keys, {@code <fingerprint>_data} with a protocol 2 pickle of
+ * {@code {status, url, headers, body}} and {@code <fingerprint>_time}.
+ * <p>
+ * Values are only ever appended, so a later entry for a fingerprint leaves the
+ * old value behind as dead space, as {@code dbm.dumb} does when a value grows.
+ * An existing database is added to. The index is rewritten in one step at
+ * every {@link #flush} and at {@link #close}, so after a crash the database
+ * still opens as of the last checkpoint.
+ */
+class DbmCacheSink implements CacheSink
+{
+    private static final int BLOCK = 512;
+    private static final Pattern DIR_LINE = Pattern.compile("'([^'\\\\]*)', \\((\\d+), (\\d+)\\)");
+
+    /**
+     * @param base the database name without {@code .dat} or {@code .dir}
+     */
+    DbmCacheSink(File base) throws IOException {
+        this.dirFile = new File(base.getPath() + ".dir");
+        final File datFile = new File(base.getPath() + ".dat");
+        final File parent = base.getAbsoluteFile().getParentFile();
+        if (! parent.isDirectory() && ! parent.mkdirs()) {
+            throw new IOException(format("Unable to create %s", parent));
+        }
+        if (dirFile.exists()) {
+            readIndex();
+        }
+        this.dat = new RandomAccessFile(datFile, "rw");
+        this.datLength = dat.length();
+        dat.seek(datLength);
+    }
+
+    @Override
+    public synchronized boolean isComplete(String fingerprint) {
+        return index.containsKey(fingerprint + "_data") && index.containsKey(fingerprint + "_time");
+    }
+
+    /**
+     * Pickles outside the lock; only the appending is done one entry at a time.
+     */
+    @Override
+    public void write(CacheEntry entry) throws IOException {
+        final Map<String, Object> data = new LinkedHashMap<String, Object>(4);
+        data.put("status", entry.status);
+        data.put("url", entry.url);
+        data.put("headers", headers(entry.responseHeaders));
+        data.put("body", entry.responseBody);
+        final byte[] pickle = Pickler.dumps(data);
+        // str(time()) would have given seconds with a fraction, never an exponent
+        final byte[] time = BigDecimal.valueOf(entry.millis, 3).toPlainString().getBytes(Dump.ENCODING);
+        synchronized (this) {
+            append(entry.fingerprint + "_data", pickle);
+            append(entry.fingerprint + "_time", time);
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        dat.getFD().sync();
+        writeIndex();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            dat.close();
+        }
+    }
+
+    /**
+     * What {@code dict(response.headers)} gives in Scrapy: each name, as bytes,
+     * mapped to the list of its values, as bytes.
+     */
+    static Map<Object, Object> headers(byte[] responseHeaders) {
+        final Map<String, List<byte[]>> byName = new LinkedHashMap<String, List<byte[]>>();
+        int start = 0;
+        while (start < responseHeaders.length) {
+            int end = start;
+            int colon = -1;
+            while (end < responseHeaders.length
+                    && ! ('\r' == responseHeaders[end] && end + 1 < responseHeaders.length
+                          && '\n' == responseHeaders[end + 1])) {
+                if (-1 == colon && ':' == responseHeaders[end]) {
+                    colon = end;
+                }
+                end++;
+            }
+            if (colon > start) {
+                final String name = new String(responseHeaders, start, colon - start, Dump.ENCODING).trim();
+                List<byte[]> values = byName.get(name);
+                if (null == values) {
+                    values = new ArrayList<byte[]>(1);
+                    byName.put(name, values);
+                }
+                values.add(trimmed(responseHeaders, colon + 1, end));
+            }
+            start = end + 2;
+        }
+        final Map<Object, Object> result = new LinkedHashMap<Object, Object>(byName.size());
+        for (final Map.Entry<String, List<byte[]>> e : byName.entrySet()) {
+            result.put(e.getKey().getBytes(Dump.ENCODING), e.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * {@code bytes[from, to)} without the spaces and controls around it, as {@link String#trim} would.
+     */
+    private static byte[] trimmed(byte[] bytes, int from, int to) {
+        while (from < to && (bytes[from] & 0xFF) <= ' ') {
+            from++;
+        }
+        while (to > from && (bytes[to - 1] & 0xFF) <= ' ') {
+            to--;
+        }
+        return Arrays.copyOfRange(bytes, from, to);
+    }
+
+    private void append(String key, byte[] value) throws IOException {
+        final long pos = (datLength + BLOCK - 1) / BLOCK * BLOCK;
+        if (pos != datLength) {
+            dat.write(new byte[(int) (pos - datLength)]);
+        }
+        dat.write(value);
+        datLength = pos + value.length;
+        index.put(key, new long[] { pos, value.length });
+    }
+
+    private void readIndex() throws IOException {
+        final BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(dirFile), "ISO-8859-1"));
+        try {
+            String line;
+            int lineNo = 0;
+            while (null != (line = in.readLine())) {
+                lineNo++;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                final Matcher m = DIR_LINE.matcher(line.trim());
+                if (! m.matches()) {
+                    throw new IOException(format("Unable to read line %d of %s: %s", lineNo, dirFile, line));
+                }
+                index.put(m.group(1), new long[] { Long.parseLong(m.group(2)), Long.parseLong(m.group(3)) });
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        final File tmp = new File(dirFile.getPath() + ".tmp");
+        final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "ISO-8859-1"));
+        try {
+            for (final Map.Entry<String, long[]> e : index.entrySet()) {
+                out.write(format("'%s', (%d, %d)\n", e.getKey(), e.getValue()[0], e.getValue()[1]));
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), dirFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private final File dirFile;
+    private final RandomAccessFile dat;
+    private long datLength;
+    /**
+     * key to {offset, length} in the .dat
+     */
+    private final Map<String, long[]> index = new LinkedHashMap<String, long[]>();
+}
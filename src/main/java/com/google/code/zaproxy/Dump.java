@@ -2,13 +2,13 @@ package com.google.code.zaproxy;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static java.lang.String.format;
@@ -38,8 +38,37 @@ public class Dump
     private static void usageAndDie(String msg) {
         System.err.println(msg);
         System.err.println("  Usage: $0 -check-sig verb url scrapy_cache_dir");
+        System.err.println("            -verify scrapy_cache_dir/spider [hsqldb-filename]");
+        System.err.println("            -lookup hsqldb-filename fingerprint");
+        System.err.println("            -grep-url hsqldb-filename url-prefix");
         System.err.println("            -dump hsqldb-filename");
         System.err.println("            -dump hsqldb-filename -url urn://...");
+        System.err.println("            -dump hsqldb-filename -urls file-of-urls|-");
+        System.err.println("            -dump hsqldb-filename hsqldb-filename... -spider name");
+        System.err.println("          -dump options:");
+        System.err.println("            -threads N   number of cache-entry writer threads");
+        System.err.println("            -queue N     rows buffered ahead of the writers");
+        System.err.println("            -queue-mb MB  body bytes those rows may hold, 64 by default");
+        System.err.println("            -partitions N  HISTORYID ranges read in parallel");
+        System.err.println("            -since ID    only rows with a HISTORYID above ID");
+        System.err.println("            -resume      continue from hsqldb-filename.checkpoint");
+        System.err.println("            -follow      keep exporting new rows as ZAP writes them, until killed");
+        System.err.println("            -skip-complete  keep cache entries which already exist");
+        System.err.println("            -url-cache MB  remember canonical URLs and fingerprints seen before");
+        System.err.println("            -spider NAME  the spider directory, rather than hsqldb-filename");
+        System.err.println("            -archive FILE.tar  put the cache entries in one tar file");
+        System.err.println("            -dbm         write a Scrapy DbmCacheStorage (dbm.dumb) database instead");
+        System.err.println("            -gzip  -gzip-level 1..9  gzip the cache files (HTTPCACHE_GZIP)");
+        System.err.println("            -dedup       write each distinct response body once, hard linking repeats");
+        System.err.println("            -winner newest|oldest|first-2xx  which row a shared fingerprint keeps");
+        System.err.println("            -progress SECONDS  how often to report rows/s, MB/s and ETA; 0 for never");
+        System.err.println("            -no-tsv      skip hsqldb-filename.tsv and read only capture rows");
+        System.err.println("            -no-index    skip hsqldb-filename.fpindex");
+        System.err.println("            -snapshot DIR  copy the session into DIR (a tmpfs, say) and read it there");
+        System.err.println("            -read-write  open the session normally rather than read-only");
+        System.err.println("            -histtype N,N  -method GET,POST  -status 200,404");
+        System.err.println("            -host www.example.com");
+        System.err.println("            -sent-from MILLIS  -sent-to MILLIS   TIMESENTMILLIS window");
         System.exit(1);
     }
 
@@ -48,30 +77,261 @@ public class Dump
             usageAndDie("I require an action argument");
         }
         if ("-check-sig".equals(args[0])) {
-            final String httpVerb = args[0];
-            final String url = args[1];
-            final String theDir = args[2];
+            if (args.length != 4) {
+                usageAndDie("-check-sig requires a verb, a url and a scrapy_cache_dir");
+            }
+            final String httpVerb = args[1];
+            final String url = args[2];
+            final String theDir = args[3];
             compareSignature(httpVerb, url, theDir);
+        } else if ("-verify".equals(args[0])) {
+            if (args.length < 2 || args.length > 3) {
+                usageAndDie("-verify requires a scrapy_cache_dir and optionally the hsqldb-filename");
+            }
+            final FingerprintTable known = 3 == args.length ? CacheVerifier.loadHistory(args[2]) : null;
+            final CacheVerifier verifier = new CacheVerifier(new File(args[1]), known);
+            final long bad = verifier.run(new ForkJoinPool());
+            for (final String problem : verifier.problems()) {
+                System.out.println(problem);
+            }
+            System.err.println(verifier);
+            if (0 != bad) {
+                System.exit(1);
+            }
+        } else if ("-lookup".equals(args[0]) || "-grep-url".equals(args[0])) {
+            final boolean lookup = "-lookup".equals(args[0]);
+            if (args.length != 3) {
+                usageAndDie(format("%s requires an hsqldb-filename and a %s",
+                        args[0], lookup ? "fingerprint" : "URL prefix"));
+            }
+            final File indexFile = FingerprintIndex.fileFor(args[1]);
+            final FingerprintIndex index = FingerprintIndex.load(indexFile);
+            if (null == index) {
+                System.err.printf("There is no %s; -dump writes it%n", indexFile);
+                System.exit(1);
+            }
+            List<FingerprintIndex.Entry> entries = null;
+            try {
+                entries = lookup ? index.lookup(args[2]) : index.grepUri(args[2]);
+            } catch (NumberFormatException e) {
+                usageAndDie(e.getMessage());
+            }
+            for (final FingerprintIndex.Entry entry : entries) {
+                System.out.println(entry);
+            }
+            if (entries.isEmpty()) {
+                System.exit(1);
+            }
         } else if ("-dump".equals(args[0])) {
-            final String dbName = args[1];
-            if (2 == args.length) {
-                final int rc = dumpDatabase(dbName);
-                if (0 != rc) {
-                    System.exit(rc);
+            if (args.length < 2) {
+                usageAndDie("-dump requires an hsqldb-filename");
+            }
+            final List<String> dbNames = new ArrayList<String>();
+            int i = 1;
+            while (i < args.length && ! args[i].startsWith("-")) {
+                dbNames.add(args[i++]);
+            }
+            if (dbNames.isEmpty()) {
+                usageAndDie("-dump requires an hsqldb-filename");
+            }
+            final String dbName = dbNames.get(0);
+            final ExportOptions options = new ExportOptions();
+            String onlyUrl = null;
+            boolean follow = false;
+            for (; i < args.length; i++) {
+                final String opt = args[i];
+                if ("-url".equals(opt)) {
+                    onlyUrl = optionValue(args, ++i, opt);
+                } else if ("-urls".equals(opt)) {
+                    options.urls = readUrls(optionValue(args, ++i, opt));
+                } else if ("-threads".equals(opt)) {
+                    options.threads = positiveInt(optionValue(args, ++i, opt), opt);
+                } else if ("-queue".equals(opt)) {
+                    options.queueCapacity = positiveInt(optionValue(args, ++i, opt), opt);
+                } else if ("-queue-mb".equals(opt)) {
+                    options.queueBytes = wholeNumber(optionValue(args, ++i, opt), opt, 1, 2047) << 20;
+                } else if ("-partitions".equals(opt)) {
+                    options.partitions = positiveInt(optionValue(args, ++i, opt), opt);
+                } else if ("-since".equals(opt)) {
+                    options.since = wholeNumber(optionValue(args, ++i, opt), opt, 0, Long.MAX_VALUE);
+                } else if ("-resume".equals(opt)) {
+                    options.resume = true;
+                } else if ("-follow".equals(opt)) {
+                    follow = true;
+                } else if ("-skip-complete".equals(opt)) {
+                    options.skipComplete = true;
+                } else if ("-url-cache".equals(opt)) {
+                    options.urlCacheBytes = wholeNumber(optionValue(args, ++i, opt), opt,
+                            0, Long.MAX_VALUE >> 20) << 20;
+                } else if ("-spider".equals(opt)) {
+                    options.spider = optionValue(args, ++i, opt);
+                } else if ("-archive".equals(opt)) {
+                    options.archive = new File(optionValue(args, ++i, opt));
+                } else if ("-dbm".equals(opt)) {
+                    options.dbm = true;
+                } else if ("-gzip".equals(opt)) {
+                    options.gzip = true;
+                } else if ("-gzip-level".equals(opt)) {
+                    options.gzip = true;
+                    options.gzipLevel = (int) wholeNumber(optionValue(args, ++i, opt), opt, 1, 9);
+                } else if ("-dedup".equals(opt)) {
+                    options.dedup = true;
+                } else if ("-winner".equals(opt)) {
+                    final String value = optionValue(args, ++i, opt);
+                    options.winner = FingerprintTable.Policy.parse(value);
+                    if (null == options.winner) {
+                        usageAndDie(format("%s wants newest, oldest or first-2xx, not \"%s\"", opt, value));
+                    }
+                } else if ("-progress".equals(opt)) {
+                    options.progressSeconds = (int) wholeNumber(optionValue(args, ++i, opt), opt, 0, 86400);
+                } else if ("-no-tsv".equals(opt)) {
+                    options.tsv = false;
+                } else if ("-no-index".equals(opt)) {
+                    options.index = false;
+                } else if ("-snapshot".equals(opt)) {
+                    options.snapshotDir = new File(optionValue(args, ++i, opt));
+                    if (! options.snapshotDir.isDirectory()) {
+                        usageAndDie(format("%s wants an existing directory, not \"%s\"", opt, options.snapshotDir));
+                    }
+                } else if ("-read-write".equals(opt)) {
+                    options.readWrite = true;
+                } else if ("-histtype".equals(opt)) {
+                    options.histTypes = new ArrayList<Integer>();
+                    for (final String v : optionValue(args, ++i, opt).split(",")) {
+                        options.histTypes.add((int) wholeNumber(v, opt, 0, Integer.MAX_VALUE));
+                    }
+                } else if ("-method".equals(opt)) {
+                    options.methods = Arrays.asList(optionValue(args, ++i, opt).toUpperCase().split(","));
+                } else if ("-status".equals(opt)) {
+                    options.statusCodes = new ArrayList<Integer>();
+                    for (final String v : optionValue(args, ++i, opt).split(",")) {
+                        options.statusCodes.add((int) wholeNumber(v, opt, 0, 999));
+                    }
+                } else if ("-host".equals(opt)) {
+                    options.host = optionValue(args, ++i, opt);
+                } else if ("-sent-from".equals(opt)) {
+                    options.sentFrom = wholeNumber(optionValue(args, ++i, opt), opt, 0, Long.MAX_VALUE);
+                } else if ("-sent-to".equals(opt)) {
+                    options.sentTo = wholeNumber(optionValue(args, ++i, opt), opt, 0, Long.MAX_VALUE);
+                } else {
+                    usageAndDie("Unrecognized -dump option " + opt);
                 }
-            } else if (4 == args.length && "-url".equals(args[2])) {
-                final String onlyUrl = args[3];
-                System.out.printf("Restricting my dump to \"%s\"%n", onlyUrl);
-                final int rc = dumpDatabase(dbName, onlyUrl);
+            }
+            if (null != options.archive && options.dbm) {
+                usageAndDie("Pick one of -archive and -dbm");
+            }
+            if (options.dbm && options.gzip) {
+                usageAndDie("Scrapy's DbmCacheStorage does not gunzip; leave off -gzip with -dbm");
+            }
+            if (options.dbm && options.dedup) {
+                usageAndDie("-dedup links files, and a -dbm database is not made of files");
+            }
+            if (null != options.archive && (options.resume || options.skipComplete)) {
+                usageAndDie("-archive always starts a new archive; leave off -resume and -skip-complete");
+            }
+            if (null != onlyUrl && null != options.urls) {
+                usageAndDie("Pick one of -url and -urls");
+            }
+            if (options.resume && (null != options.since || null != onlyUrl || null != options.urls)) {
+                usageAndDie("-resume picks its own starting point; leave off -since, -url and -urls");
+            }
+            if ((options.resume || follow) && options.filtered()) {
+                usageAndDie("-resume and -follow carry on the whole dump;" +
+                        " leave off -histtype, -method, -status, -host, -sent-from and -sent-to");
+            }
+            if (1 < dbNames.size()) {
+                if (null == options.spider) {
+                    usageAndDie("Several sessions go into one -spider; name it");
+                }
+                if (follow || options.resume || null != onlyUrl) {
+                    usageAndDie("Merging sessions can't -follow, -resume or -url; try -since and -urls");
+                }
+                final int rc = new SessionMerge(dbNames, options).run();
                 if (0 != rc) {
                     System.exit(rc);
                 }
+                return;
+            }
+            if (follow && (null != onlyUrl || null != options.urls || null != options.archive)) {
+                usageAndDie("-follow appends to the whole dump; leave off -url, -urls and -archive");
+            }
+            if (follow) {
+                final Follower follower = new Follower(dbName, options);
+                final Thread following = Thread.currentThread();
+                // being killed lets the pass in hand finish and the index be written
+                Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        follower.stop();
+                        try {
+                            following.join();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }, "zapdump-follow-stop"));
+                follower.run();
+                return;
+            }
+            if (null != onlyUrl) {
+                System.out.printf("Restricting my dump to \"%s\"%n", onlyUrl);
+            }
+            final int rc = dumpDatabase(dbName, onlyUrl, options);
+            if (0 != rc) {
+                System.exit(rc);
             }
         } else {
             usageAndDie("Unrecognized argument" + args[0]);
         }
     }
 
+    /**
+     * One URI per line from the file, or from stdin for "-"; blank lines and repeats are dropped.
+     */
+    static Set<String> readUrls(String source) throws IOException {
+        final InputStream in = "-".equals(source) ? System.in : new FileInputStream(source);
+        final Set<String> urls = new LinkedHashSet<String>();
+        try {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(in, ENCODING));
+            String line;
+            while (null != (line = reader.readLine())) {
+                if (! line.trim().isEmpty()) {
+                    urls.add(line);
+                }
+            }
+        } finally {
+            if (System.in != in) {
+                in.close();
+            }
+        }
+        return urls;
+    }
+
+    private static String optionValue(String[] args, int i, String opt) {
+        if (i >= args.length) {
+            usageAndDie(format("%s requires a value", opt));
+        }
+        return args[i];
+    }
+
+    private static int positiveInt(String value, String opt) {
+        return (int) wholeNumber(value, opt, 1, Integer.MAX_VALUE);
+    }
+
+    private static long wholeNumber(String value, String opt, long min, long max) {
+        try {
+            final long result = Long.parseLong(value);
+            if (min <= result && result <= max) {
+                return result;
+            }
+        } catch (NumberFormatException e) {
+            // fall through to the complaint
+        }
+        usageAndDie(format("%s expects a whole number from %d to %d, not \"%s\"",
+                opt, min, max, value));
+        return -1;
+    }
+
     public static void compareSignature(String verb, String url, String theDirectory) throws IOException {
         final File dir = new File(theDirectory);
         if (! dir.exists()) {
@@ -84,13 +344,7 @@ public class Dump
         SignatureParts sig = new SignatureParts();
         sig.setRequestMethod(verb);
         sig.setRequestUrl(url);
-        FileInputStream fin = new FileInputStream(new File(dir, "response_body"));
-        byte[] buffer = new byte[8096];
-        int br;
-        while (-1 != (br = fin.read(buffer))) {
-            sig.write(buffer, 0, br);
-        }
-        fin.close();
+        sig.write(CacheVerifier.map(new File(dir, "response_body")));
         System.out.println("Signature := "+sig);
     }
 
@@ -98,301 +352,15 @@ public class Dump
         return dumpDatabase(databaseFilename, null);
     }
 
-    @SuppressWarnings("ConstantConditions")
     public static int dumpDatabase(final String databaseFilename, final String onlyUrl)
         throws Exception {
-        final String tsvFilename = format("%s.tsv", databaseFilename);
-        final PrintStream out = new PrintStream(new FileOutputStream(tsvFilename));
-        System.setProperty("jdbc.drivers", "org.hsqldb.jdbc.JDBCDriver");
-        final Connection conn = DriverManager.getConnection(
-                format("jdbc:hsqldb:%s", databaseFilename));
-        final PreparedStatement st = conn.prepareStatement(
-                "SELECT * FROM HISTORY" +
-                        (onlyUrl == null ? "" : " WHERE URI = ?")
-        );
-        if (null != onlyUrl) {
-            st.setString(1, onlyUrl);
-        }
-        final ResultSet rs = st.executeQuery();
-        final ResultSetMetaData md = rs.getMetaData();
-        final int columnCount = md.getColumnCount();
-        final String[] columnNames = new String[columnCount];
-        for (int i = 1; i <= columnCount; i++) {
-            if (i != 1) {
-                out.print("\t");
-            }
-            final String name = md.getColumnName(i);
-            columnNames[i-1] = name;
-            final String type = md.getColumnTypeName(i);
-            out.printf("%s|%s", name, type);
-        }
-        out.printf("\t%s|%s", "FINGERPRINT", "VARCHAR");
-        out.println();
-        int found = 0;
-        final int dataHistType = 1;
-        while (rs.next()) {
-            final SignatureParts sig = new SignatureParts();
-            String id = null;
-            int status = -1;
-            long millis = -1;
-            String resHeaders = null;
-            String theSig = null;
-            boolean capture = false;
-            for (int i = 1; i <= columnCount; i++) {
-                if (i != 1) {
-                    out.print("\t");
-                }
-                final String name = columnNames[i-1];
-                final String value;
-                if ("HISTORYID".equals(name)) {
-                    id = value = rs.getString(i);
-                } else if ("HISTTYPE".equals(name)) {
-                    value = rs.getString(i);
-                    capture = (dataHistType == Integer.parseInt(value));
-                } else if ("STATUSCODE".equals(name)) {
-                    value = rs.getString(i);
-                    status = rs.getInt(i);
-                } else if ("TIMESENTMILLIS".equals(name)) {
-                    value = rs.getString(i);
-                    millis = rs.getLong(i);
-                } else if ("TIMEELAPSEDMILLIS".equals(name)) {
-                    value = rs.getString(i);
-                    if (-1 == millis) {
-                        throw new IllegalStateException("Expected to have seen millis");
-                    }
-                    millis += rs.getInt(i);
-                } else if ("METHOD".equals(name)) {
-                    value = rs.getString(i);
-                    sig.setRequestMethod(value);
-                } else if ("URI".equals(name)) {
-                    value = rs.getString(i);
-                    sig.setRequestUrl(value);
-                } else if ("REQHEADER".equals(name)) {
-                    value = rs.getString(i)
-                            .replace("\r", "\\r")
-                            .replace("\n", "\\n")
-                            ;
-                } else if ("REQBODY".equals(name)) {
-                    final InputStream stream = rs.getBinaryStream(i);
-                    if (null == stream) {
-                        LOG.warning(format("%n%n%nSkipping NULL %s%n", name));
-                        continue;
-                    }
-                    // no need to close the S.O.S. as it's not a real stream
-                    final SignatureOutputStream sos = new SignatureOutputStream(sig);
-                    streamOut(stream, sos);
-                    stream.close();
-                    value = sos.written ? "<<data>>" : "NULL";
-                } else if ("RESHEADER".equals(name)) {
-                    final String str = rs.getString(i);
-                    value = str
-                            .replace("\r", "\\r")
-                            .replace("\n", "\\n")
-                    ;
-                    resHeaders = str.replaceFirst("HTTP/1.1[^\n]*\n", "");
-                    // kill the extra "\r\n" at the end
-                    if (! resHeaders.isEmpty()) {
-                        resHeaders = resHeaders.substring(0, resHeaders.length()-2);
-                    }
-                } else if ("RESBODY".equals(name)) {
-                    if (capture) {
-                        value = "<<data>>";
-                    final InputStream stream = rs.getBinaryStream(i);
-                    if (null == stream) {
-                        LOG.warning(format("%n%n%nSkipping NULL %s%n", name));
-                        continue;
-                    }
-                    // this is because we won't have the fingerprint until
-                    // after the bytes are written to *the file*
-                    final File tmpFile = new File(format("%s.bin", System.nanoTime()));
-                    final FileOutputStream fOut = new FileOutputStream(tmpFile);
-                    streamOut(stream, fOut);
-                    fOut.close();
-                    stream.close();
-                    LOG.finer(format("Wrote<%s> %s<%s> to %s%n",
-                            id, sig.method, sig.uri, tmpFile.getName()));
-                    theSig = sig.toString();
-                    String dirName = theSig;
-                    String hashPart = dirName.substring(0, 2);
-                    final File outDir = new File(format(".scrapy/httpcache/%s/%s/%s", databaseFilename, hashPart, dirName));
-                    if (! outDir.exists()) {
-                        if (!outDir.mkdirs()) {
-                            throw new IOException(format("Unable to create %s",outDir));
-                        }
-                    } else if (! outDir.isDirectory()) {
-                        throw new IOException(format("Expected %s to be a directory", outDir));
-                    }
-                    final File res_body = new File(outDir, "response_body");
-                    if (! tmpFile.renameTo(res_body)) {
-                        throw new IOException(format("Unable to rename %s to %s", tmpFile, res_body));
-                    }
-                    if (null == resHeaders) {
-                        throw new IOException(format(
-                                "Expected to find response_headers on row %s but no", id));
-                    }
-                    if (resHeaders.isEmpty()) {
-                        throw new IOException(format(
-                                "Expected response_headers to be non-empty on row %s", id));
-                    }
-                    final File resHeadersF = new File(outDir, "response_headers");
-                    final PrintWriter headOut = new PrintWriter(new FileWriter(resHeadersF));
-                    headOut.write(resHeaders);
-                    headOut.close();
-                    final Map<String, Object> metadata = new HashMap<String, Object>(5);
-                    metadata.put("url", sig.uri);
-                    metadata.put("status", status);
-                    metadata.put("method", sig.method);
-                    metadata.put("timestamp", (float)millis);
-                    metadata.put("response_url", sig.uri);
-                    {
-                        final File meta = new File(outDir, "meta.json");
-                        final PrintWriter metaOut = new PrintWriter(new FileWriter(meta));
-                        for (final Iterator<String> keyIt = metadata.keySet().iterator(); keyIt.hasNext(); ) {
-                            final String key = keyIt.next();
-                            final Object metaVal = metadata.get(key);
-                            final Object val;
-                            if (metaVal instanceof String) {
-                                val = format("\"%s\"", metaVal);
-                            } else {
-                                val = metaVal;
-                            }
-                            metaOut.write(format("\"%s\": %s", key, val));
-                            if (keyIt.hasNext()) {
-                                metaOut.write(",");
-                            }
-                        }
-                        metaOut.close();
-                    }
-                    {
-                        /*
-                        output from `pickletools.dis` for the binary, protocol 2 version
-    0: \x80 PROTO      2
-    2: }    EMPTY_DICT
-    3: q    BINPUT     1
-    5: (    MARK
-    6: U        SHORT_BINSTRING 'url'
-   11: q        BINPUT     2
-   13: U        SHORT_BINSTRING 'facebook://108215512553828'
-   41: q        BINPUT     3
-   43: U        SHORT_BINSTRING 'status'
-   51: q        BINPUT     4
-   53: M        BININT2    404
-   56: U        SHORT_BINSTRING 'method'
-   64: q        BINPUT     5
-   66: U        SHORT_BINSTRING 'GET'
-   71: q        BINPUT     6
-   73: U        SHORT_BINSTRING 'timestamp'
-   84: q        BINPUT     7
-   86: G        BINFLOAT   1393904644.079956
-   95: U        SHORT_BINSTRING 'response_url'
-  109: q        BINPUT     8
-  111: h        BINGET     3
-  113: u        SETITEMS   (MARK at 5)
-  114: .    STOP
-
-                        and that same thing for protocol 0 (entirely text based)
-                        the "(" is MARK (as seen above),
-                        "d" is the opcode for dictionary, and
-                        "p1" is the normal "put in bucket 1" just like the other
-                        "p[0-9]" actions. However, "(dp1" must appear on one line
-                        for reasons I didn't look into.
-                        Careful: "I" and "F" don't consume a "p" slot, and they are
-                        terminated with "\ns".
-(dp1
-S'url'
-p2
-S'facebook://108215512553828'
-p3
-sS'status'
-p4
-I404
-sS'response_url'
-p5
-g3
-sS'method'
-p6
-S'GET'
-p7
-sS'timestamp'
-p8
-F1393904644.0799561
-s.
-                         */
-                        final File pyMeta = new File(outDir, "pickled_meta");
-                        final PrintWriter pyMetaOut = new PrintWriter(new FileWriter(pyMeta));
-                        pyMetaOut.write("(d"); // dictionary creation on the stack
-                        int p = 1;
-                        for (final Iterator<String> keyIt = metadata.keySet().iterator();
-                             keyIt.hasNext(); p += 2) {
-                            final String key = keyIt.next();
-                            // I doubt *very* seriously any keys would have quotes in them
-                            final String quotedKey = key.replaceAll("'", "\\\\'");
-                            // have to emit this first, to consume its "p" slot.
-                            pyMetaOut.write(format(
-                                    "p%d\n" +
-                                    "S'%s'\n", p, quotedKey));
-                            final Object metaVal = metadata.get(key);
-                            final String val;
-                            pyMetaOut.write(format(
-                                    "p%d\n", p + 1));
-                            if (metaVal instanceof String) {
-                                final String quoted = metaVal == null ?
-                                        null :
-                                        ((String)metaVal).replaceAll("'", "\\\\'");
-                                val = format("S'%s'\n", quoted);
-                            } else if (metaVal instanceof Integer) {
-                                val = format("I%s\n", metaVal);
-                            } else if (metaVal instanceof Long) {
-                                val = format("L%s\n", metaVal);
-                            } else if (metaVal instanceof Double) {
-                                val = format("F%f\n", (Double)metaVal);
-                            } else if (metaVal instanceof Float) {
-                                val = format("F%f\n", (Float)metaVal);
-                            } else {
-                                throw new IllegalArgumentException(format(
-                                        "Unrecognized metadata type<%s>: %s",
-                                        null == metaVal ? "NULL" : metaVal.getClass().getName(),
-                                        metaVal));
-                            }
-                            pyMetaOut.write(val);
-                            pyMetaOut.write("s"); // SET ITEM (consume k, v)
-                        }
-                        pyMetaOut.write(".\n");
-                        pyMetaOut.close();
-                    }
-                        LOG.fine(format("Output is in %s%n%n", outDir));
-                        found++;
-                    } else {
-                        value = "NULL";
-                        LOG.fine(format("Skipping URI %s due to wrong HISTTYPE", sig.uri));
-                    }
-                } else {
-                    value = rs.getString(i);
-                }
-                out.print(value);
-            }
-            out.print("\t");
-            out.print(theSig);
-            out.println();
-        }
-        int rc;
-        if (0 == found) {
-            if (null == onlyUrl) {
-                System.err.println("It appears that database is empty; no rows in HISTORY");
-            } else {
-                System.err.printf("Unable to locate any URL like \"%s\" with HISTTYPE=%d%n",
-                        onlyUrl, dataHistType);
-            }
-            rc = 1;
-        } else {
-            System.out.printf("Exported %d rows%n", found);
-            rc = 0;
-        }
-        rs.close();
-        st.close();
-        conn.close();
-        out.close();
-        return rc;
+        return dumpDatabase(databaseFilename, onlyUrl, new ExportOptions());
+    }
+
+    public static int dumpDatabase(final String databaseFilename, final String onlyUrl,
+                                   final ExportOptions options)
+        throws Exception {
+        return new ExportPipeline(databaseFilename, onlyUrl, options).run();
     }
 
     static void streamOut(InputStream stream, OutputStream out) throws IOException {
@@ -427,32 +395,37 @@ s.
     static class SignatureParts
     {
         public SignatureParts() {
-            try {
-                sha1 = MessageDigest.getInstance("SHA1");
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException("Seriously?!", e);
-            }
+            sha1 = Fingerprinter.newDigest();
         }
         public void setRequestMethod(String method) {
             sha1.update(method.getBytes(ENCODING));
             this.method = method;
         }
         public void setRequestUrl(String url) {
-            final String uri;
+            final String uri = canonical(url);
+            sha1.update(uri.getBytes(ENCODING));
+            this.uri = uri;
+        }
+        /**
+         * {@link #canonicalUrl} for callers that cannot do anything about a bad URL either.
+         */
+        static String canonical(String url) {
             try {
-                uri = canonicalUrl(url);
+                final String uri = canonicalUrl(url);
                 LOG.finest(format("Canonical<<%s>> := %s", url, uri));
-                sha1.update(uri.getBytes(ENCODING));
+                return uri;
             } catch (URISyntaxException e) {
                 throw new RuntimeException("Unable to make a canonical URL", e);
             } catch (MalformedURLException e) {
                 throw new RuntimeException("You gave me a bogus URL", e);
             }
-            this.uri = uri;
         }
         public void write(byte[] bytes, int startAt, int length) {
             sha1.update(bytes, startAt, length);
         }
+        public void write(ByteBuffer bytes) {
+            sha1.update(bytes);
+        }
         public String toString() {
             final byte[] sig = sha1.digest();
             return toHexString(sig);
@@ -475,8 +448,23 @@ s.
 
      The url passed can be a str or unicode, while the url returned is always a
      str.
+
+     The everyday URLs go through {@link UrlCanonicalizer} in one pass;
+     the rest take the long way round through java.net.URL and java.net.URI.
      */
     public static String canonicalUrl(String input) throws URISyntaxException, MalformedURLException {
+        final String fast = UrlCanonicalizer.get().canonicalize(input);
+        if (null != fast) {
+            return fast;
+        }
+        return canonicalUrlViaUri(input);
+    }
+
+    /**
+     * The original canonicalization, which is the reference the one-pass
+     * version is held to and the fallback for anything unusual.
+     */
+    static String canonicalUrlViaUri(String input) throws URISyntaxException, MalformedURLException {
         final URL u = new URL(input);
         final String scheme = u.getProtocol();
         final String host = u.getHost();
@@ -533,7 +521,7 @@ s.
     }
 
     public static String harmonizeQueryPChar(String queryStringPart) {
-        return escapeIfNotMatched(queryStringPart, QUERY_PCHAR);
+        return UrlCanonicalizer.escape(queryStringPart, UrlCanonicalizer.QUERY_SAFE);
     }
 
     /**
@@ -546,53 +534,38 @@ s.
      * </pre>
      */
     public static String harmonizePChar(String path) {
-        return escapeIfNotMatched(path, PCHAR);
+        return UrlCanonicalizer.escape(path, UrlCanonicalizer.PATH_SAFE);
     }
 
-    private static String escapeIfNotMatched(String path, Pattern pat) {
-        StringBuilder sb = new StringBuilder(path.length());
-        for (int i = 0, len = path.length(); i < len; i++) {
-            // percent encoded is as-is
-            final char ch = path.charAt(i);
-            if ('%' == ch) {
-                sb.append('%')
-                        .append(Character.toUpperCase(path.charAt(++i)))
-                        .append(Character.toUpperCase(path.charAt(++i)))
-                        ;
-                continue;
-            }
-            final String str = Character.toString(ch);
-            if (! pat.matcher(str).matches()) {
-                byte[] bytes = str.getBytes(ENCODING);
-                for (byte b : bytes) {
-                    sb.append('%').append(toHexString(new byte[] { b }).toUpperCase());
+
+    /**
+     * Upper-cases the percent-escapes in {@code uri}, in one pass and without
+     * allocating anything unless there is something to change.
+     * Mind that only the first hex digit of each escape is touched,
+     * because that is all the original version did, and the fingerprints
+     * of everything exported so far depend on it.
+     */
+    public static String upperEscapeCodes(String uri) {
+        StringBuilder sb = null;
+        final int len = uri.length();
+        int i = 0;
+        while (i + 2 < len) {
+            if ('%' == uri.charAt(i)
+                    && UrlCanonicalizer.isHex(uri.charAt(i + 1))
+                    && UrlCanonicalizer.isHex(uri.charAt(i + 2))) {
+                final char digit = uri.charAt(i + 1);
+                if ('a' <= digit && digit <= 'f') {
+                    if (null == sb) {
+                        sb = new StringBuilder(uri);
+                    }
+                    sb.setCharAt(i + 1, (char) (digit - 'a' + 'A'));
                 }
+                i += 3;
             } else {
-                sb.append(ch);
+                i++;
             }
         }
-        return sb.toString();
-    }
-
-    public static String upperEscapeCodes(String uri) {
-        final String result;
-        final Matcher ma = Pattern.compile("%[0-9A-Fa-f][0-9A-Fa-f]").matcher(uri);
-        final ArrayList<Integer> starts = new ArrayList<Integer>();
-        while (ma.find()) {
-            starts.add(ma.start(0));
-        }
-        if (! starts.isEmpty()) {
-            StringBuilder sb = new StringBuilder(uri);
-            for (ListIterator<Integer> li = starts.listIterator(starts.size()); li.hasPrevious(); ) {
-                int start = li.previous();
-                final String upr = sb.subSequence(start, start+2).toString().toUpperCase();
-                sb.replace(start, start+2, upr);
-            }
-            result = sb.toString();
-        } else {
-            result = uri;
-        }
-        return result;
+        return null == sb ? uri : sb.toString();
     }
 
     public static String sortQueryString(String query) {
@@ -652,14 +625,6 @@ s.
     }
 
     public static String toHexString(byte[] digest) {
-        StringBuilder sb = new StringBuilder(digest.length * 2);
-        for (final byte b : digest) {
-            final int i = (0xFF & b);
-            if (i <= 0xF) {
-                sb.append('0');
-            }
-            sb.append(Integer.toHexString(i));
-        }
-        return sb.toString();
+        return Fingerprinter.hex(digest);
     }
 }
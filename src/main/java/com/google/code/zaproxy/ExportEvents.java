@@ -0,0 +1,108 @@
+package com.google.code.zaproxy;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The Flight Recorder events, kept to themselves so that nothing else loads
+ * {@code jdk.jfr} on a JVM that lacks it; only {@link ExportMetrics} calls in here,
+ * and only once it has found {@code jdk.jfr.Event}.
+ * Record them with, for example,
+ * {@code -XX:StartFlightRecording=filename=dump.jfr,settings=profile}.
+ */
+final class ExportEvents
+{
+    private ExportEvents() {
+    }
+
+    @Name("zapdump.Page")
+    @Label("HISTORY Page")
+    @Category("zapdump")
+    @Description("One page of HISTORY rows read by a slice, including any wait for the writers to catch up")
+    static class PageEvent extends Event
+    {
+        @Label("Slice")
+        int slice;
+        @Label("After HISTORYID")
+        long afterId;
+        @Label("Rows")
+        int rows;
+    }
+
+    @Name("zapdump.Entry")
+    @Label("Cache Entry")
+    @Category("zapdump")
+    @Description("One cache entry canonicalized, fingerprinted and written")
+    static class EntryEvent extends Event
+    {
+        @Label("HISTORYID")
+        long historyId;
+        @Label("Fingerprint")
+        String fingerprint;
+        @Label("Body Size")
+        @DataAmount
+        long bodyBytes;
+    }
+
+    @Name("zapdump.Progress")
+    @Label("Export Progress")
+    @Category("zapdump")
+    static class ProgressEvent extends Event
+    {
+        @Label("Rows Read")
+        long rows;
+        @Label("Entries Written")
+        long entries;
+        @Label("Rows per Second")
+        double rowsPerSecond;
+        @Label("MB per Second")
+        double megabytesPerSecond;
+    }
+
+    static Object beginPage() {
+        final PageEvent event = new PageEvent();
+        if (! event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    static void commitPage(Object started, int slice, long afterId, int rows) {
+        final PageEvent event = (PageEvent) started;
+        event.slice = slice;
+        event.afterId = afterId;
+        event.rows = rows;
+        event.commit();
+    }
+
+    static Object beginEntry() {
+        final EntryEvent event = new EntryEvent();
+        if (! event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    static void commitEntry(Object started, long historyId, String fingerprint, long bodyBytes) {
+        final EntryEvent event = (EntryEvent) started;
+        event.historyId = historyId;
+        event.fingerprint = fingerprint;
+        event.bodyBytes = bodyBytes;
+        event.commit();
+    }
+
+    static void progress(long rows, long entries, double rowsPerSecond, double megabytesPerSecond) {
+        final ProgressEvent event = new ProgressEvent();
+        event.rows = rows;
+        event.entries = entries;
+        event.rowsPerSecond = rowsPerSecond;
+        event.megabytesPerSecond = megabytesPerSecond;
+        event.commit();
+    }
+}
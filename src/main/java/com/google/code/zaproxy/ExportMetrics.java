@@ -0,0 +1,233 @@
+package com.google.code.zaproxy;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.lang.String.format;
+
+/**
+ * What an export has done so far and where the time went, cheap enough to
+ * keep for every row: the readers count rows and bytes and the time spent in JDBC,
+ * the writers the time spent canonicalizing, hashing and writing each entry.
+ * Every counter can be bumped from any thread.
+ * <p>
+ * When the JVM has Flight Recorder, each page read and each entry written is also a
+ * {@code zapdump.*} event (see {@link ExportEvents}), so a stall shows up next to
+ * the GC pauses and file I/O around it.
+ */
+class ExportMetrics
+{
+    static final boolean JFR = hasClass("jdk.jfr.Event");
+    private static final double MB = 1024.0 * 1024.0;
+
+    ExportMetrics() {
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * A row has been copied out of the cursor.
+     * @param jdbcNanos how long fetching and copying it took
+     */
+    void rowRead(HistoryRow row, long jdbcNanos) {
+        rowsRead.increment();
+        if (! row.capture) {
+            rowsSkipped.increment();
+        }
+        if (null != row.requestBody) {
+            requestBytes.add(row.requestBody.length);
+        }
+        if (null != row.responseBody) {
+            responseBytes.add(row.responseBody.length);
+        }
+        this.jdbcNanos.add(jdbcNanos);
+    }
+
+    void jdbc(long nanos) {
+        jdbcNanos.add(nanos);
+    }
+
+    /**
+     * @return what {@link #pageRead} wants back, or null when nobody is recording
+     */
+    Object pageStarted() {
+        return JFR ? ExportEvents.beginPage() : null;
+    }
+
+    void pageRead(Object event, int slice, long afterId, int rows) {
+        if (null != event) {
+            ExportEvents.commitPage(event, slice, afterId, rows);
+        }
+    }
+
+    /**
+     * @return what {@link #entryWritten} wants back, or null when nobody is recording
+     */
+    Object entryStarted() {
+        return JFR ? ExportEvents.beginEntry() : null;
+    }
+
+    void canonicalized(long nanos) {
+        canonicalNanos.add(nanos);
+    }
+
+    void hashed(long nanos) {
+        hashNanos.add(nanos);
+    }
+
+    /**
+     * @param writeNanos the time in the {@link CacheSink}
+     * @param totalNanos from picking the row up to having written it
+     */
+    void entryWritten(Object event, HistoryRow row, String fingerprint, long writeNanos, long totalNanos) {
+        entries.increment();
+        this.writeNanos.add(writeNanos);
+        latency.record(totalNanos);
+        if (null != event) {
+            ExportEvents.commitEntry(event, row.sequence, fingerprint, row.responseBody.length);
+        }
+    }
+
+    /**
+     * @param rows how many rows the export expects to read, for the ETA; 0 if unknown
+     */
+    void expect(long rows) {
+        expectedRows = rows;
+    }
+
+    /**
+     * One line: rows so far, rows/s, MB/s of bodies and, once the total is known, an ETA.
+     */
+    String progress() {
+        final double seconds = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+        final long rows = rowsRead.sum();
+        final double rowRate = rows / seconds;
+        final double mbRate = (requestBytes.sum() + responseBytes.sum()) / MB / seconds;
+        final StringBuilder sb = new StringBuilder(128);
+        sb.append(format("Progress: %d", rows));
+        if (0 < expectedRows) {
+            sb.append(format(" of %d rows (%d%%)", expectedRows, 100 * rows / expectedRows));
+        } else {
+            sb.append(" rows");
+        }
+        sb.append(format(", %d entries, %.0f rows/s, %.1f MB/s", entries.sum(), rowRate, mbRate));
+        if (0 < expectedRows && 0 < rowRate && rows < expectedRows) {
+            sb.append(", ETA ").append(clock((long) ((expectedRows - rows) / rowRate)));
+        }
+        if (JFR) {
+            ExportEvents.progress(rows, entries.sum(), rowRate, mbRate);
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        final double seconds = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+        return format("Read %d rows (%d skipped by HISTTYPE) in %.1f s, %.0f rows/s;" +
+                        " REQBODY %.1f MB, RESBODY %.1f MB, %.1f MB/s%n" +
+                        "Thread time: JDBC %.1f s, canonicalize %.1f s, hash %.1f s, write %.1f s;" +
+                        " %d entries, p50 %.2f ms, p99 %.2f ms each",
+                rowsRead.sum(), rowsSkipped.sum(), seconds, rowsRead.sum() / seconds,
+                requestBytes.sum() / MB, responseBytes.sum() / MB,
+                (requestBytes.sum() + responseBytes.sum()) / MB / seconds,
+                jdbcNanos.sum() / 1e9, canonicalNanos.sum() / 1e9, hashNanos.sum() / 1e9, writeNanos.sum() / 1e9,
+                entries.sum(), latency.percentile(0.50) / 1e6, latency.percentile(0.99) / 1e6);
+    }
+
+    long rowsRead() {
+        return rowsRead.sum();
+    }
+
+    long rowsSkipped() {
+        return rowsSkipped.sum();
+    }
+
+    long responseBytes() {
+        return responseBytes.sum();
+    }
+
+    long entries() {
+        return entries.sum();
+    }
+
+    Latency latency() {
+        return latency;
+    }
+
+    static String clock(long seconds) {
+        return format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+
+    private static boolean hasClass(String name) {
+        try {
+            Class.forName(name, false, ExportMetrics.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * A histogram of nanoseconds, good to an eighth of a power of two,
+     * which is plenty to tell a 1 ms write from a 10 ms one.
+     */
+    static class Latency
+    {
+        private static final int SUB_BITS = 3;
+        private static final int SUBS = 1 << SUB_BITS;
+
+        void record(long nanos) {
+            buckets.incrementAndGet(bucket(Math.max(1, nanos)));
+        }
+
+        /**
+         * @return the low edge of the bucket holding the {@code p} quantile, or 0 if nothing was recorded
+         */
+        long percentile(double p) {
+            long total = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                total += buckets.get(i);
+            }
+            if (0 == total) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(p * total));
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return lowEdge(i);
+                }
+            }
+            return lowEdge(buckets.length() - 1);
+        }
+
+        static int bucket(long v) {
+            final int exp = 63 - Long.numberOfLeadingZeros(v);
+            final long sub = exp >= SUB_BITS ? v >>> (exp - SUB_BITS) : v << (SUB_BITS - exp);
+            return exp * SUBS + (int) (sub & (SUBS - 1));
+        }
+
+        static long lowEdge(int bucket) {
+            final int exp = bucket / SUBS;
+            final long mantissa = SUBS + bucket % SUBS;
+            return exp >= SUB_BITS ? mantissa << (exp - SUB_BITS) : mantissa >>> (SUB_BITS - exp);
+        }
+
+        private final AtomicLongArray buckets = new AtomicLongArray(64 * SUBS);
+    }
+
+    private final long startNanos;
+    private volatile long expectedRows;
+    private final LongAdder rowsRead = new LongAdder();
+    private final LongAdder rowsSkipped = new LongAdder();
+    private final LongAdder requestBytes = new LongAdder();
+    private final LongAdder responseBytes = new LongAdder();
+    private final LongAdder entries = new LongAdder();
+    private final LongAdder jdbcNanos = new LongAdder();
+    private final LongAdder canonicalNanos = new LongAdder();
+    private final LongAdder hashNanos = new LongAdder();
+    private final LongAdder writeNanos = new LongAdder();
+    private final Latency latency = new Latency();
+}
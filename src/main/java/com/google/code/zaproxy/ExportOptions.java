@@ -0,0 +1,157 @@
+package com.google.code.zaproxy;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The knobs for {@link Dump#dumpDatabase(String, String, ExportOptions)};
+ * the defaults are what you get from a bare {@code -dump}.
+ */
+public class ExportOptions
+{
+    /**
+     * How many threads build the Scrapy cache directories.
+     */
+    public int threads = Runtime.getRuntime().availableProcessors();
+    /**
+     * How many rows each JDBC reader may get ahead of the writers before
+     * it blocks; zero means "a few per writer thread."
+     */
+    public int queueCapacity = 0;
+    /**
+     * How many bytes of REQBODY and RESBODY the rows waiting on the writers may hold
+     * between them before the readers block; a row bigger than this goes through alone.
+     */
+    public long queueBytes = 64L << 20;
+    /**
+     * How many HISTORYID ranges to read at once, each on its own connection.
+     */
+    public int partitions = 1;
+    /**
+     * How many rows each query fetches before the reader asks for the next page.
+     */
+    public int pageRows = 1000;
+    /**
+     * Only export rows with a HISTORYID above this one; null means all of them.
+     */
+    public Long since;
+    /**
+     * Pick up after the HISTORYID in {@code <db>.checkpoint}, appending to the TSV
+     * rather than starting it over; without a checkpoint this is a full dump.
+     */
+    public boolean resume;
+    /**
+     * Leave cache entries alone if all their files are already there.
+     */
+    public boolean skipComplete;
+    /**
+     * Write {@code <db>.tsv}; without it only capture rows are read, and only
+     * the columns a cache entry is made of.
+     */
+    public boolean tsv = true;
+    /**
+     * Only rows whose URI is exactly one of these; null means any.
+     * The ones which end up without a cache entry are listed at the end.
+     */
+    public Collection<String> urls;
+    /**
+     * Only rows with one of these HISTTYPEs; null means any.
+     */
+    public List<Integer> histTypes;
+    /**
+     * Only rows with one of these METHODs; null means any.
+     */
+    public List<String> methods;
+    /**
+     * Only rows with one of these STATUSCODEs; null means any.
+     */
+    public List<Integer> statusCodes;
+    /**
+     * Only http or https URIs for exactly this host, with or without a port.
+     */
+    public String host;
+    /**
+     * Only rows with TIMESENTMILLIS at or after this.
+     */
+    public Long sentFrom;
+    /**
+     * Only rows with TIMESENTMILLIS before this.
+     */
+    public Long sentTo;
+    /**
+     * How many bytes to spend remembering canonical URLs and fingerprints
+     * of the URIs seen so far; zero turns that off.
+     */
+    public long urlCacheBytes = 0;
+    /**
+     * The directory holding one subdirectory per spider,
+     * which is where Scrapy's {@code HTTPCACHE_DIR} points.
+     */
+    public File cacheRoot = new File(".scrapy/httpcache");
+    /**
+     * The spider directory under {@link #cacheRoot} (or the tar's top directory,
+     * or the dbm's name); null means the session's filename.
+     */
+    public String spider;
+    /**
+     * Stream the cache entries into this tar file, laid out as they would be
+     * under {@link #cacheRoot}, instead of writing them there; null means don't.
+     */
+    public File archive;
+    /**
+     * Write the cache entries the way Scrapy's {@code DbmCacheStorage} keeps them,
+     * in {@code <cacheRoot>/<spider>.db.dat} and {@code .dir}.
+     */
+    public boolean dbm;
+    /**
+     * gzip each cache file, for Scrapy's {@code HTTPCACHE_GZIP = True};
+     * the compressing is done by the writer threads.
+     */
+    public boolean gzip;
+    /**
+     * The zlib level, 1 (fastest) to 9 (smallest), when {@link #gzip} is on.
+     */
+    public int gzipLevel = 6;
+    /**
+     * Write each distinct response body once and hard link the repeats to it.
+     */
+    public boolean dedup;
+    /**
+     * Pick each fingerprint's row up front and write it once; null keeps the latest row.
+     */
+    public FingerprintTable.Policy winner;
+    /**
+     * How often to print a progress line to stderr; 0 for never.
+     */
+    public int progressSeconds = 10;
+    /**
+     * Write {@code <db>.fpindex}, for {@code -lookup} and {@code -grep-url}.
+     */
+    public boolean index = true;
+    /**
+     * Open the session the way HSQLDB normally would, replaying its log into
+     * its files and holding its lock, rather than read-only.
+     */
+    public boolean readWrite;
+    /**
+     * Copy the session's files into a scratch directory here, such as a tmpfs,
+     * and read them from there; null reads them where they are.
+     */
+    public File snapshotDir;
+
+    /**
+     * @return whether any of the HISTTYPE, METHOD, STATUSCODE, host or TIMESENTMILLIS
+     * filters would leave rows out
+     */
+    boolean filtered() {
+        return (null != histTypes && ! histTypes.isEmpty())
+                || (null != methods && ! methods.isEmpty())
+                || (null != statusCodes && ! statusCodes.isEmpty())
+                || null != host || null != sentFrom || null != sentTo;
+    }
+
+    int effectiveQueueCapacity() {
+        return 0 < queueCapacity ? queueCapacity : 4 * threads;
+    }
+}
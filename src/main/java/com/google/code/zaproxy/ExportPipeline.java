@@ -0,0 +1,1074 @@
+package com.google.code.zaproxy;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+
+/**
+ * Exports the HISTORY table as a staged pipeline:
+ * one thread owns the JDBC cursor and copies each row out of it,
+ * a pool of {@link CacheEntryWriter} threads builds the Scrapy directories,
+ * and a drain thread writes the TSV in the order the rows were read.
+ * The queue between the reader and the drain is bounded, so a slow disk
+ * makes the reader wait rather than piling rows up on the heap.
+ * <p>
+ * With {@link ExportOptions#partitions} above one, the HISTORYID range is cut
+ * into that many slices, each with its own connection, reader and drain;
+ * the first slice writes straight into the TSV and the others write fragments
+ * which are appended, in order, once everybody is done.
+ * Each slice walks its range a page at a time, keyed on HISTORYID,
+ * so no single result set has to hold the whole table.
+ * <p>
+ * Every so often, and at the end, the HISTORYID up to which both the TSV and
+ * the cache are complete is saved as a {@link Checkpoint}, which is where
+ * {@link ExportOptions#resume} picks up.
+ */
+class ExportPipeline
+{
+    private static final Logger LOG = Logger.getLogger(ExportPipeline.class.getName());
+    static final int DATA_HIST_TYPE = 1;
+    private static final long CHECKPOINT_INTERVAL_MILLIS = 5000;
+    /**
+     * How many drained rows a slice may hold on to while the slices before it catch up.
+     */
+    static final int MAX_HELD_ROWS = 1 << 16;
+
+    public ExportPipeline(String databaseFilename, String onlyUrl, ExportOptions options) {
+        this.databaseFilename = databaseFilename;
+        this.onlyUrl = onlyUrl;
+        this.options = options;
+        this.checkpointFile = Checkpoint.fileFor(databaseFilename);
+        this.indexFile = FingerprintIndex.fileFor(databaseFilename);
+        this.query = new HistoryQuery(options, onlyUrl);
+        this.session = new SessionOpener(databaseFilename, options);
+    }
+
+    public int run() throws Exception {
+        final String tsvFilename = null != tsvFile ? tsvFile.getPath() : format("%s.tsv", databaseFilename);
+        Long since = options.since;
+        Checkpoint resumed = null;
+        if (options.resume) {
+            resumed = Checkpoint.load(checkpointFile);
+        }
+        if (null != resumed) {
+            if (resumed.tsv != options.tsv) {
+                throw new IOException(format(
+                        "%s was saved by a dump %s a TSV; resume it %s -no-tsv, or delete it to start over",
+                        checkpointFile, resumed.tsv ? "with" : "without", resumed.tsv ? "without" : "with"));
+            }
+            since = resumed.historyId;
+            if (options.tsv) {
+                truncate(new File(tsvFilename), resumed.tsvLength);
+            }
+            if (! quiet) {
+                System.out.printf("Resuming after HISTORYID %d%n", since);
+            }
+        }
+        final PrintStream out;
+        if (options.tsv) {
+            tsvStream = new FileOutputStream(tsvFilename, null != resumed);
+            out = new PrintStream(new BufferedOutputStream(tsvStream, 1 << 16));
+        } else {
+            out = null;
+        }
+        final Connection conn;
+        try {
+            conn = session.connect();
+        } catch (SQLException e) {
+            if (null != out) {
+                out.close();
+            }
+            session.close();
+            throw e;
+        }
+        if (! quiet) {
+            System.out.println(session);
+        }
+        final ExecutorService writers = Executors.newFixedThreadPool(
+                options.threads, new NamedThreadFactory("zapdump-writer"));
+        final List<Slice> slices = new ArrayList<Slice>();
+        int found = 0;
+        try {
+            query.prepare(conn);
+            metrics = new ExportMetrics();
+            boolean reindexed = false;
+            // a partial dump would leave out rows the index must have, and say it had them
+            if (options.index && ! partial()) {
+                if (null != sharedIndex) {
+                    fingerprintIndex = sharedIndex;
+                } else {
+                    fingerprintIndex = new FingerprintIndex.Builder();
+                    if (null != since) {
+                        reindexed = catchUpIndex(conn, since);
+                    }
+                }
+            }
+            final BodyDedup dedup = null == sharedSink && options.dedup ? new BodyDedup() : null;
+            sink = null != sharedSink ? sharedSink : openSink(options, spider(), dedup);
+            final String[] columnNames;
+            final PreparedStatement probe = conn.prepareStatement(query.pageSql());
+            try {
+                final ResultSetMetaData md = probe.getMetaData();
+                columnNames = columnNames(md);
+                if (null == resumed && null != out) {
+                    writeHeader(md, out, null != source);
+                }
+            } finally {
+                probe.close();
+            }
+            final long[] bounds = idBounds(conn, since);
+            if (null != bounds && 0 < batchIds && bounds[1] - bounds[0] >= batchIds) {
+                bounds[1] = bounds[0] + batchIds - 1;
+                capped = true;
+            }
+            if (null != bounds) {
+                lastHistoryId = bounds[1];
+                final CacheEntryWriter entryWriter = new CacheEntryWriter(sink);
+                entryWriter.metrics = metrics;
+                entryWriter.skipComplete = options.skipComplete;
+                if (0 < options.urlCacheBytes) {
+                    entryWriter.cache = new FingerprintCache(options.urlCacheBytes);
+                }
+                if (null != sharedWinners) {
+                    entryWriter.winners = sharedWinners;
+                } else if (null != options.winner) {
+                    entryWriter.winners = new FingerprintTable(options.winner);
+                    findWinners(conn, bounds, entryWriter.cache, entryWriter.winners);
+                }
+                if (0 < options.progressSeconds) {
+                    metrics.expect(countRows(conn, bounds));
+                    progress = startProgress();
+                }
+                queuedBytes = new Semaphore(queueBytes());
+                final long[][] ranges = split(bounds[0], bounds[1], options.partitions);
+                final Retirement retirement = new Retirement(entryWriter, ranges.length, MAX_HELD_ROWS);
+                for (int k = 0; k < ranges.length; k++) {
+                    final Slice slice = new Slice(k, ranges[k][0], ranges[k][1],
+                            columnNames, entryWriter, retirement, writers);
+                    slices.add(slice);
+                    if (0 == k) {
+                        slice.conn = conn;
+                        slice.out = out;
+                    } else if (null == out) {
+                        slice.conn = openConnection();
+                        query.attach(slice.conn);
+                    } else {
+                        slice.conn = openConnection();
+                        query.attach(slice.conn);
+                        slice.fragment = new File(format("%s.%d", tsvFilename, k));
+                        slice.out = new PrintStream(new BufferedOutputStream(
+                                new FileOutputStream(slice.fragment), 1 << 16));
+                    }
+                }
+                for (final Slice slice : slices) {
+                    slice.start();
+                }
+                Exception failure = null;
+                for (final Slice slice : slices) {
+                    slice.join();
+                    if (null == failure) {
+                        failure = slice.failure();
+                    }
+                    found += slice.found;
+                }
+                if (null != failure) {
+                    throw failure;
+                }
+                for (final Slice slice : slices) {
+                    if (null != slice.fragment) {
+                        slice.out.close();
+                        Files.copy(slice.fragment.toPath(), out);
+                    }
+                }
+                checkpoint(out, bounds[1]);
+                if (null != fingerprintIndex && null == sharedIndex) {
+                    fingerprintIndex.write(indexFile, bounds[1]);
+                }
+                if (! quiet) {
+                    if (null != entryWriter.winners && null == sharedWinners) {
+                        System.out.println(entryWriter.winners);
+                    }
+                    if (null != entryWriter.cache) {
+                        System.out.println(entryWriter.cache);
+                    }
+                    if (null != dedup) {
+                        System.out.println(dedup);
+                    }
+                    System.out.println(metrics);
+                    if (null != fingerprintIndex) {
+                        System.out.printf("Indexed %d rows in %s%n", fingerprintIndex.size(), indexFile);
+                    }
+                }
+            } else if (reindexed) {
+                fingerprintIndex.write(indexFile, since);
+            }
+        } finally {
+            if (null != progress) {
+                progress.shutdownNow();
+            }
+            writers.shutdownNow();
+            for (final Slice slice : slices) {
+                slice.close();
+            }
+            if (null != sink && sharedSink != sink) {
+                sink.close();
+            }
+            conn.close();
+            session.close();
+            if (null != out) {
+                out.close();
+            }
+        }
+        this.found = found;
+        int rc;
+        if (quiet) {
+            rc = 0;
+        } else if (0 == found && null != since) {
+            System.out.printf("Nothing new to export after HISTORYID %d%n", since);
+            rc = 0;
+        } else if (0 == found) {
+            if (null != options.urls) {
+                System.err.printf("Unable to locate any of the %d URLs with HISTTYPE=%d%n",
+                        options.urls.size(), DATA_HIST_TYPE);
+            } else if (null == onlyUrl) {
+                System.err.println("It appears that database is empty; no rows in HISTORY");
+            } else {
+                System.err.printf("Unable to locate any URL like \"%s\" with HISTTYPE=%d%n",
+                        onlyUrl, DATA_HIST_TYPE);
+            }
+            rc = 1;
+        } else {
+            System.out.printf("Exported %d rows%n", found);
+            reportMissingUrls();
+            rc = 0;
+        }
+        return rc;
+    }
+
+    private void reportMissingUrls() {
+        if (null == options.urls) {
+            return;
+        }
+        final List<String> missing = new ArrayList<String>();
+        for (final String url : options.urls) {
+            if (! exportedUrls.containsKey(url)) {
+                missing.add(url);
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        System.err.printf("%d of the %d URLs have no HISTTYPE=%d row:%n",
+                missing.size(), options.urls.size(), DATA_HIST_TYPE);
+        for (final String url : missing) {
+            System.err.println(url);
+        }
+    }
+
+    private Connection openConnection() throws SQLException, IOException {
+        return session.connect();
+    }
+
+    /**
+     * Cuts the TSV back to where the checkpoint says it was complete,
+     * dropping any lines written after it by the run that died.
+     */
+    private static void truncate(File tsv, long length) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(tsv, "rw");
+        try {
+            if (raf.length() < length) {
+                throw new IOException(format(
+                        "Expected %s to hold at least the %d checkpointed bytes, but it has %d",
+                        tsv, length, raf.length()));
+            }
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Records that every row up to {@code historyId} is in the TSV and the cache;
+     * the caller must be the only one writing to {@code out}.
+     * Restricted, filtered and merged dumps don't checkpoint, since their TSV is not the whole story.
+     */
+    private void checkpoint(PrintStream out, long historyId) throws IOException {
+        if (partial()) {
+            return;
+        }
+        if (null != sink) {
+            sink.flush();
+        }
+        long tsvLength = 0;
+        if (null != out) {
+            out.flush();
+            tsvLength = tsvStream.getChannel().position();
+        }
+        new Checkpoint(historyId, tsvLength, null != out).save(checkpointFile);
+        lastCheckpointMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * @return whether this dump leaves out rows which a full one would have,
+     * so that what it got up to says nothing about the rows it skipped,
+     * and neither the checkpoint nor the index may claim otherwise
+     */
+    private boolean partial() {
+        return null != onlyUrl || null != options.urls || null != source || options.filtered();
+    }
+
+    /**
+     * How many rows [bounds] holds, which is what the progress line counts down.
+     */
+    private long countRows(Connection conn, long[] bounds) throws SQLException {
+        final PreparedStatement st = conn.prepareStatement(query.countSql());
+        try {
+            query.bindPage(st, bounds[0] - 1, bounds[1]);
+            final ResultSet rs = st.executeQuery();
+            final long count = rs.next() ? rs.getLong(1) : 0;
+            rs.close();
+            return count;
+        } finally {
+            st.close();
+        }
+    }
+
+    /**
+     * Prints {@link ExportMetrics#progress} to stderr every {@link ExportOptions#progressSeconds}.
+     */
+    private ScheduledExecutorService startProgress() {
+        final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(
+                new NamedThreadFactory("zapdump-progress"));
+        timer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                System.err.println(metrics.progress());
+            }
+        }, options.progressSeconds, options.progressSeconds, TimeUnit.SECONDS);
+        return timer;
+    }
+
+    ExportMetrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * @return how many capture rows the last {@link #run} fingerprinted, written or not;
+     * {@link ExportMetrics#entries} counts the cache entries it actually wrote
+     */
+    int found() {
+        return found;
+    }
+
+    /**
+     * @return the HISTORYID the last {@link #run} got up to, or -1 if it found none
+     */
+    long lastHistoryId() {
+        return lastHistoryId;
+    }
+
+    /**
+     * @return whether the last {@link #run} stopped at {@link #batchIds} with rows still to go
+     */
+    boolean capped() {
+        return capped;
+    }
+
+    /**
+     * Runs through the capture rows in [bounds], fingerprinting each one, and keeps
+     * the one {@link ExportOptions#winner} says should be written.
+     */
+    private void findWinners(Connection conn, long[] bounds, FingerprintCache cache, final FingerprintTable table)
+            throws SQLException, IOException {
+        scanFingerprints(conn, bounds[0] - 1, bounds[1], cache, new FingerprintVisitor() {
+            @Override
+            public void row(byte[] fingerprint, long historyId, long millis, int status, String uri) {
+                table.offer(fingerprint, sequenceBase | historyId, millis, status);
+            }
+        });
+    }
+
+    /**
+     * Brings the index up to {@code since} before a resumed (or {@code -since}) dump adds to it:
+     * whatever the last index has up to there is kept, and anything after it
+     * (the rows a dump that died got through) is fingerprinted again from HISTORY.
+     * @return whether there was anything to catch up on
+     */
+    private boolean catchUpIndex(Connection conn, long since) throws SQLException, IOException {
+        long indexed = 0;
+        final FingerprintIndex old = FingerprintIndex.load(indexFile);
+        if (null != old) {
+            fingerprintIndex.addAll(old, since);
+            indexed = Math.min(old.through(), since);
+        }
+        if (indexed >= since) {
+            return false;
+        }
+        scanFingerprints(conn, indexed, since, null, new FingerprintVisitor() {
+            @Override
+            public void row(byte[] fingerprint, long historyId, long millis, int status, String uri)
+                    throws IOException {
+                fingerprintIndex.add(fingerprint, historyId, millis, status, uri.getBytes(Dump.ENCODING));
+            }
+        });
+        return true;
+    }
+
+    interface FingerprintVisitor
+    {
+        void row(byte[] fingerprint, long historyId, long millis, int status, String uri) throws IOException;
+    }
+
+    /**
+     * Fingerprints each capture row with a HISTORYID in (after, hi], without its response.
+     */
+    private void scanFingerprints(Connection conn, long after, long hi, FingerprintCache cache,
+                                  FingerprintVisitor visitor) throws SQLException, IOException {
+        final byte[] fingerprint = new byte[Fingerprinter.DIGEST_LENGTH];
+        final PreparedStatement st = conn.prepareStatement(query.winnersSql());
+        try {
+            int n;
+            do {
+                query.bindPage(st, after, hi);
+                final ResultSet rs = st.executeQuery();
+                n = 0;
+                try {
+                    while (rs.next()) {
+                        after = rs.getLong(1);
+                        n++;
+                        final String uri = null == cache
+                                ? Dump.SignatureParts.canonical(rs.getString(3)) : cache.canonicalUrl(rs.getString(3));
+                        final byte[] body = readBytes(rs, 6, "REQBODY");
+                        Fingerprinter.get().digest(rs.getString(2), uri, body, fingerprint);
+                        visitor.row(fingerprint, after, rs.getLong(5), rs.getInt(4), rs.getString(3));
+                    }
+                } finally {
+                    rs.close();
+                }
+            } while (n == options.pageRows);
+        } finally {
+            st.close();
+        }
+    }
+
+    /**
+     * The first half of a {@link SessionMerge}: offers each of our capture rows,
+     * as {@link #sequenceBase} plus its HISTORYID, to a table the other sessions fill too.
+     */
+    void offerWinners(FingerprintTable table) throws Exception {
+        final Connection conn = openConnection();
+        try {
+            query.prepare(conn);
+            final long[] bounds = idBounds(conn, options.since);
+            if (null != bounds) {
+                findWinners(conn, bounds, null, table);
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    /**
+     * @return the cache entries' destination picked by {@code options}, for {@code spider}
+     */
+    static CacheSink openSink(ExportOptions options, String spider, BodyDedup dedup) throws IOException {
+        final Gzip gzip = options.gzip ? new Gzip(options.gzipLevel) : null;
+        if (null != options.archive) {
+            return new TarCacheSink(options.archive, spider, gzip, dedup);
+        } else if (options.dbm) {
+            return new DbmCacheSink(new File(options.cacheRoot, spider + ".db"));
+        } else {
+            return new FilesystemCacheSink(new File(options.cacheRoot, spider), gzip, dedup);
+        }
+    }
+
+    private String spider() {
+        return null != options.spider ? options.spider : databaseFilename;
+    }
+
+    /**
+     * @return {min, max} of the HISTORYIDs we would export, or null if there are none
+     */
+    private long[] idBounds(Connection conn, Long since) throws SQLException {
+        final PreparedStatement st = conn.prepareStatement(query.boundsSql(since));
+        try {
+            query.bindBounds(st, since);
+            final ResultSet rs = st.executeQuery();
+            long[] result = null;
+            if (rs.next()) {
+                final long min = rs.getLong(1);
+                if (! rs.wasNull()) {
+                    result = new long[] { min, rs.getLong(2) };
+                }
+            }
+            rs.close();
+            return result;
+        } finally {
+            st.close();
+        }
+    }
+
+    /**
+     * Cuts [min, max] into at most {@code parts} contiguous, inclusive ranges.
+     */
+    static long[][] split(long min, long max, int parts) {
+        final long span = max - min + 1;
+        final int n = (int) Math.max(1, Math.min(parts, span));
+        final long[][] ranges = new long[n][];
+        long lo = min;
+        for (int k = 0; k < n; k++) {
+            final long hi = (k == n - 1) ? max : min + (span * (k + 1)) / n - 1;
+            ranges[k] = new long[] { lo, hi };
+            lo = hi + 1;
+        }
+        return ranges;
+    }
+
+    private static String[] columnNames(ResultSetMetaData md) throws SQLException {
+        final String[] columnNames = new String[md.getColumnCount()];
+        for (int i = 1; i <= columnNames.length; i++) {
+            columnNames[i-1] = md.getColumnLabel(i);
+        }
+        return columnNames;
+    }
+
+    private static void writeHeader(ResultSetMetaData md, PrintStream out, boolean withSource)
+            throws SQLException {
+        final int columnCount = md.getColumnCount();
+        for (int i = 1; i <= columnCount; i++) {
+            if (i != 1) {
+                out.print("\t");
+            }
+            final String name = md.getColumnLabel(i);
+            final String type = md.getColumnTypeName(i);
+            out.printf("%s|%s", name, type);
+        }
+        out.printf("\t%s|%s", "FINGERPRINT", "VARCHAR");
+        if (withSource) {
+            out.printf("\t%s|%s", "SOURCE", "VARCHAR");
+        }
+        out.println();
+    }
+
+    /**
+     * One HISTORYID range: a reader thread feeding the writers and a drain
+     * thread writing the TSV lines for that range in order.
+     */
+    class Slice
+    {
+        Slice(int index, long lo, long hi, String[] columnNames, CacheEntryWriter entryWriter,
+              Retirement retirement, ExecutorService writers) {
+            this.index = index;
+            this.lo = lo;
+            this.hi = hi;
+            this.columnNames = columnNames;
+            this.entryWriter = entryWriter;
+            this.retirement = retirement;
+            this.writers = writers;
+            this.pending = new ArrayBlockingQueue<PendingRow>(options.effectiveQueueCapacity());
+        }
+
+        void start() {
+            readerThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    read();
+                }
+            }, format("zapdump-reader-%d", index));
+            drainThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            }, format("zapdump-drain-%d", index));
+            readerThread.start();
+            drainThread.start();
+        }
+
+        void join() throws InterruptedException {
+            drainThread.join();
+            readerThread.join();
+        }
+
+        Exception failure() {
+            return null != drainFailure ? drainFailure : readFailure;
+        }
+
+        /**
+         * Closes what the slice opened: its fragment and, unless it borrowed the
+         * pipeline's own, its connection, with or without a TSV, so that the
+         * session is shut down behind the last of them.
+         */
+        void close() throws SQLException {
+            if (null != fragment) {
+                out.close();
+                if (! fragment.delete()) {
+                    LOG.warning(format("Unable to delete %s", fragment));
+                }
+            }
+            if (0 != index && null != conn) {
+                conn.close();
+            }
+        }
+
+        private void read() {
+            try {
+                final PreparedStatement st = conn.prepareStatement(query.pageSql());
+                try {
+                    long after = lo - 1;
+                    int n;
+                    do {
+                        final Object event = metrics.pageStarted();
+                        final long pageAfter = after;
+                        long fetching = System.nanoTime();
+                        query.bindPage(st, after, hi);
+                        final ResultSet rs = st.executeQuery();
+                        n = 0;
+                        try {
+                            while (rs.next()) {
+                                final HistoryRow row = readRow(rs, columnNames, null != out);
+                                metrics.rowRead(row, System.nanoTime() - fetching);
+                                after = Long.parseLong(row.id);
+                                row.sequence = sequenceBase | after;
+                                n++;
+                                final Future<String> fingerprint = submit(row);
+                                if (null == fingerprint
+                                        || ! hand(new PendingRow(row.sequence, row.tsvPrefix, fingerprint))) {
+                                    return;
+                                }
+                                fetching = System.nanoTime();
+                            }
+                            metrics.jdbc(System.nanoTime() - fetching);
+                        } finally {
+                            rs.close();
+                        }
+                        metrics.pageRead(event, index, pageAfter, n);
+                    } while (n == options.pageRows);
+                } finally {
+                    st.close();
+                }
+            } catch (Exception e) {
+                readFailure = e;
+                cancelled = true;
+                retirement.cancel();
+            }
+            hand(PendingRow.END);
+        }
+
+        /**
+         * @return the row's fingerprint to come, or null if some slice gave up while
+         * we were waiting for its bodies to fit under {@link ExportOptions#queueBytes}
+         */
+        private Future<String> submit(final HistoryRow row) {
+            if (null == row.responseBody) {
+                return NOT_EXPORTED;
+            }
+            final int bytes = heldBytes(row);
+            if (! reserve(bytes)) {
+                return null;
+            }
+            if (null != options.urls) {
+                exportedUrls.put(row.uri, Boolean.TRUE);
+            }
+            return writers.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    try {
+                        final String theSig = entryWriter.write(row);
+                        if (null != fingerprintIndex) {
+                            fingerprintIndex.add(theSig, Long.parseLong(row.id), row.sentMillis, row.status, row.uri);
+                        }
+                        return theSig;
+                    } finally {
+                        // the writer, not the drain, lets go, so a drain held up by the
+                        // Retirement can't keep the other slices' readers waiting
+                        queuedBytes.release(bytes);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Like {@link #hand}, waits for the bytes without using interrupts.
+         * @return false if some slice has given up
+         */
+        private boolean reserve(int bytes) {
+            try {
+                while (! queuedBytes.tryAcquire(bytes, 100, TimeUnit.MILLISECONDS)) {
+                    if (cancelled) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        /**
+         * Waits for room in the queue without using interrupts, since an
+         * interrupt landing inside HSQLDB's NIO file access closes its channel.
+         * @return false if some slice has given up
+         */
+        private boolean hand(PendingRow row) {
+            try {
+                while (! pending.offer(row, 100, TimeUnit.MILLISECONDS)) {
+                    if (cancelled) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        /**
+         * Writes the TSV lines in reader order, waiting on each row's writer as needed.
+         */
+        private void drain() {
+            try {
+                while (true) {
+                    final PendingRow row = pending.poll(100, TimeUnit.MILLISECONDS);
+                    if (null == row) {
+                        if (cancelled) {
+                            break;
+                        }
+                        continue;
+                    }
+                    if (PendingRow.END == row) {
+                        break;
+                    }
+                    final String theSig;
+                    try {
+                        theSig = row.fingerprint.get();
+                    } catch (ExecutionException e) {
+                        final Throwable cause = e.getCause();
+                        if (cause instanceof Exception) {
+                            throw (Exception) cause;
+                        }
+                        throw e;
+                    }
+                    if (null != theSig) {
+                        retirement.retire(index, theSig, row.sequence);
+                        found++;
+                    }
+                    if (null != out) {
+                        out.print(row.tsvPrefix);
+                        out.print("\t");
+                        out.print(theSig);
+                        if (null != source) {
+                            out.print("\t");
+                            out.print(source);
+                        }
+                        out.println();
+                    }
+                    // only the first slice is writing the real TSV as it goes
+                    if (0 == index && System.currentTimeMillis() - lastCheckpointMillis
+                            > CHECKPOINT_INTERVAL_MILLIS) {
+                        checkpoint(out, row.sequence);
+                    }
+                }
+                retirement.finished(index);
+            } catch (Exception e) {
+                drainFailure = e;
+                cancelled = true;
+                retirement.cancel();
+            }
+        }
+
+        final int index;
+        final long lo;
+        final long hi;
+        private final String[] columnNames;
+        private final CacheEntryWriter entryWriter;
+        private final Retirement retirement;
+        private final ExecutorService writers;
+        private final BlockingQueue<PendingRow> pending;
+        Connection conn;
+        PrintStream out;
+        File fragment;
+        int found;
+        private Thread readerThread;
+        private Thread drainThread;
+        private volatile Exception readFailure;
+        private volatile Exception drainFailure;
+    }
+
+    /**
+     * Tells the {@link CacheEntryWriter} when a row can no longer lose a race,
+     * which is once every row with a lower HISTORYID has been written.
+     * Inside a slice that is as soon as the row is drained; a later slice has
+     * to hold on to its fingerprints until all the slices before it are done.
+     * It only remembers the range of sequences it is holding, and once it holds
+     * {@code maxHeld} rows its drain waits, and so in time its reader does too,
+     * rather than letting a slow first slice pile the others' rows up on the heap.
+     */
+    static class Retirement
+    {
+        Retirement(CacheEntryWriter entryWriter, int slices, int maxHeld) {
+            this.entryWriter = entryWriter;
+            this.maxHeld = maxHeld;
+            this.finished = new boolean[slices];
+            this.held = new int[slices];
+            this.heldFrom = new long[slices];
+            this.heldThrough = new long[slices];
+        }
+
+        /**
+         * @throws InterruptedException if interrupted while waiting for room
+         */
+        synchronized void retire(int slice, String theSig, long sequence) throws InterruptedException {
+            while (slice > firstUnfinished && held[slice] >= maxHeld && ! cancelled) {
+                wait();
+            }
+            if (slice <= firstUnfinished) {
+                entryWriter.retire(theSig, sequence);
+                return;
+            }
+            if (0 == held[slice]++) {
+                heldFrom[slice] = sequence;
+            }
+            heldThrough[slice] = sequence;
+        }
+
+        synchronized void finished(int slice) {
+            finished[slice] = true;
+            while (firstUnfinished < finished.length && finished[firstUnfinished]) {
+                firstUnfinished++;
+                if (firstUnfinished < finished.length && 0 != held[firstUnfinished]) {
+                    entryWriter.retire(heldFrom[firstUnfinished], heldThrough[firstUnfinished]);
+                    held[firstUnfinished] = 0;
+                }
+            }
+            notifyAll();
+        }
+
+        /**
+         * Lets any slice waiting for room go, since the slices before it may never finish.
+         */
+        synchronized void cancel() {
+            cancelled = true;
+            notifyAll();
+        }
+
+        private final CacheEntryWriter entryWriter;
+        private final int maxHeld;
+        private final boolean[] finished;
+        private final int[] held;
+        private final long[] heldFrom;
+        private final long[] heldThrough;
+        private int firstUnfinished;
+        private boolean cancelled;
+    }
+
+    /**
+     * Copies the current row out of the cursor.
+     * @param wantTsv false to skip building {@link HistoryRow#tsvPrefix}
+     */
+    static HistoryRow readRow(ResultSet rs, String[] columnNames, boolean wantTsv)
+            throws SQLException, IOException {
+        final HistoryRow row = new HistoryRow();
+        final StringBuilder tsv = wantTsv ? new StringBuilder(256) : null;
+        for (int i = 1; i <= columnNames.length; i++) {
+            if (i != 1 && null != tsv) {
+                tsv.append('\t');
+            }
+            final String name = columnNames[i-1];
+            final String value;
+            if ("HISTORYID".equals(name)) {
+                row.id = value = rs.getString(i);
+            } else if ("HISTTYPE".equals(name)) {
+                value = rs.getString(i);
+                row.capture = (DATA_HIST_TYPE == Integer.parseInt(value));
+            } else if ("STATUSCODE".equals(name)) {
+                value = rs.getString(i);
+                row.status = rs.getInt(i);
+            } else if ("TIMESENTMILLIS".equals(name)) {
+                value = rs.getString(i);
+                row.millis = row.sentMillis = rs.getLong(i);
+            } else if ("TIMEELAPSEDMILLIS".equals(name)) {
+                value = rs.getString(i);
+                if (-1 == row.millis) {
+                    throw new IllegalStateException("Expected to have seen millis");
+                }
+                row.millis += rs.getInt(i);
+            } else if ("METHOD".equals(name)) {
+                row.method = value = rs.getString(i);
+            } else if ("URI".equals(name)) {
+                row.uri = value = rs.getString(i);
+            } else if ("REQHEADER".equals(name)) {
+                value = rs.getString(i)
+                        .replace("\r", "\\r")
+                        .replace("\n", "\\n")
+                        ;
+            } else if ("REQBODY".equals(name)) {
+                final byte[] body = readBytes(rs, i, name);
+                if (null == body) {
+                    continue;
+                }
+                row.requestBody = body;
+                value = 0 != body.length ? "<<data>>" : "NULL";
+            } else if ("RESHEADER".equals(name)) {
+                final String str = rs.getString(i);
+                if (null == str) {
+                    value = "NULL";
+                } else {
+                    // the escaped field goes straight onto the line, in the same pass
+                    row.responseHeaders = ResponseHeaders.get().split(str, tsv);
+                    continue;
+                }
+            } else if ("RESBODY".equals(name)) {
+                if (row.capture) {
+                    value = "<<data>>";
+                    final byte[] body = readBytes(rs, i, name);
+                    if (null == body) {
+                        continue;
+                    }
+                    row.responseBody = body;
+                } else {
+                    value = "NULL";
+                    LOG.fine(format("Skipping URI %s due to wrong HISTTYPE", row.uri));
+                }
+            } else {
+                value = rs.getString(i);
+            }
+            if (null != tsv) {
+                tsv.append(value);
+            }
+        }
+        row.tsvPrefix = null == tsv ? null : tsv.toString();
+        return row;
+    }
+
+    static byte[] readBytes(ResultSet rs, int i, String name) throws SQLException, IOException {
+        final InputStream stream = rs.getBinaryStream(i);
+        if (null == stream) {
+            LOG.warning(format("%n%n%nSkipping NULL %s%n", name));
+            return null;
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Dump.streamOut(stream, bytes);
+        stream.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * A TSV line waiting on its writer; the queue of these is what keeps the
+     * output in order and the reader on a leash.
+     */
+    static class PendingRow
+    {
+        static final PendingRow END = new PendingRow(-1, null, null);
+
+        PendingRow(long sequence, String tsvPrefix, Future<String> fingerprint) {
+            this.sequence = sequence;
+            this.tsvPrefix = tsvPrefix;
+            this.fingerprint = fingerprint;
+        }
+
+        final long sequence;
+        final String tsvPrefix;
+        final Future<String> fingerprint;
+    }
+
+    private static final Future<String> NOT_EXPORTED = CompletableFuture.completedFuture(null);
+
+    /**
+     * What the row's bodies count against {@link #queuedBytes}; a row bigger than
+     * the whole budget takes all of it, and so goes through on its own.
+     */
+    private int heldBytes(HistoryRow row) {
+        final long bytes = (null == row.requestBody ? 0 : row.requestBody.length) + row.responseBody.length;
+        return (int) Math.min(bytes, queueBytes());
+    }
+
+    private int queueBytes() {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, options.queueBytes));
+    }
+
+    static class NamedThreadFactory implements ThreadFactory
+    {
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            final Thread t = new Thread(r, format("%s-%d", prefix, counter.incrementAndGet()));
+            t.setDaemon(true);
+            return t;
+        }
+
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger();
+    }
+
+    private final String databaseFilename;
+    private final String onlyUrl;
+    private CacheSink sink;
+    private ExportMetrics metrics;
+    private ScheduledExecutorService progress;
+    /**
+     * Which of {@link ExportOptions#urls} got a cache entry.
+     */
+    private final ConcurrentHashMap<String, Boolean> exportedUrls = new ConcurrentHashMap<String, Boolean>();
+    private final ExportOptions options;
+    private final File checkpointFile;
+    private final File indexFile;
+    private FingerprintIndex.Builder fingerprintIndex;
+    private final HistoryQuery query;
+    private final SessionOpener session;
+    private FileOutputStream tsvStream;
+    private volatile long lastCheckpointMillis = System.currentTimeMillis();
+    /**
+     * Set by whichever slice fails first, so the others stop early.
+     */
+    private volatile boolean cancelled;
+    /**
+     * The bytes of body the rows read but not yet written may hold between them.
+     */
+    private Semaphore queuedBytes;
+    /**
+     * At most this many HISTORYIDs, counting from the first one found, per {@link #run};
+     * zero means all of them. The rest wait for the next run, as the checkpoint says.
+     */
+    long batchIds;
+    /**
+     * Keep the summaries and the "nothing new" complaints to ourselves.
+     */
+    boolean quiet;
+    /**
+     * The rest are for one of the sessions of a {@link SessionMerge}:
+     * its name, for the TSV's SOURCE column, and the bits above the HISTORYIDs
+     * which tell its rows from the other sessions' in {@link #sharedWinners}.
+     */
+    String source;
+    long sequenceBase;
+    FingerprintTable sharedWinners;
+    /**
+     * Written to by every session, and closed by whoever opened it.
+     */
+    CacheSink sharedSink;
+    /**
+     * Where the TSV goes, instead of {@code <db>.tsv}.
+     */
+    File tsvFile;
+    /**
+     * Where a {@link Follower}'s passes add their rows, to be written out when it stops,
+     * instead of each pass sorting and rewriting the whole index.
+     */
+    FingerprintIndex.Builder sharedIndex;
+    private int found;
+    private long lastHistoryId = -1;
+    private boolean capped;
+}
@@ -0,0 +1,264 @@
+package com.google.code.zaproxy;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+
+/**
+ * Scrapy's {@code FilesystemCacheStorage} layout: one directory per entry,
+ * {@code <spider>/<xx>/<fingerprint>/}, holding the four {@link CacheEntryWriter#ENTRY_FILES}.
+ * A later entry for the same fingerprint simply overwrites the files.
+ * <p>
+ * With a {@link BodyDedup} each distinct body is written once, to
+ * {@code <spider>/.bodies/<xx>/<sha1>}, and every {@code response_body} with that
+ * content is a hard link to it. Scrapy only ever opens an entry by its fingerprint,
+ * so it never looks in there. Where hard links cannot be made the body is written
+ * out as usual.
+ */
+class FilesystemCacheSink implements CacheSink
+{
+    private static final Logger LOG = Logger.getLogger(FilesystemCacheSink.class.getName());
+    private static final int SHARDS = 256;
+    private static final ThreadLocal<ByteBuffer> WRITE_BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(1 << 16);
+        }
+    };
+
+    FilesystemCacheSink(File spiderDir) {
+        this(spiderDir, null);
+    }
+
+    /**
+     * @param gzip how to compress each of the files, or null to leave them be
+     */
+    FilesystemCacheSink(File spiderDir, Gzip gzip) {
+        this(spiderDir, gzip, null);
+    }
+
+    /**
+     * @param dedup where to count the bodies that were linked, or null to write each one out
+     */
+    FilesystemCacheSink(File spiderDir, Gzip gzip, BodyDedup dedup) {
+        this.spiderDir = spiderDir;
+        this.gzip = gzip;
+        this.dedup = dedup;
+        this.bodyDir = new File(spiderDir, ".bodies");
+    }
+
+    File entryDir(String theSig) {
+        final String hashPart = theSig.substring(0, 2);
+        return new File(new File(spiderDir, hashPart), theSig);
+    }
+
+    /**
+     * Every file is moved into place whole and {@code pickled_meta} goes last,
+     * so an entry a crash cut short is missing at least that one.
+     */
+    @Override
+    public boolean isComplete(String theSig) {
+        final File outDir = entryDir(theSig);
+        for (final String name : CacheEntryWriter.ENTRY_FILES) {
+            if (! new File(outDir, name).isFile()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void write(CacheEntry entry) throws IOException {
+        final File outDir = entryDir(entry.fingerprint);
+        makeEntryDir(entry.fingerprint, outDir);
+        final File res_body = new File(outDir, "response_body");
+        if (null == dedup || ! writeLinked(res_body, entry.responseBody)) {
+            writeCompressed(res_body, entry.responseBody);
+        }
+        LOG.finer(format("Wrote %s<%s> to %s%n", entry.method, entry.url, res_body));
+        writeCompressed(new File(outDir, "response_headers"), entry.responseHeaders);
+        final MetaEncoder meta = MetaEncoder.get().encode(entry);
+        writeCompressed(new File(outDir, "meta.json"), meta.jsonBytes());
+        // last, so that once it is there the others are too, which is what isComplete goes by
+        writeCompressed(new File(outDir, "pickled_meta"), meta.pickleBytes());
+        LOG.fine(format("Output is in %s%n%n", outDir));
+    }
+
+    /**
+     * There are only 256 {@code <xx>} directories, so each is made (with its parents)
+     * the first time an entry lands in it and remembered after that; every other entry
+     * costs the one mkdir of its own directory instead of {@link File#mkdirs}
+     * looking at every parent again.
+     */
+    private void makeEntryDir(String theSig, File outDir) throws IOException {
+        final int shard = Integer.parseInt(theSig.substring(0, 2), 16);
+        if (0 == shardsMade.get(shard)) {
+            directoryCalls.incrementAndGet();
+            Files.createDirectories(outDir.getParentFile().toPath());
+            shardsMade.set(shard, 1);
+        }
+        directoryCalls.incrementAndGet();
+        try {
+            Files.createDirectory(outDir.toPath());
+        } catch (FileAlreadyExistsException e) {
+            // an earlier run, or an earlier row with this fingerprint
+            if (! outDir.isDirectory()) {
+                throw new IOException(format("Expected %s to be a directory", outDir));
+            }
+        } catch (NoSuchFileException e) {
+            // somebody took the shard away from under us
+            directoryCalls.incrementAndGet();
+            Files.createDirectories(outDir.toPath());
+        }
+    }
+
+    /**
+     * How many times a directory was asked for, once per shard and once per entry,
+     * which is the most mkdir calls that could have cost.
+     */
+    long directoryCalls() {
+        return directoryCalls.get();
+    }
+
+    /**
+     * Makes {@code res_body} a hard link to the stored copy of {@code body},
+     * storing it first if this is the first time it has been seen.
+     * @return false if the link could not be made, and {@code res_body} still needs writing
+     */
+    private boolean writeLinked(File res_body, byte[] body) throws IOException {
+        if (! linksWork) {
+            return false;
+        }
+        // a gzipped copy is not the same file as a plain one
+        final String key = dedup.key(body) + (null == gzip ? "" : ".gz");
+        final File stored = new File(new File(bodyDir, key.substring(0, 2)), key);
+        boolean isNew = false;
+        if (! stored.isFile()) {
+            try {
+                isNew = store(stored, key, body);
+            } catch (UnsupportedOperationException e) {
+                linksUnsupported();
+                return false;
+            }
+        }
+        final Path link = new File(res_body.getParentFile(), ".response_body.link").toPath();
+        try {
+            Files.deleteIfExists(link);
+            Files.createLink(link, stored.toPath());
+        } catch (UnsupportedOperationException e) {
+            linksUnsupported();
+            return false;
+        } catch (IOException e) {
+            // too many links to one file, or a cache root spread over devices
+            LOG.fine(format("Unable to link %s to %s: %s", res_body, stored, e));
+            return false;
+        }
+        Files.move(link, res_body.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (isNew) {
+            dedup.stored(stored.length());
+        } else {
+            dedup.linked(stored.length());
+        }
+        return true;
+    }
+
+    /**
+     * Writes {@code body} into a temp file beside {@code stored} and links it in under
+     * that name, which only succeeds if nobody else got there first, so that two writers
+     * meeting here with the same new body agree on which one of them stored it.
+     * @return whether it was us
+     */
+    private boolean store(File stored, String key, byte[] body) throws IOException {
+        final File shard = stored.getParentFile();
+        if (! shard.mkdirs() && ! shard.isDirectory()) {
+            throw new IOException(format("Unable to create %s", shard));
+        }
+        final File tmp = File.createTempFile("." + key, ".tmp", shard);
+        try {
+            write(tmp.toPath(), null == gzip ? body : gzip.compress(body));
+            Files.createLink(stored.toPath(), tmp.toPath());
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private void linksUnsupported() {
+        LOG.warning(format("Hard links are not supported under %s; writing every body out", bodyDir));
+        linksWork = false;
+    }
+
+    private void writeCompressed(File f, byte[] bytes) throws IOException {
+        writeAtomically(f, null == gzip ? bytes : gzip.compress(bytes));
+    }
+
+    /**
+     * Each entry is already in its own files, and nothing is held open between entries.
+     */
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * Writes into a temp file beside {@code dest} and moves it into place, so
+     * {@code dest} is either the old file or all of the new one, never part of it.
+     * The bytes go through this thread's direct buffer a chunk at a time rather
+     * than letting the JDK find a temporary direct buffer as big as the body.
+     */
+    static void writeAtomically(File dest, byte[] bytes) throws IOException {
+        writeAtomically(new File(dest.getParentFile(), "." + dest.getName() + ".tmp"), dest, bytes);
+    }
+
+    private static void writeAtomically(File tmpFile, File dest, byte[] bytes) throws IOException {
+        final Path tmp = tmpFile.toPath();
+        write(tmp, bytes);
+        Files.move(tmp, dest.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void write(Path tmp, byte[] bytes) throws IOException {
+        final ByteBuffer buffer = WRITE_BUFFER.get();
+        final FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        try {
+            for (int off = 0; off < bytes.length; ) {
+                final int n = Math.min(buffer.capacity(), bytes.length - off);
+                buffer.clear();
+                buffer.put(bytes, off, n);
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    ch.write(buffer);
+                }
+                off += n;
+            }
+        } finally {
+            ch.close();
+        }
+    }
+
+    private final File spiderDir;
+    private final Gzip gzip;
+    private final BodyDedup dedup;
+    private final File bodyDir;
+    private volatile boolean linksWork = true;
+    private final AtomicIntegerArray shardsMade = new AtomicIntegerArray(SHARDS);
+    private final AtomicLong directoryCalls = new AtomicLong();
+}
@@ -0,0 +1,159 @@
+package com.google.code.zaproxy;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.lang.String.format;
+
+/**
+ * Remembers the canonical form of recently seen URIs, and the fingerprint of
+ * recently seen body-less requests, since a scan-heavy session asks for the same
+ * few thousand URLs over and over.
+ * Each half gets half of the byte budget and forgets the least recently used entries first.
+ * It is safe to use from several threads at once.
+ * <p>
+ * Requests with a body are not remembered: telling two bodies apart would take
+ * a pass over the bytes, which is all hashing them costs anyway.
+ */
+class FingerprintCache
+{
+    private static final int SEGMENTS = 16;
+
+    FingerprintCache(long maxBytes) {
+        canonical = new Lru(maxBytes / 2);
+        fingerprints = new Lru(maxBytes / 2);
+    }
+
+    String canonicalUrl(String url) {
+        String uri = canonical.get(url);
+        if (null == uri) {
+            uri = Dump.SignatureParts.canonical(url);
+            canonical.put(url, uri);
+        }
+        return uri;
+    }
+
+    /**
+     * @param canonicalUrl as returned by {@link #canonicalUrl}
+     * @param body may be null
+     */
+    String fingerprint(String method, String canonicalUrl, byte[] body) {
+        if (null != body && 0 != body.length) {
+            return Fingerprinter.get().fingerprint(method, canonicalUrl, body);
+        }
+        // a method is a token, so it cannot have a space in it
+        final String key = method + ' ' + canonicalUrl;
+        String result = fingerprints.get(key);
+        if (null == result) {
+            result = Fingerprinter.get().fingerprint(method, canonicalUrl, body);
+            fingerprints.put(key, result);
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return format("URL cache: canonical %s; fingerprint %s", canonical, fingerprints);
+    }
+
+    /**
+     * A String to String LRU, split into segments so the writers do not
+     * all queue up on one lock.
+     */
+    static class Lru
+    {
+        /**
+         * Roughly what a LinkedHashMap entry and two Strings cost before their characters.
+         */
+        static final int ENTRY_OVERHEAD = 128;
+
+        Lru(long maxBytes) {
+            segments = new Segment[SEGMENTS];
+            for (int i = 0; i < segments.length; i++) {
+                segments[i] = new Segment(maxBytes / SEGMENTS);
+            }
+        }
+
+        String get(String key) {
+            final Segment seg = segmentFor(key);
+            final String result;
+            synchronized (seg) {
+                result = seg.map.get(key);
+            }
+            (null == result ? misses : hits).incrementAndGet();
+            return result;
+        }
+
+        void put(String key, String value) {
+            final Segment seg = segmentFor(key);
+            final long weight = weigh(key, value);
+            if (weight > seg.maxBytes) {
+                return;
+            }
+            synchronized (seg) {
+                final String old = seg.map.put(key, value);
+                if (null != old) {
+                    seg.bytes -= weigh(key, old);
+                }
+                seg.bytes += weight;
+                final Iterator<Map.Entry<String, String>> it = seg.map.entrySet().iterator();
+                while (seg.bytes > seg.maxBytes && it.hasNext()) {
+                    final Map.Entry<String, String> eldest = it.next();
+                    seg.bytes -= weigh(eldest.getKey(), eldest.getValue());
+                    it.remove();
+                    evictions.incrementAndGet();
+                }
+            }
+        }
+
+        long hits() {
+            return hits.get();
+        }
+
+        long misses() {
+            return misses.get();
+        }
+
+        long evictions() {
+            return evictions.get();
+        }
+
+        @Override
+        public String toString() {
+            final long h = hits(), m = misses();
+            return format("%d hits, %d misses (%.1f%%), %d evictions",
+                    h, m, 0 == h + m ? 0.0 : 100.0 * h / (h + m), evictions());
+        }
+
+        private static long weigh(String key, String value) {
+            return ENTRY_OVERHEAD + 2L * (key.length() + value.length());
+        }
+
+        private Segment segmentFor(String key) {
+            final int h = key.hashCode();
+            return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+        }
+
+        private final Segment[] segments;
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+    }
+
+    private static class Segment
+    {
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        /** in access order, so the first entry is the one to go */
+        final LinkedHashMap<String, String> map = new LinkedHashMap<String, String>(64, 0.75f, true);
+        final long maxBytes;
+        long bytes;
+    }
+
+    final Lru canonical;
+    final Lru fingerprints;
+}
@@ -0,0 +1,453 @@
+package com.google.code.zaproxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.lang.String.format;
+
+/**
+ * Which HISTORY rows a dump turned into which fingerprints, kept next to the TSV as
+ * {@code <db>.fpindex} so that a fingerprint or a URL can be looked up with a binary
+ * search over a mapped file instead of a grep through the TSV or another pass over HSQLDB.
+ * <pre>
+ *   header   64 bytes: "ZDFPIDX1", row count, the HISTORYID it goes up to, pool size
+ *   rows     48 bytes each, by fingerprint then HISTORYID:
+ *            [0, 20) the raw SHA1, [20, 24) STATUSCODE, [24, 32) HISTORYID,
+ *            [32, 40) TIMESENTMILLIS, [40, 48) where its URI starts in the pool
+ *   by URI   4 bytes each: row numbers, by URI bytes then HISTORYID
+ *   pool     each row's URI as a 4 byte length and its UTF-8
+ * </pre>
+ * Each section has to fit in one mapping, which caps an index at some 44 million rows.
+ */
+class FingerprintIndex
+{
+    private static final byte[] MAGIC = { 'Z', 'D', 'F', 'P', 'I', 'D', 'X', '1' };
+    private static final int HEADER = 64;
+    static final int RECORD = 48;
+    private static final int STATUS = 20;
+    private static final int ID = 24;
+    private static final int MILLIS = 32;
+    private static final int URI = 40;
+
+    static File fileFor(String databaseFilename) {
+        return new File(format("%s.fpindex", databaseFilename));
+    }
+
+    /**
+     * @return the index in {@code file}, or null if there is none
+     */
+    static FingerprintIndex load(File file) throws IOException {
+        if (! file.exists()) {
+            return null;
+        }
+        return new FingerprintIndex(file);
+    }
+
+    private FingerprintIndex(File file) throws IOException {
+        final FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER);
+            while (header.hasRemaining() && -1 != ch.read(header)) {
+                // keep going
+            }
+            header.flip();
+            final byte[] magic = new byte[MAGIC.length];
+            if (HEADER != header.remaining() || ! Arrays.equals(MAGIC, get(header, magic))) {
+                throw new IOException(format("%s is not a fingerprint index", file));
+            }
+            final long count = header.getLong(8);
+            this.through = header.getLong(16);
+            final long poolBytes = header.getLong(24);
+            if (count < 0 || count * RECORD > Integer.MAX_VALUE || poolBytes < 0 || poolBytes > Integer.MAX_VALUE
+                    || HEADER + count * (RECORD + 4) + poolBytes != ch.size()) {
+                throw new IOException(format("%s is damaged; delete it and dump again", file));
+            }
+            this.size = (int) count;
+            this.rows = ch.map(FileChannel.MapMode.READ_ONLY, HEADER, count * RECORD);
+            this.byUri = ch.map(FileChannel.MapMode.READ_ONLY, HEADER + count * RECORD, count * 4);
+            this.pool = ch.map(FileChannel.MapMode.READ_ONLY, HEADER + count * (RECORD + 4), poolBytes);
+        } finally {
+            ch.close();
+        }
+    }
+
+    /**
+     * @return every row with this fingerprint, oldest first
+     * @throws NumberFormatException unless {@code fingerprint} is 40 hex digits
+     */
+    List<Entry> lookup(String fingerprint) {
+        final byte[] key = Fingerprinter.unhex(fingerprint);
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (compareKey(mid, key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        final List<Entry> found = new ArrayList<Entry>();
+        for (int i = lo; i < size && 0 == compareKey(i, key); i++) {
+            found.add(entry(i));
+        }
+        return found;
+    }
+
+    /**
+     * @return every row whose URI starts with {@code prefix}, in URI order
+     */
+    List<Entry> grepUri(String prefix) {
+        final byte[] key = prefix.getBytes(Dump.ENCODING);
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (compareUri(byUri.getInt(4 * mid), key, false) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        final List<Entry> found = new ArrayList<Entry>();
+        for (int i = lo; i < size && 0 == compareUri(byUri.getInt(4 * i), key, true); i++) {
+            found.add(entry(byUri.getInt(4 * i)));
+        }
+        return found;
+    }
+
+    Entry entry(int row) {
+        final int at = row * RECORD;
+        final byte[] fingerprint = new byte[Fingerprinter.DIGEST_LENGTH];
+        for (int i = 0; i < fingerprint.length; i++) {
+            fingerprint[i] = rows.get(at + i);
+        }
+        return new Entry(Fingerprinter.hex(fingerprint), rows.getLong(at + ID), rows.getLong(at + MILLIS),
+                rows.getInt(at + STATUS), new String(uriBytes(row), Dump.ENCODING));
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the highest HISTORYID the dump that wrote this had looked at
+     */
+    long through() {
+        return through;
+    }
+
+    private int compareKey(int row, byte[] key) {
+        final int at = row * RECORD;
+        for (int i = 0; i < key.length; i++) {
+            final int d = (0xFF & rows.get(at + i)) - (0xFF & key[i]);
+            if (0 != d) {
+                return d;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param prefixOnly whether a URI longer than {@code key} but starting with it counts as equal
+     */
+    private int compareUri(int row, byte[] key, boolean prefixOnly) {
+        final int at = (int) rows.getLong(row * RECORD + URI);
+        final int length = pool.getInt(at);
+        final int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            final int d = (0xFF & pool.get(at + 4 + i)) - (0xFF & key[i]);
+            if (0 != d) {
+                return d;
+            }
+        }
+        return prefixOnly && length >= key.length ? 0 : length - key.length;
+    }
+
+    private byte[] uriBytes(int row) {
+        final int at = (int) rows.getLong(row * RECORD + URI);
+        final byte[] bytes = new byte[pool.getInt(at)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = pool.get(at + 4 + i);
+        }
+        return bytes;
+    }
+
+    private static byte[] get(ByteBuffer buffer, byte[] into) {
+        buffer.get(into);
+        return into;
+    }
+
+    /**
+     * One HISTORY row as the index has it.
+     */
+    static class Entry
+    {
+        Entry(String fingerprint, long historyId, long millis, int status, String uri) {
+            this.fingerprint = fingerprint;
+            this.historyId = historyId;
+            this.millis = millis;
+            this.status = status;
+            this.uri = uri;
+        }
+
+        /**
+         * Fingerprint, HISTORYID, STATUSCODE, TIMESENTMILLIS and URI, tab separated.
+         */
+        @Override
+        public String toString() {
+            return format("%s\t%d\t%d\t%d\t%s", fingerprint, historyId, status, millis, uri);
+        }
+
+        final String fingerprint;
+        final long historyId;
+        final long millis;
+        final int status;
+        final String uri;
+    }
+
+    /**
+     * Collects rows from any number of threads, in any order,
+     * and sorts them into a {@link FingerprintIndex} file at the end.
+     * The rows and the URIs wait outside the heap.
+     */
+    static class Builder
+    {
+        Builder() {
+            this.rows = ByteBuffer.allocateDirect(RECORD * 1024);
+            this.pool = ByteBuffer.allocateDirect(64 * 1024);
+        }
+
+        void add(String fingerprint, long historyId, long millis, int status, String uri) throws IOException {
+            add(Fingerprinter.unhex(fingerprint), historyId, millis, status, uri.getBytes(Dump.ENCODING));
+        }
+
+        synchronized void add(byte[] fingerprint, long historyId, long millis, int status, byte[] uri)
+                throws IOException {
+            if (rows.remaining() < RECORD) {
+                rows = grow(rows, RECORD);
+            }
+            if (pool.remaining() < 4 + uri.length) {
+                pool = grow(pool, 4 + uri.length);
+            }
+            rows.put(fingerprint);
+            rows.putInt(status);
+            rows.putLong(historyId);
+            rows.putLong(millis);
+            rows.putLong(pool.position());
+            pool.putInt(uri.length);
+            pool.put(uri);
+        }
+
+        /**
+         * Takes over the rows of {@code old} with a HISTORYID up to {@code upTo}.
+         */
+        void addAll(FingerprintIndex old, long upTo) throws IOException {
+            final byte[] fingerprint = new byte[Fingerprinter.DIGEST_LENGTH];
+            for (int row = 0; row < old.size; row++) {
+                final int at = row * RECORD;
+                final long historyId = old.rows.getLong(at + ID);
+                if (historyId > upTo) {
+                    continue;
+                }
+                for (int i = 0; i < fingerprint.length; i++) {
+                    fingerprint[i] = old.rows.get(at + i);
+                }
+                add(fingerprint, historyId, old.rows.getLong(at + MILLIS), old.rows.getInt(at + STATUS),
+                        old.uriBytes(row));
+            }
+        }
+
+        synchronized int size() {
+            return rows.position() / RECORD;
+        }
+
+        /**
+         * Sorts what has been added and replaces {@code file} with it in one step.
+         * @param through the highest HISTORYID the rows were picked from
+         */
+        synchronized void write(File file, long through) throws IOException {
+            final int n = size();
+            final int[] byKey = sequence(n);
+            sort(byKey, new Order() {
+                @Override
+                public int compare(int a, int b) {
+                    final int d = compareKeys(a, b);
+                    return 0 != d ? d : Long.compare(rows.getLong(a * RECORD + ID), rows.getLong(b * RECORD + ID));
+                }
+            });
+            final int[] rank = new int[n];
+            for (int i = 0; i < n; i++) {
+                rank[byKey[i]] = i;
+            }
+            final int[] byUri = sequence(n);
+            sort(byUri, new Order() {
+                @Override
+                public int compare(int a, int b) {
+                    final int d = compareUris(a, b);
+                    return 0 != d ? d : Long.compare(rows.getLong(a * RECORD + ID), rows.getLong(b * RECORD + ID));
+                }
+            });
+
+            final File tmp = new File(file.getPath() + ".tmp");
+            final FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            try {
+                final ByteBuffer buf = ByteBuffer.allocateDirect(1 << 16);
+                buf.put(MAGIC);
+                buf.putLong(n);
+                buf.putLong(through);
+                buf.putLong(pool.position());
+                while (buf.position() < HEADER) {
+                    buf.put((byte) 0);
+                }
+                for (int i = 0; i < n; i++) {
+                    if (buf.remaining() < RECORD) {
+                        drain(buf, ch);
+                    }
+                    final ByteBuffer row = rows.duplicate();
+                    row.limit(byKey[i] * RECORD + RECORD).position(byKey[i] * RECORD);
+                    buf.put(row);
+                }
+                for (int i = 0; i < n; i++) {
+                    if (buf.remaining() < 4) {
+                        drain(buf, ch);
+                    }
+                    buf.putInt(rank[byUri[i]]);
+                }
+                drain(buf, ch);
+                final ByteBuffer uris = pool.duplicate();
+                uris.flip();
+                while (uris.hasRemaining()) {
+                    ch.write(uris);
+                }
+                ch.force(false);
+            } finally {
+                ch.close();
+            }
+            Files.move(tmp.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        private int compareKeys(int a, int b) {
+            for (int i = 0; i < Fingerprinter.DIGEST_LENGTH; i++) {
+                final int d = (0xFF & rows.get(a * RECORD + i)) - (0xFF & rows.get(b * RECORD + i));
+                if (0 != d) {
+                    return d;
+                }
+            }
+            return 0;
+        }
+
+        private int compareUris(int a, int b) {
+            final int atA = (int) rows.getLong(a * RECORD + URI);
+            final int atB = (int) rows.getLong(b * RECORD + URI);
+            final int lengthA = pool.getInt(atA);
+            final int lengthB = pool.getInt(atB);
+            final int n = Math.min(lengthA, lengthB);
+            for (int i = 0; i < n; i++) {
+                final int d = (0xFF & pool.get(atA + 4 + i)) - (0xFF & pool.get(atB + 4 + i));
+                if (0 != d) {
+                    return d;
+                }
+            }
+            return lengthA - lengthB;
+        }
+
+        private static void drain(ByteBuffer buf, FileChannel ch) throws IOException {
+            buf.flip();
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+            buf.clear();
+        }
+
+        private static ByteBuffer grow(ByteBuffer buffer, int need) throws IOException {
+            final long capacity = Math.max(2L * buffer.capacity(), (long) buffer.position() + need);
+            if (capacity > Integer.MAX_VALUE) {
+                throw new IOException("The fingerprint index has outgrown 2 GB; dump with -no-index");
+            }
+            final ByteBuffer bigger = ByteBuffer.allocateDirect((int) capacity);
+            buffer.flip();
+            bigger.put(buffer);
+            return bigger;
+        }
+
+        private static int[] sequence(int n) {
+            final int[] a = new int[n];
+            for (int i = 0; i < n; i++) {
+                a[i] = i;
+            }
+            return a;
+        }
+
+        private ByteBuffer rows;
+        private ByteBuffer pool;
+    }
+
+    interface Order
+    {
+        int compare(int a, int b);
+    }
+
+    /**
+     * A stable merge sort of row numbers, since {@link Arrays} has none for
+     * primitives with a comparator and boxing millions of them is what we are avoiding.
+     */
+    static void sort(int[] a, Order order) {
+        final int[] scratch = new int[a.length];
+        int[] from = a;
+        int[] to = scratch;
+        final int run = 16;
+        for (int lo = 0; lo < a.length; lo += run) {
+            final int hi = Math.min(a.length, lo + run);
+            for (int i = lo + 1; i < hi; i++) {
+                final int v = a[i];
+                int j = i - 1;
+                while (j >= lo && order.compare(a[j], v) > 0) {
+                    a[j + 1] = a[j];
+                    j--;
+                }
+                a[j + 1] = v;
+            }
+        }
+        for (int width = run; width < a.length; width *= 2) {
+            for (int lo = 0; lo < a.length; lo += 2 * width) {
+                final int mid = Math.min(a.length, lo + width);
+                final int hi = Math.min(a.length, lo + 2 * width);
+                int i = lo;
+                int j = mid;
+                int k = lo;
+                while (i < mid && j < hi) {
+                    to[k++] = order.compare(from[j], from[i]) < 0 ? from[j++] : from[i++];
+                }
+                while (i < mid) {
+                    to[k++] = from[i++];
+                }
+                while (j < hi) {
+                    to[k++] = from[j++];
+                }
+            }
+            final int[] t = from;
+            from = to;
+            to = t;
+        }
+        if (from != a) {
+            System.arraycopy(from, 0, a, 0, a.length);
+        }
+    }
+
+    private final int size;
+    private final long through;
+    private final ByteBuffer rows;
+    private final ByteBuffer byUri;
+    private final ByteBuffer pool;
+}
@@ -0,0 +1,209 @@
+package com.google.code.zaproxy;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+import static java.lang.String.format;
+
+/**
+ * Which row each fingerprint's cache entry should come from, found in a pass over
+ * the session before anything is written, so that every entry is written exactly once.
+ * <p>
+ * It is an open addressing table, probed linearly, in one direct buffer, so
+ * that a session of millions of rows costs 40 bytes a slot outside the heap
+ * instead of a boxed map entry per row inside it. Each slot holds
+ * <pre>
+ *   [0, 20)  the raw SHA1
+ *   [20, 24) STATUSCODE
+ *   [24, 32) HISTORYID, which is never 0, so 0 marks an empty slot
+ *   [32, 40) TIMESENTMILLIS
+ * </pre>
+ * Any number of threads may fill it, taking turns in {@link #offer} (the fingerprinting,
+ * which is the slow part, happens before), and once they are all done, any number
+ * of threads can look things up.
+ */
+class FingerprintTable
+{
+    /**
+     * How to choose among the rows that share a fingerprint.
+     */
+    enum Policy
+    {
+        /**
+         * The one sent last, and of those the later row.
+         */
+        NEWEST,
+        /**
+         * The one sent first, and of those the earlier row.
+         */
+        OLDEST,
+        /**
+         * The earliest row with a 2xx status, or the last row if none has one.
+         */
+        FIRST_2XX;
+
+        /**
+         * @return the policy named {@code newest}, {@code oldest} or {@code first-2xx}, or null
+         */
+        static Policy parse(String name) {
+            for (final Policy p : values()) {
+                if (p.toString().equals(name)) {
+                    return p;
+                }
+            }
+            return null;
+        }
+
+        boolean beats(long id, long millis, int status, long heldId, long heldMillis, int heldStatus) {
+            switch (this) {
+                case NEWEST:
+                    return millis > heldMillis || (millis == heldMillis && id > heldId);
+                case OLDEST:
+                    return millis < heldMillis || (millis == heldMillis && id < heldId);
+                default:
+                    final boolean ok = is2xx(status);
+                    final boolean heldOk = is2xx(heldStatus);
+                    if (ok != heldOk) {
+                        return ok;
+                    }
+                    return ok ? id < heldId : id > heldId;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT).replace('_', '-');
+        }
+
+        private static boolean is2xx(int status) {
+            return 200 <= status && status < 300;
+        }
+    }
+
+    static final int SLOT = 40;
+    private static final int STATUS = 20;
+    private static final int ID = 24;
+    private static final int MILLIS = 32;
+    private static final int MAX_SLOTS = 1 << 25;
+
+    FingerprintTable(Policy policy) {
+        this.policy = policy;
+        allocate(1 << 12);
+    }
+
+    /**
+     * Puts the row in as its fingerprint's winner, unless the row already there beats it.
+     * @param fingerprint {@link Fingerprinter#DIGEST_LENGTH} bytes
+     */
+    synchronized void offer(byte[] fingerprint, long historyId, long millis, int status) {
+        if (0 == historyId) {
+            throw new IllegalArgumentException("HISTORYID 0 is how an empty slot looks");
+        }
+        final int at = find(fingerprint) * SLOT;
+        final long heldId = slots.getLong(at + ID);
+        if (0 == heldId) {
+            for (int i = 0; i < Fingerprinter.DIGEST_LENGTH; i++) {
+                slots.put(at + i, fingerprint[i]);
+            }
+        } else if (! policy.beats(historyId, millis, status,
+                heldId, slots.getLong(at + MILLIS), slots.getInt(at + STATUS))) {
+            return;
+        }
+        slots.putInt(at + STATUS, status);
+        slots.putLong(at + ID, historyId);
+        slots.putLong(at + MILLIS, millis);
+        if (0 == heldId && ++size > capacity / 4 * 3) {
+            grow();
+        }
+    }
+
+    /**
+     * @return the HISTORYID of the row that gets to write {@code fingerprint}, or 0 if none was offered
+     */
+    long winner(byte[] fingerprint) {
+        return slots.getLong(find(fingerprint) * SLOT + ID);
+    }
+
+    /**
+     * @param fingerprint as hex, the way {@link CacheEntryWriter} has it
+     */
+    long winner(String fingerprint) {
+        return winner(Fingerprinter.unhex(fingerprint));
+    }
+
+    int size() {
+        return size;
+    }
+
+    long offHeapBytes() {
+        return (long) capacity * SLOT;
+    }
+
+    Policy policy() {
+        return policy;
+    }
+
+    @Override
+    public String toString() {
+        return format("Winners (%s): %d fingerprints in %d KiB off-heap", policy, size, offHeapBytes() >> 10);
+    }
+
+    /**
+     * @return the slot holding {@code fingerprint}, or else the empty one where it would go
+     */
+    private int find(byte[] fingerprint) {
+        // a SHA1 is as well spread as any hash of it would be
+        final int hash = (0xFF & fingerprint[0]) << 24 | (0xFF & fingerprint[1]) << 16
+                | (0xFF & fingerprint[2]) << 8 | (0xFF & fingerprint[3]);
+        final int mask = capacity - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            final int at = slot * SLOT;
+            if (0 == slots.getLong(at + ID) || sameKey(at, fingerprint)) {
+                return slot;
+            }
+        }
+    }
+
+    private boolean sameKey(int at, byte[] fingerprint) {
+        for (int i = 0; i < Fingerprinter.DIGEST_LENGTH; i++) {
+            if (slots.get(at + i) != fingerprint[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void grow() {
+        if (capacity >= MAX_SLOTS) {
+            throw new IllegalStateException(format("More than %d distinct fingerprints", size));
+        }
+        final ByteBuffer old = slots;
+        final int oldCapacity = capacity;
+        allocate(capacity << 1);
+        final byte[] key = new byte[Fingerprinter.DIGEST_LENGTH];
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            final int from = slot * SLOT;
+            if (0 == old.getLong(from + ID)) {
+                continue;
+            }
+            for (int i = 0; i < key.length; i++) {
+                key[i] = old.get(from + i);
+            }
+            final int to = find(key) * SLOT;
+            for (int i = 0; i < SLOT; i++) {
+                slots.put(to + i, old.get(from + i));
+            }
+        }
+    }
+
+    private void allocate(int slotCount) {
+        capacity = slotCount;
+        // a direct buffer starts out zeroed, which is every slot empty
+        slots = ByteBuffer.allocateDirect(slotCount * SLOT);
+    }
+
+    private final Policy policy;
+    private ByteBuffer slots;
+    private int capacity;
+    private int size;
+}
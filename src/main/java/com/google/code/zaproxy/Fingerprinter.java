@@ -0,0 +1,188 @@
+package com.google.code.zaproxy;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import static java.lang.String.format;
+
+/**
+ * The Scrapy fingerprint, SHA1(method + canonical url + request body), for one
+ * thread at a time: the digest and the scratch buffer belong to the instance
+ * and are reset between rows instead of being looked up and thrown away.
+ * Use {@link #get()} to borrow the calling thread's one.
+ */
+final class Fingerprinter
+{
+    static final int DIGEST_LENGTH = 20;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final MessageDigest PROTOTYPE;
+    static {
+        try {
+            PROTOTYPE = MessageDigest.getInstance("SHA1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Seriously?!", e);
+        }
+    }
+    private static final ThreadLocal<Fingerprinter> INSTANCE = new ThreadLocal<Fingerprinter>() {
+        @Override
+        protected Fingerprinter initialValue() {
+            return new Fingerprinter();
+        }
+    };
+
+    static Fingerprinter get() {
+        return INSTANCE.get();
+    }
+
+    /**
+     * A fresh SHA1, copied from one looked up once rather than asking the providers again.
+     */
+    static MessageDigest newDigest() {
+        try {
+            return (MessageDigest) PROTOTYPE.clone();
+        } catch (CloneNotSupportedException e) {
+            try {
+                return MessageDigest.getInstance(PROTOTYPE.getAlgorithm());
+            } catch (NoSuchAlgorithmException e1) {
+                throw new RuntimeException("Seriously?!", e1);
+            }
+        }
+    }
+
+    Fingerprinter() {
+        sha1 = newDigest();
+        // the same '?' for a lone surrogate that String.getBytes gives
+        encoder = Dump.ENCODING.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * @param canonicalUrl already through {@link Dump#canonicalUrl}
+     * @param body may be null
+     * @return the raw 20 bytes
+     */
+    byte[] digest(String method, String canonicalUrl, byte[] body) {
+        final byte[] result = new byte[DIGEST_LENGTH];
+        digest(method, canonicalUrl, body, result);
+        return result;
+    }
+
+    /**
+     * Same as {@link #digest(String, String, byte[])} but into {@code out}, which must hold 20 bytes.
+     */
+    void digest(String method, String canonicalUrl, byte[] body, byte[] out) {
+        sha1.reset();
+        update(method);
+        update(canonicalUrl);
+        if (null != body) {
+            sha1.update(body, 0, body.length);
+        }
+        try {
+            sha1.digest(out, 0, DIGEST_LENGTH);
+        } catch (DigestException e) {
+            throw new IllegalArgumentException("Expected room for 20 bytes", e);
+        }
+    }
+
+    /**
+     * @return the 40 lower-case hex characters Scrapy names the directory after
+     */
+    String fingerprint(String method, String canonicalUrl, byte[] body) {
+        digest(method, canonicalUrl, body, scratchDigest);
+        return hex(scratchDigest);
+    }
+
+    /**
+     * Same as {@link #fingerprint(String, String, byte[])} for a body in a buffer,
+     * such as a mapped file, which is read from its position to its limit.
+     */
+    String fingerprint(String method, String canonicalUrl, ByteBuffer body) {
+        sha1.reset();
+        update(method);
+        update(canonicalUrl);
+        sha1.update(body);
+        try {
+            sha1.digest(scratchDigest, 0, DIGEST_LENGTH);
+        } catch (DigestException e) {
+            throw new IllegalArgumentException("Expected room for 20 bytes", e);
+        }
+        return hex(scratchDigest);
+    }
+
+    static String hex(byte[] digest) {
+        final char[] result = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            final int b = 0xFF & digest[i];
+            result[2 * i] = HEX_DIGITS[b >>> 4];
+            result[2 * i + 1] = HEX_DIGITS[b & 0xF];
+        }
+        return new String(result);
+    }
+
+    /**
+     * The other way from {@link #hex}.
+     * @throws NumberFormatException unless {@code hex} is 40 hex digits
+     */
+    static byte[] unhex(String hex) {
+        if (2 * DIGEST_LENGTH != hex.length()) {
+            throw new NumberFormatException(format("Expected %d hex digits, not \"%s\"", 2 * DIGEST_LENGTH, hex));
+        }
+        final byte[] raw = new byte[DIGEST_LENGTH];
+        for (int i = 0; i < raw.length; i++) {
+            raw[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return raw;
+    }
+
+    private void update(String s) {
+        final int len = s.length();
+        if (buffer.capacity() < len) {
+            buffer = ByteBuffer.allocate(Math.max(len, 2 * buffer.capacity()));
+        }
+        buffer.clear();
+        int i = 0;
+        for (; i < len; i++) {
+            final char c = s.charAt(i);
+            if (c >= 0x80) {
+                break;
+            }
+            buffer.put((byte) c);
+        }
+        if (i < len) {
+            encodeRest(s, i);
+        }
+        sha1.update(buffer.array(), 0, buffer.position());
+    }
+
+    /**
+     * Everything from {@code from} on, which starts with something that is not ASCII.
+     */
+    private void encodeRest(String s, int from) {
+        final CharBuffer in = CharBuffer.wrap(s, from, s.length());
+        encoder.reset();
+        while (encoder.encode(in, buffer, true).isOverflow()) {
+            grow();
+        }
+        while (encoder.flush(buffer).isOverflow()) {
+            grow();
+        }
+    }
+
+    private void grow() {
+        final ByteBuffer bigger = ByteBuffer.allocate(2 * buffer.capacity());
+        buffer.flip();
+        bigger.put(buffer);
+        buffer = bigger;
+    }
+
+    private final MessageDigest sha1;
+    private final CharsetEncoder encoder;
+    private final byte[] scratchDigest = new byte[DIGEST_LENGTH];
+    private ByteBuffer buffer = ByteBuffer.allocate(1024);
+}
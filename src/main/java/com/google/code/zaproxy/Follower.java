@@ -0,0 +1,135 @@
+package com.google.code.zaproxy;
+
+import java.io.File;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+
+/**
+ * Keeps a cache in step with a session ZAP is still writing to.
+ * The first pass is an ordinary dump (or a {@link ExportOptions#resume} of one);
+ * after that each pass opens fresh connections, reads the rows above the
+ * {@link Checkpoint}'s HISTORYID through the same {@link ExportPipeline}, appends them to
+ * the TSV and moves the checkpoint along, so stopping it at any point loses nothing.
+ * <p>
+ * Passes are capped at {@link #batchIds} HISTORYIDs, which doubles while each pass
+ * fills its batch and halves while they come back mostly empty; the wait between passes
+ * is skipped while the session is ahead of us, halves while rows keep arriving and
+ * doubles, up to {@link #MAX_POLL_MILLIS}, while nothing does.
+ * <p>
+ * The passes add their rows to one {@link FingerprintIndex} in memory, which is written
+ * out once {@link #stop} is called; should it never be, the next dump to resume catches
+ * the index up from HISTORY.
+ */
+class Follower
+{
+    private static final Logger LOG = Logger.getLogger(Follower.class.getName());
+    static final long MIN_POLL_MILLIS = 250;
+    static final long MAX_POLL_MILLIS = 15000;
+    static final long MIN_BATCH = 100;
+    static final long MAX_BATCH = 100000;
+
+    /**
+     * @param options taken over: from the second pass on they are switched to
+     * {@link ExportOptions#resume} without {@link ExportOptions#since} or progress lines
+     */
+    Follower(String databaseFilename, ExportOptions options) {
+        this.databaseFilename = databaseFilename;
+        this.options = options;
+        this.batchIds = Math.max(MIN_BATCH, Math.min(MAX_BATCH, options.pageRows));
+    }
+
+    /**
+     * Polls until {@link #stop} is called; a failed pass is thrown, but its rows
+     * are above the checkpoint and so will be read again by the next follower.
+     */
+    void run() throws Exception {
+        new ExportPipeline(databaseFilename, null, options).run();
+        options.resume = true;
+        options.since = null;
+        options.progressSeconds = 0;
+        final File indexFile = FingerprintIndex.fileFor(databaseFilename);
+        FingerprintIndex.Builder index = null;
+        long indexedThrough = 0;
+        if (options.index) {
+            index = new FingerprintIndex.Builder();
+            final FingerprintIndex written = FingerprintIndex.load(indexFile);
+            if (null != written) {
+                indexedThrough = written.through();
+                index.addAll(written, indexedThrough);
+            }
+        }
+        final long firstIndexed = indexedThrough;
+        long pollMillis = MIN_POLL_MILLIS;
+        while (pause(pollMillis)) {
+            final ExportPipeline pass = new ExportPipeline(databaseFilename, null, options);
+            pass.batchIds = batchIds;
+            pass.quiet = true;
+            pass.sharedIndex = index;
+            pass.run();
+            passes++;
+            indexedThrough = Math.max(indexedThrough, pass.lastHistoryId());
+            final long written = pass.metrics().entries();
+            entries += written;
+            if (pass.capped()) {
+                batchIds = Math.min(MAX_BATCH, 2 * batchIds);
+                pollMillis = 0;
+            } else if (0 < pass.found()) {
+                if (pass.found() < batchIds / 4) {
+                    batchIds = Math.max(MIN_BATCH, batchIds / 2);
+                }
+                pollMillis = Math.max(MIN_POLL_MILLIS, pollMillis / 2);
+            } else {
+                pollMillis = Math.min(MAX_POLL_MILLIS, Math.max(MIN_POLL_MILLIS, 2 * pollMillis));
+            }
+            if (0 < pass.found()) {
+                System.out.printf("Followed HISTORYID %d, %d new cache entries%n", pass.lastHistoryId(), written);
+            }
+            LOG.fine(format("pass %d: %d capture rows, %d entries, next batch %d ids in %d ms",
+                    passes, pass.found(), written, batchIds, pollMillis));
+        }
+        if (null != index && indexedThrough > firstIndexed) {
+            index.write(indexFile, indexedThrough);
+            System.out.printf("Indexed %d rows in %s%n", index.size(), indexFile);
+        }
+    }
+
+    /**
+     * Ends {@link #run} once the pass in hand, if any, is done.
+     */
+    synchronized void stop() {
+        stopped = true;
+        notifyAll();
+    }
+
+    /**
+     * @return false once stopped
+     */
+    private synchronized boolean pause(long millis) throws InterruptedException {
+        final long until = System.currentTimeMillis() + millis;
+        long left = millis;
+        while (! stopped && 0 < left) {
+            wait(left);
+            left = until - System.currentTimeMillis();
+        }
+        return ! stopped;
+    }
+
+    long batchIds() {
+        return batchIds;
+    }
+
+    /**
+     * @return how many cache entries the passes after the first one wrote
+     */
+    long entries() {
+        return entries;
+    }
+
+    private final String databaseFilename;
+    private final ExportOptions options;
+    private long batchIds;
+    private long passes;
+    private long entries;
+    private boolean stopped;
+}
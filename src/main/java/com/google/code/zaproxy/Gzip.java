@@ -0,0 +1,86 @@
+package com.google.code.zaproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * gzip at a fixed level, as Scrapy's {@code HTTPCACHE_GZIP} reads it back with {@code gzip.open}.
+ * Each thread keeps one {@link Deflater} and resets it between files,
+ * rather than each file allocating and freeing its own native zlib state
+ * the way {@link java.util.zip.GZIPOutputStream} does.
+ */
+final class Gzip
+{
+    private static final byte[] HEADER = {
+            0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0
+    };
+
+    Gzip(final int level) {
+        this.level = level;
+        this.deflaters = new ThreadLocal<Deflater>() {
+            @Override
+            protected Deflater initialValue() {
+                return new Deflater(level, true);
+            }
+        };
+    }
+
+    /**
+     * Everything written to the result is compressed into {@code out};
+     * closing it finishes the gzip member and closes {@code out}.
+     */
+    OutputStream wrap(OutputStream out) throws IOException {
+        return new GzipStream(out, deflaters.get());
+    }
+
+    byte[] compress(byte[] data) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + data.length / 4);
+        final OutputStream gz = wrap(bytes);
+        gz.write(data);
+        gz.close();
+        return bytes.toByteArray();
+    }
+
+    final int level;
+    private final ThreadLocal<Deflater> deflaters;
+
+    private static class GzipStream extends DeflaterOutputStream
+    {
+        GzipStream(OutputStream out, Deflater def) throws IOException {
+            super(out, def, 1 << 13);
+            def.reset();
+            out.write(HEADER);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            crc.update(b, off, len);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            super.finish();
+            writeInt((int) crc.getValue());
+            writeInt((int) def.getBytesRead());
+        }
+
+        private void writeInt(int n) throws IOException {
+            out.write(n);
+            out.write(n >>> 8);
+            out.write(n >>> 16);
+            out.write(n >>> 24);
+        }
+
+        private final CRC32 crc = new CRC32();
+        private boolean finished;
+    }
+}
@@ -0,0 +1,225 @@
+package com.google.code.zaproxy;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the SELECTs against HISTORY so the filtering happens inside HSQLDB
+ * and only the columns somebody is going to look at come back.
+ * Without a TSV that is just what a cache entry is made of, and only for
+ * capture rows; with a TSV it is every column, but RESBODY only for the
+ * rows that will actually be written.
+ */
+class HistoryQuery
+{
+    /**
+     * What {@link CacheEntryWriter} needs, in the order
+     * {@link ExportPipeline#readRow} needs to see them.
+     */
+    static final String[] ENTRY_COLUMNS = {
+            "HISTORYID", "HISTTYPE", "METHOD", "URI", "STATUSCODE",
+            "TIMESENTMILLIS", "TIMEELAPSEDMILLIS", "REQBODY", "RESHEADER", "RESBODY",
+    };
+    /**
+     * Where {@link #attach} puts {@link ExportOptions#urls}, one per connection.
+     */
+    static final String WANTED_URI = "WANTED_URI";
+    static final String CAPTURED_RESBODY = String.format(
+            "CASE WHEN HISTTYPE = %d THEN RESBODY END AS RESBODY", ExportPipeline.DATA_HIST_TYPE);
+
+    HistoryQuery(ExportOptions options, String onlyUrl) {
+        this.options = options;
+        this.onlyUrl = onlyUrl;
+    }
+
+    /**
+     * Works out the select list, which for a TSV means asking the table what it has.
+     */
+    void prepare(Connection conn) throws SQLException {
+        final StringBuilder sb = new StringBuilder();
+        if (options.tsv) {
+            final Statement st = conn.createStatement();
+            try {
+                final ResultSet rs = st.executeQuery("SELECT * FROM HISTORY WHERE 1 = 0");
+                final ResultSetMetaData md = rs.getMetaData();
+                for (int i = 1; i <= md.getColumnCount(); i++) {
+                    if (1 != i) {
+                        sb.append(", ");
+                    }
+                    final String name = md.getColumnLabel(i);
+                    sb.append("RESBODY".equals(name) ? CAPTURED_RESBODY : name);
+                }
+                rs.close();
+            } finally {
+                st.close();
+            }
+        } else {
+            for (int i = 0; i < ENTRY_COLUMNS.length; i++) {
+                if (0 != i) {
+                    sb.append(", ");
+                }
+                sb.append(ENTRY_COLUMNS[i]);
+            }
+        }
+        projection = sb.toString();
+        where = buildWhere();
+        attach(conn);
+    }
+
+    /**
+     * Readies another connection for these queries, which for a list of URIs
+     * means loading them into a session table the page queries can join against,
+     * so thousands of them still cost one pass over HISTORY.
+     * {@link #prepare} has already done this for its own connection.
+     */
+    void attach(Connection conn) throws SQLException {
+        if (null == options.urls) {
+            return;
+        }
+        final Statement st = conn.createStatement();
+        try {
+            st.execute("DECLARE LOCAL TEMPORARY TABLE " + WANTED_URI +
+                    " (URI VARCHAR(1048576)) ON COMMIT PRESERVE ROWS");
+        } finally {
+            st.close();
+        }
+        final PreparedStatement insert = conn.prepareStatement(
+                "INSERT INTO SESSION." + WANTED_URI + " (URI) VALUES (?)");
+        try {
+            int batched = 0;
+            for (final String url : options.urls) {
+                insert.setString(1, url);
+                insert.addBatch();
+                if (0 == ++batched % 1000) {
+                    insert.executeBatch();
+                }
+            }
+            insert.executeBatch();
+        } finally {
+            insert.close();
+        }
+    }
+
+    /**
+     * One page of one slice; bind with {@link #bindPage}.
+     */
+    String pageSql() {
+        return "SELECT " + projection + " FROM HISTORY" +
+                " WHERE HISTORYID > ? AND HISTORYID <= ?" + where +
+                " ORDER BY HISTORYID LIMIT " + options.pageRows;
+    }
+
+    void bindPage(PreparedStatement st, long after, long upTo) throws SQLException {
+        st.setLong(1, after);
+        st.setLong(2, upTo);
+        bindFilters(st, 3);
+    }
+
+    /**
+     * One page of what {@link FingerprintTable} needs to pick a winner from among
+     * the rows that will get a cache entry, leaving the headers and RESBODY behind;
+     * bind with {@link #bindPage}.
+     */
+    String winnersSql() {
+        return "SELECT HISTORYID, METHOD, URI, STATUSCODE, TIMESENTMILLIS, REQBODY FROM HISTORY" +
+                " WHERE HISTORYID > ? AND HISTORYID <= ?" +
+                " AND HISTTYPE = " + ExportPipeline.DATA_HIST_TYPE + " AND RESBODY IS NOT NULL" + where +
+                " ORDER BY HISTORYID LIMIT " + options.pageRows;
+    }
+
+    /**
+     * {@code COUNT(*)} of the rows we want in a HISTORYID range; bind with {@link #bindPage}.
+     */
+    String countSql() {
+        return "SELECT COUNT(*) FROM HISTORY WHERE HISTORYID > ? AND HISTORYID <= ?" + where;
+    }
+
+    /**
+     * {@code MIN(HISTORYID), MAX(HISTORYID)} of the rows we want; bind with {@link #bindBounds}.
+     */
+    String boundsSql(Long since) {
+        return "SELECT MIN(HISTORYID), MAX(HISTORYID) FROM HISTORY WHERE " +
+                (null == since ? "1 = 1" : "HISTORYID > ?") + where;
+    }
+
+    void bindBounds(PreparedStatement st, Long since) throws SQLException {
+        int p = 1;
+        if (null != since) {
+            st.setLong(p++, since);
+        }
+        bindFilters(st, p);
+    }
+
+    private String buildWhere() {
+        params.clear();
+        final StringBuilder sb = new StringBuilder();
+        if (! options.tsv) {
+            // nobody wants the other rows
+            sb.append(" AND HISTTYPE = ").append(ExportPipeline.DATA_HIST_TYPE);
+        }
+        if (null != onlyUrl) {
+            sb.append(" AND URI = ?");
+            params.add(onlyUrl);
+        }
+        if (null != options.urls) {
+            sb.append(" AND URI IN (SELECT URI FROM SESSION.").append(WANTED_URI).append(')');
+        }
+        in(sb, "HISTTYPE", options.histTypes);
+        in(sb, "METHOD", options.methods);
+        in(sb, "STATUSCODE", options.statusCodes);
+        if (null != options.host) {
+            sb.append(" AND (");
+            final String host = escapeLike(options.host);
+            final String[] schemes = {"http", "https"};
+            final String[] tails = {"", "/%", ":%", "?%"};
+            for (int s = 0; s < schemes.length; s++) {
+                for (int t = 0; t < tails.length; t++) {
+                    if (0 != s || 0 != t) {
+                        sb.append(" OR ");
+                    }
+                    sb.append("URI LIKE ? ESCAPE '\\'");
+                    params.add(schemes[s] + "://" + host + tails[t]);
+                }
+            }
+            sb.append(')');
+        }
+        if (null != options.sentFrom) {
+            sb.append(" AND TIMESENTMILLIS >= ?");
+            params.add(options.sentFrom);
+        }
+        if (null != options.sentTo) {
+            sb.append(" AND TIMESENTMILLIS < ?");
+            params.add(options.sentTo);
+        }
+        return sb.toString();
+    }
+
+    private void in(StringBuilder sb, String column, List<?> values) {
+        if (null == values || values.isEmpty()) {
+            return;
+        }
+        sb.append(" AND ").append(column).append(" IN (");
+        for (int i = 0; i < values.size(); i++) {
+            sb.append(0 == i ? "?" : ", ?");
+            params.add(values.get(i));
+        }
+        sb.append(')');
+    }
+
+    private void bindFilters(PreparedStatement st, int p) throws SQLException {
+        for (final Object param : params) {
+            st.setObject(p++, param);
+        }
+    }
+
+    static String escapeLike(String s) {
+        return s.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    private final ExportOptions options;
+    private final String onlyUrl;
+    private final List<Object> params = new ArrayList<Object>();
+    private String projection;
+    private String where;
+}
@@ -0,0 +1,42 @@
+package com.google.code.zaproxy;
+
+/**
+ * One row of the ZAP HISTORY table, copied out of the {@link java.sql.ResultSet}
+ * so it can be handed to a writer thread after the cursor has moved on.
+ */
+class HistoryRow
+{
+    /**
+     * The HISTORYID as a number, which orders rows across slices.
+     */
+    public long sequence;
+    public String id;
+    public boolean capture;
+    public int status = -1;
+    /**
+     * The time the response finished, which is what Scrapy calls the timestamp.
+     */
+    public long millis = -1;
+    /**
+     * TIMESENTMILLIS itself.
+     */
+    public long sentMillis = -1;
+    public String method;
+    public String uri;
+    /**
+     * {@code null} when the column was NULL, which is distinct from empty.
+     */
+    public byte[] requestBody;
+    /**
+     * The response headers, as UTF-8, without the status line or trailing CRLF.
+     */
+    public byte[] responseHeaders;
+    /**
+     * Only populated for capture rows with a non-NULL RESBODY.
+     */
+    public byte[] responseBody;
+    /**
+     * Every column of the TSV line except the trailing FINGERPRINT.
+     */
+    public String tsvPrefix;
+}
@@ -0,0 +1,138 @@
+package com.google.code.zaproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+
+/**
+ * Encodes an entry's metadata, {@code url}, {@code status}, {@code method},
+ * {@code timestamp} and {@code response_url}, into both {@code pickled_meta} and
+ * {@code meta.json} in one go, straight into two reusable buffers.
+ * Use {@link #get()} to borrow the calling thread's one; it is only good until
+ * that thread's next {@link #encode}.
+ * <p>
+ * The pickle is what Scrapy itself writes, down to the opcodes;
+ * this is {@code pickletools.dis} of one:
+ * <pre>
+ *     0: \x80 PROTO      2
+ *     2: }    EMPTY_DICT
+ *     3: q    BINPUT     1
+ *     5: (    MARK
+ *     6: U        SHORT_BINSTRING 'url'
+ *    11: q        BINPUT     2
+ *    13: U        SHORT_BINSTRING 'facebook://108215512553828'
+ *    41: q        BINPUT     3
+ *    43: U        SHORT_BINSTRING 'status'
+ *    51: q        BINPUT     4
+ *    53: M        BININT2    404
+ *    56: U        SHORT_BINSTRING 'method'
+ *    64: q        BINPUT     5
+ *    66: U        SHORT_BINSTRING 'GET'
+ *    71: q        BINPUT     6
+ *    73: U        SHORT_BINSTRING 'timestamp'
+ *    84: q        BINPUT     7
+ *    86: G        BINFLOAT   1393904644.079956
+ *    95: U        SHORT_BINSTRING 'response_url'
+ *   109: q        BINPUT     8
+ *   111: h        BINGET     3
+ *   113: u        SETITEMS   (MARK at 5)
+ *   114: .    STOP
+ * </pre>
+ * so {@code response_url} costs two bytes. The timestamp is in seconds, as
+ * Python's {@code time()} gives it.
+ */
+final class MetaEncoder
+{
+    private static final ThreadLocal<MetaEncoder> INSTANCE = new ThreadLocal<MetaEncoder>() {
+        @Override
+        protected MetaEncoder initialValue() {
+            return new MetaEncoder();
+        }
+    };
+
+    static MetaEncoder get() {
+        return INSTANCE.get();
+    }
+
+    MetaEncoder encode(CacheEntry entry) {
+        return encode(entry.method, entry.url, entry.status, entry.millis);
+    }
+
+    MetaEncoder encode(String method, String url, int status, long millis) {
+        final double seconds = millis / 1000.0;
+        pickle.reset();
+        pickle.emptyDict().put(1).mark();
+        pickle.str("url").put(2).str(url).put(3);
+        pickle.str("status").put(4).value(status);
+        pickle.str("method").put(5).str(method).put(6);
+        pickle.str("timestamp").put(7).value(seconds);
+        pickle.str("response_url").put(8).get(3);
+        pickle.setItems().stop();
+
+        json.reset();
+        jsonString("url", url);
+        json.write(',');
+        jsonKey("status");
+        ascii(String.valueOf(status));
+        json.write(',');
+        jsonString("method", method);
+        json.write(',');
+        jsonKey("timestamp");
+        ascii(BigDecimal.valueOf(millis, 3).toPlainString());
+        json.write(',');
+        jsonString("response_url", url);
+        return this;
+    }
+
+    byte[] pickleBytes() {
+        final ByteArrayOutputStream copy = new ByteArrayOutputStream(pickle.size());
+        try {
+            pickle.writeTo(copy);
+        } catch (IOException e) {
+            throw new IllegalStateException("A ByteArrayOutputStream cannot fail", e);
+        }
+        return copy.toByteArray();
+    }
+
+    byte[] jsonBytes() {
+        return json.toByteArray();
+    }
+
+    private void jsonString(String key, String value) {
+        jsonKey(key);
+        json.write('"');
+        final int len = value.length();
+        for (int i = 0; i < len; i++) {
+            final char c = value.charAt(i);
+            if ('"' == c || '\\' == c) {
+                json.write('\\');
+                json.write(c);
+            } else if (c < 0x20) {
+                ascii(String.format("\\u%04x", (int) c));
+            } else if (c < 0x80) {
+                json.write(c);
+            } else {
+                final int end = Character.isHighSurrogate(c) && i + 1 < len ? i + 2 : i + 1;
+                final byte[] utf8 = value.substring(i, end).getBytes(Dump.ENCODING);
+                json.write(utf8, 0, utf8.length);
+                i = end - 1;
+            }
+        }
+        json.write('"');
+    }
+
+    private void jsonKey(String key) {
+        json.write('"');
+        ascii(key);
+        ascii("\": ");
+    }
+
+    private void ascii(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            json.write(s.charAt(i));
+        }
+    }
+
+    private final Pickler pickle = new Pickler();
+    private final ByteArrayOutputStream json = new ByteArrayOutputStream(256);
+}
@@ -0,0 +1,250 @@
+package com.google.code.zaproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+import static java.lang.String.format;
+
+/**
+ * Writes Python pickles, protocol 2, of the few types a cache entry is made of:
+ * {@code String} becomes a unicode object, {@code byte[]} a byte string,
+ * {@code Integer}/{@code Long} an int, {@code Float}/{@code Double} a float,
+ * {@code Map} a dict and {@code List} a list, in iteration order.
+ * <p>
+ * Protocol 2 has no opcode for a byte string that Python 3 will read back as
+ * {@code bytes}, so those go out the way Python 3 itself pickles them at protocol 2,
+ * {@code _codecs.encode(u'<the bytes as latin-1>', 'latin1')},
+ * which Python 2 turns back into a {@code str} just the same.
+ * {@link #value} keeps no memo, which pickle doesn't require; callers that want
+ * one, to write the same object twice, can lay the opcodes down themselves.
+ */
+final class Pickler
+{
+    private static final int PROTO = 0x80;
+    private static final int STOP = '.';
+    private static final int MARK = '(';
+    private static final int NONE = 'N';
+    private static final int NEWTRUE = 0x88;
+    private static final int NEWFALSE = 0x89;
+    private static final int BININT = 'J';
+    private static final int BININT1 = 'K';
+    private static final int BININT2 = 'M';
+    private static final int LONG1 = 0x8a;
+    private static final int BINFLOAT = 'G';
+    private static final int BINUNICODE = 'X';
+    private static final int SHORT_BINSTRING = 'U';
+    private static final int BINSTRING = 'T';
+    private static final int BINPUT = 'q';
+    private static final int BINGET = 'h';
+    private static final int EMPTY_DICT = '}';
+    private static final int SETITEMS = 'u';
+    private static final int EMPTY_LIST = ']';
+    private static final int APPENDS = 'e';
+    private static final int GLOBAL = 'c';
+    private static final int TUPLE2 = 0x86;
+    private static final int REDUCE = 'R';
+
+    /**
+     * @return the whole pickle of {@code value}, PROTO to STOP
+     */
+    static byte[] dumps(Object value) {
+        final Pickler p = new Pickler();
+        p.value(value);
+        return p.toByteArray();
+    }
+
+    Pickler() {
+        reset();
+    }
+
+    /**
+     * Throws away what was written, keeping the buffer, and starts a new pickle.
+     */
+    void reset() {
+        out.reset();
+        out.write(PROTO);
+        out.write(2);
+    }
+
+    Pickler value(Object v) {
+        if (null == v) {
+            out.write(NONE);
+        } else if (v instanceof String) {
+            unicode((String) v);
+        } else if (v instanceof byte[]) {
+            bytes((byte[]) v);
+        } else if (v instanceof Integer || v instanceof Long) {
+            integer(((Number) v).longValue());
+        } else if (v instanceof Float || v instanceof Double) {
+            out.write(BINFLOAT);
+            final long bits = Double.doubleToLongBits(((Number) v).doubleValue());
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                out.write((int) (bits >>> shift));
+            }
+        } else if (v instanceof Boolean) {
+            out.write((Boolean) v ? NEWTRUE : NEWFALSE);
+        } else if (v instanceof Map) {
+            out.write(EMPTY_DICT);
+            final Map<?, ?> map = (Map<?, ?>) v;
+            if (! map.isEmpty()) {
+                out.write(MARK);
+                for (final Map.Entry<?, ?> e : map.entrySet()) {
+                    value(e.getKey());
+                    value(e.getValue());
+                }
+                out.write(SETITEMS);
+            }
+        } else if (v instanceof List) {
+            out.write(EMPTY_LIST);
+            final List<?> list = (List<?>) v;
+            if (! list.isEmpty()) {
+                out.write(MARK);
+                for (final Object item : list) {
+                    value(item);
+                }
+                out.write(APPENDS);
+            }
+        } else {
+            throw new IllegalArgumentException(format(
+                    "Unrecognized pickle type<%s>: %s", v.getClass().getName(), v));
+        }
+        return this;
+    }
+
+    byte[] toByteArray() {
+        stop();
+        return out.toByteArray();
+    }
+
+    Pickler emptyDict() {
+        out.write(EMPTY_DICT);
+        return this;
+    }
+
+    Pickler mark() {
+        out.write(MARK);
+        return this;
+    }
+
+    Pickler setItems() {
+        out.write(SETITEMS);
+        return this;
+    }
+
+    /**
+     * A Python 2 {@code str} when it is all ASCII, which is what Scrapy's own
+     * pickles hold and what Python 3 reads back as {@code str}; unicode otherwise.
+     */
+    Pickler str(String s) {
+        final int len = s.length();
+        for (int i = 0; i < len; i++) {
+            if (s.charAt(i) >= 0x80) {
+                unicode(s);
+                return this;
+            }
+        }
+        if (len < 0x100) {
+            out.write(SHORT_BINSTRING);
+            out.write(len);
+        } else {
+            out.write(BINSTRING);
+            int4(len);
+        }
+        for (int i = 0; i < len; i++) {
+            out.write(s.charAt(i));
+        }
+        return this;
+    }
+
+    /**
+     * Remembers the object on top of the stack as {@code slot}, which must be below 256.
+     */
+    Pickler put(int slot) {
+        out.write(BINPUT);
+        out.write(slot);
+        return this;
+    }
+
+    /**
+     * Pushes the object remembered as {@code slot} again.
+     */
+    Pickler get(int slot) {
+        out.write(BINGET);
+        out.write(slot);
+        return this;
+    }
+
+    Pickler stop() {
+        out.write(STOP);
+        return this;
+    }
+
+    int size() {
+        return out.size();
+    }
+
+    void writeTo(OutputStream dest) throws IOException {
+        out.writeTo(dest);
+    }
+
+    private void integer(long n) {
+        if (0 <= n && n <= 0xFF) {
+            out.write(BININT1);
+            out.write((int) n);
+        } else if (0 <= n && n <= 0xFFFF) {
+            out.write(BININT2);
+            out.write((int) n);
+            out.write((int) (n >>> 8));
+        } else if (Integer.MIN_VALUE <= n && n <= Integer.MAX_VALUE) {
+            out.write(BININT);
+            int4((int) n);
+        } else {
+            // little-endian two's complement, as short as it goes
+            final byte[] le = new byte[8];
+            for (int i = 0; i < 8; i++) {
+                le[i] = (byte) (n >>> (8 * i));
+            }
+            int len = 8;
+            while (len > 1 && ((le[len - 1] == 0 && le[len - 2] >= 0)
+                    || (le[len - 1] == -1 && le[len - 2] < 0))) {
+                len--;
+            }
+            out.write(LONG1);
+            out.write(len);
+            out.write(le, 0, len);
+        }
+    }
+
+    private void unicode(String s) {
+        final byte[] utf8 = s.getBytes(Dump.ENCODING);
+        out.write(BINUNICODE);
+        int4(utf8.length);
+        out.write(utf8, 0, utf8.length);
+    }
+
+    private void bytes(byte[] b) {
+        out.write(GLOBAL);
+        final byte[] global = "_codecs\nencode\n".getBytes(Dump.ENCODING);
+        out.write(global, 0, global.length);
+        final char[] latin1 = new char[b.length];
+        for (int i = 0; i < b.length; i++) {
+            latin1[i] = (char) (0xFF & b[i]);
+        }
+        unicode(new String(latin1));
+        unicode("latin1");
+        out.write(TUPLE2);
+        out.write(REDUCE);
+    }
+
+    private void int4(int n) {
+        out.write(n);
+        out.write(n >>> 8);
+        out.write(n >>> 16);
+        out.write(n >>> 24);
+    }
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+}
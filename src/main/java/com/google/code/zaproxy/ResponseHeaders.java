@@ -0,0 +1,112 @@
+package com.google.code.zaproxy;
+
+import java.util.Arrays;
+
+/**
+ * Turns ZAP's RESHEADER into what a dump wants from it, in one pass over its characters
+ * for one thread at a time: the TSV field, which is the whole thing with CR and LF
+ * spelled out, and the {@code response_headers} file, which is the UTF-8 of everything
+ * after the status line (HTTP/1.0, 1.1 or 2, or any other {@code HTTP/<version>})
+ * without the CRLF that ends the last header.
+ * The UTF-8 is built up in a scratch buffer kept from row to row, so the only allocation
+ * is the exact-size copy each row takes away with it.
+ * Use {@link #get()} to borrow the calling thread's one.
+ */
+final class ResponseHeaders
+{
+    private static final ThreadLocal<ResponseHeaders> INSTANCE = new ThreadLocal<ResponseHeaders>() {
+        @Override
+        protected ResponseHeaders initialValue() {
+            return new ResponseHeaders();
+        }
+    };
+
+    static ResponseHeaders get() {
+        return INSTANCE.get();
+    }
+
+    /**
+     * @param tsv where to append the escaped field, or null if nobody wants it
+     * @return the bytes of {@code response_headers}, the same as {@code String.getBytes}
+     * would give for a lone surrogate
+     */
+    byte[] split(String resHeader, StringBuilder tsv) {
+        final int length = resHeader.length();
+        final int headersStart = statusLineEnd(resHeader);
+        int headersEnd = length;
+        if (headersEnd - headersStart >= 2
+                && '\r' == resHeader.charAt(length - 2) && '\n' == resHeader.charAt(length - 1)) {
+            headersEnd -= 2;
+        }
+        if (scratch.length < 3 * length) {
+            scratch = new byte[Math.max(3 * length, 2 * scratch.length)];
+        }
+        if (null != tsv) {
+            tsv.ensureCapacity(tsv.length() + length + 16);
+        }
+        int n = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = resHeader.charAt(i);
+            if (null != tsv) {
+                if ('\r' == c) {
+                    tsv.append("\\r");
+                } else if ('\n' == c) {
+                    tsv.append("\\n");
+                } else {
+                    tsv.append(c);
+                }
+            }
+            if (i < headersStart || i >= headersEnd) {
+                continue;
+            }
+            if (c < 0x80) {
+                scratch[n++] = (byte) c;
+            } else if (c < 0x800) {
+                scratch[n++] = (byte) (0xC0 | c >> 6);
+                scratch[n++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < headersEnd
+                    && Character.isLowSurrogate(resHeader.charAt(i + 1))) {
+                final char low = resHeader.charAt(++i);
+                if (null != tsv) {
+                    tsv.append(low);
+                }
+                final int cp = Character.toCodePoint(c, low);
+                scratch[n++] = (byte) (0xF0 | cp >> 18);
+                scratch[n++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                scratch[n++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                scratch[n++] = (byte) (0x80 | cp & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                scratch[n++] = '?';
+            } else {
+                scratch[n++] = (byte) (0xE0 | c >> 12);
+                scratch[n++] = (byte) (0x80 | c >> 6 & 0x3F);
+                scratch[n++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        return Arrays.copyOf(scratch, n);
+    }
+
+    /**
+     * @return where the headers start: just past the LF ending the status line,
+     * or 0 if {@code s} doesn't start with one
+     */
+    static int statusLineEnd(String s) {
+        if (! s.startsWith("HTTP/")) {
+            return 0;
+        }
+        int i = 5;
+        if (i >= s.length() || ! Character.isDigit(s.charAt(i))) {
+            return 0;
+        }
+        while (i < s.length() && (Character.isDigit(s.charAt(i)) || '.' == s.charAt(i))) {
+            i++;
+        }
+        if (i < s.length() && ' ' != s.charAt(i) && '\r' != s.charAt(i) && '\n' != s.charAt(i)) {
+            return 0;
+        }
+        final int lf = s.indexOf('\n', i);
+        return -1 == lf ? s.length() : lf + 1;
+    }
+
+    private byte[] scratch = new byte[4096];
+}
@@ -0,0 +1,187 @@
+package com.google.code.zaproxy;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+
+/**
+ * Dumps several sessions into one spider's cache in one go, each session on its
+ * own thread with its own {@link ExportPipeline}.
+ * <p>
+ * First every session offers its capture rows to one shared {@link FingerprintTable},
+ * with its index on the command line in the top half of each row's number,
+ * so that {@link ExportOptions#winner} (the newest TIMESENTMILLIS unless told otherwise,
+ * the later session on a tie) picks one row per fingerprint across all of them.
+ * Then the sessions export at once into one shared {@link CacheSink}, each writing
+ * only the entries it won, and their TSVs are stitched together, in session order
+ * and under one header, into {@code <spider>.tsv} with a SOURCE column saying
+ * which session each line came from.
+ */
+class SessionMerge
+{
+    private static final Logger LOG = Logger.getLogger(SessionMerge.class.getName());
+
+    /**
+     * @param options taken over, and must name an {@link ExportOptions#spider}
+     */
+    SessionMerge(List<String> databaseFilenames, ExportOptions options) {
+        if (null == options.spider) {
+            throw new IllegalArgumentException("Merging sessions needs a spider to merge them into");
+        }
+        this.databaseFilenames = databaseFilenames;
+        this.options = options;
+    }
+
+    int run() throws Exception {
+        if (null == options.winner) {
+            options.winner = FingerprintTable.Policy.NEWEST;
+        }
+        // one progress line per session, all at once, would only be noise
+        options.progressSeconds = 0;
+        final FingerprintTable winners = new FingerprintTable(options.winner);
+        final List<ExportPipeline> sessions = new ArrayList<ExportPipeline>();
+        for (int k = 0; k < databaseFilenames.size(); k++) {
+            final ExportPipeline session = new ExportPipeline(databaseFilenames.get(k), null, options);
+            session.source = databaseFilenames.get(k);
+            session.sequenceBase = (long) k << 32;
+            session.sharedWinners = winners;
+            session.quiet = true;
+            if (options.tsv) {
+                session.tsvFile = new File(format("%s.tsv.%d", options.spider, k));
+            }
+            sessions.add(session);
+        }
+        final ExecutorService threads = Executors.newFixedThreadPool(sessions.size(),
+                new ExportPipeline.NamedThreadFactory("zapdump-session"));
+        final BodyDedup dedup = options.dedup ? new BodyDedup() : null;
+        CacheSink sink = null;
+        try {
+            final List<Callable<Void>> offers = new ArrayList<Callable<Void>>();
+            for (final ExportPipeline session : sessions) {
+                offers.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        session.offerWinners(winners);
+                        return null;
+                    }
+                });
+            }
+            await(threads.invokeAll(offers));
+            System.out.println(winners);
+
+            sink = ExportPipeline.openSink(options, options.spider, dedup);
+            final List<Callable<Void>> exports = new ArrayList<Callable<Void>>();
+            for (final ExportPipeline session : sessions) {
+                session.sharedSink = sink;
+                exports.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        session.run();
+                        return null;
+                    }
+                });
+            }
+            await(threads.invokeAll(exports));
+            sink.close();
+            sink = null;
+            if (options.tsv) {
+                stitch(new File(format("%s.tsv", options.spider)));
+            }
+        } finally {
+            threads.shutdownNow();
+            if (null != sink) {
+                sink.close();
+            }
+            for (final ExportPipeline session : sessions) {
+                if (null != session.tsvFile && session.tsvFile.exists() && ! session.tsvFile.delete()) {
+                    LOG.warning(format("Unable to delete %s", session.tsvFile));
+                }
+            }
+        }
+
+        entries = 0;
+        for (final ExportPipeline session : sessions) {
+            final long written = session.metrics().entries();
+            System.out.printf("%s: %d capture rows, %d entries written%n", session.source, session.found(), written);
+            entries += written;
+        }
+        if (null != dedup) {
+            System.out.println(dedup);
+        }
+        if (0 == entries) {
+            System.err.printf("None of the %d sessions has a row to export%n", sessions.size());
+            return 1;
+        }
+        System.out.printf("Merged %d sessions into %d entries of %s%n", sessions.size(), entries, options.spider);
+        return 0;
+    }
+
+    /**
+     * Concatenates the sessions' TSVs, keeping only the first one's header line.
+     */
+    private void stitch(File tsv) throws IOException {
+        final OutputStream out = new BufferedOutputStream(new FileOutputStream(tsv), 1 << 16);
+        try {
+            for (int k = 0; k < databaseFilenames.size(); k++) {
+                final InputStream in = new BufferedInputStream(
+                        new FileInputStream(format("%s.tsv.%d", options.spider, k)), 1 << 16);
+                try {
+                    if (0 != k) {
+                        int c;
+                        while (-1 != (c = in.read()) && '\n' != c) {
+                            // skip the header
+                        }
+                    }
+                    final byte[] buf = new byte[1 << 16];
+                    int n;
+                    while (-1 != (n = in.read(buf))) {
+                        out.write(buf, 0, n);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Waits for every session, then throws the first one's failure, if any.
+     */
+    private static void await(List<Future<Void>> futures) throws Exception {
+        Exception failure = null;
+        for (final Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (null == failure) {
+                    final Throwable cause = e.getCause();
+                    failure = cause instanceof Exception ? (Exception) cause : e;
+                }
+            }
+        }
+        if (null != failure) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @return how many cache entries {@link #run} wrote, across all the sessions
+     */
+    long entries() {
+        return entries;
+    }
+
+    private final List<String> databaseFilenames;
+    private final ExportOptions options;
+    private long entries;
+}
@@ -0,0 +1,208 @@
+package com.google.code.zaproxy;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.logging.Logger;
+
+import static java.lang.String.format;
+
+/**
+ * How a dump gets at a session. Unless {@link ExportOptions#readWrite} says otherwise
+ * the session is opened {@code readonly}, without a lock file, so neither a ZAP which
+ * still has it open nor an archived copy on a read-only disk gets in the way, and
+ * nothing is ever written back; {@code ifexists} keeps a mistyped name from
+ * quietly becoming a new, empty session.
+ * <p>
+ * HSQLDB's row cache is sized from the {@code .data} and {@code .lobs} files, up to
+ * a quarter of the heap, and the {@code .data} file is mapped whole, so a big session
+ * isn't read through the default few megabytes a row at a time.
+ * With {@link ExportOptions#snapshotDir} (say, somewhere on a tmpfs) the session's
+ * files are copied there first and opened from there, and removed once we are done.
+ * <p>
+ * The database is shut down as soon as the last of our connections closes, so that
+ * the next open, such as the next {@link Follower} pass, reads the files afresh.
+ */
+class SessionOpener
+{
+    private static final Logger LOG = Logger.getLogger(SessionOpener.class.getName());
+    static final String[] SESSION_FILES = { ".properties", ".script", ".log", ".data", ".backup", ".lobs" };
+    private static final long MIN_CACHE_BYTES = 8L << 20;
+
+    SessionOpener(String databaseFilename, ExportOptions options) {
+        this.databaseFilename = databaseFilename;
+        this.options = options;
+    }
+
+    /**
+     * @return a new connection; the first one opens the session, after taking the snapshot
+     */
+    synchronized Connection connect() throws SQLException, IOException {
+        System.setProperty("jdbc.drivers", "org.hsqldb.jdbc.JDBCDriver");
+        if (null == url) {
+            String path = databaseFilename;
+            if (null != options.snapshotDir) {
+                path = snapshot();
+            }
+            final long opening = System.nanoTime();
+            url = url(path, dataBytes(path), options.readWrite);
+            final Connection conn = DriverManager.getConnection(url);
+            openNanos = System.nanoTime() - opening;
+            LOG.fine(format("Opened %s in %d ms", url, openNanos / 1000000));
+            return conn;
+        }
+        return DriverManager.getConnection(url);
+    }
+
+    /**
+     * Removes the snapshot, if there is one; the caller must have closed every connection.
+     */
+    synchronized void close() {
+        if (null == snapshot) {
+            return;
+        }
+        final File[] files = snapshot.listFiles();
+        if (null != files) {
+            for (final File f : files) {
+                if (! f.delete()) {
+                    LOG.warning(format("Unable to delete %s", f));
+                }
+            }
+        }
+        if (! snapshot.delete()) {
+            LOG.warning(format("Unable to delete %s", snapshot));
+        }
+        snapshot = null;
+        url = null;
+    }
+
+    /**
+     * The JDBC URL for the session at {@code path}, with caches sized for {@code dataBytes}.
+     */
+    static String url(String path, long dataBytes, boolean readWrite) {
+        final long cacheBytes = Math.max(MIN_CACHE_BYTES,
+                Math.min(dataBytes, Runtime.getRuntime().maxMemory() / 4));
+        final StringBuilder sb = new StringBuilder(format("jdbc:hsqldb:file:%s;ifexists=true;shutdown=true", path));
+        if (! readWrite) {
+            sb.append(";readonly=true;hsqldb.lock_file=false");
+        }
+        sb.append(";hsqldb.cache_size=").append(cacheBytes >> 10);
+        // rows are a few KB each in a ZAP session, and the row count is the limit that bites first
+        sb.append(";hsqldb.cache_rows=").append(Math.max(50000, cacheBytes >> 11));
+        sb.append(";hsqldb.nio_data_file=true");
+        sb.append(";hsqldb.nio_max_size=").append(Math.max(256, (dataBytes >> 20) + 64));
+        return sb.toString();
+    }
+
+    private static long dataBytes(String path) {
+        return new File(path + ".data").length() + new File(path + ".lobs").length();
+    }
+
+    /**
+     * Copies the session's files into a fresh directory under {@link ExportOptions#snapshotDir}.
+     * @return the session there
+     */
+    private String snapshot() throws IOException {
+        final long copying = System.nanoTime();
+        snapshot = Files.createTempDirectory(options.snapshotDir.toPath(), "zapdump-").toFile();
+        final File source = new File(databaseFilename);
+        final File copy = new File(snapshot, source.getName());
+        boolean found = false;
+        for (final String suffix : SESSION_FILES) {
+            final File from = new File(source.getPath() + suffix);
+            if (from.exists()) {
+                snapshotBytes += copy(from, new File(copy.getPath() + suffix));
+                found |= ".script".equals(suffix) || ".properties".equals(suffix);
+            }
+        }
+        if (! found) {
+            throw new IOException(format("Expected to find %s.script or %s.properties", source, source));
+        }
+        snapshotNanos = System.nanoTime() - copying;
+        return copy.getPath();
+    }
+
+    private static long copy(File from, File to) throws IOException {
+        final FileChannel in = FileChannel.open(from.toPath(), StandardOpenOption.READ);
+        try {
+            final FileChannel out = FileChannel.open(to.toPath(),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            try {
+                final long size = in.size();
+                long done = 0;
+                while (done < size) {
+                    done += in.transferTo(done, size - done, out);
+                }
+                return size;
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return the process's peak resident set, in bytes, or -1 where /proc doesn't say
+     */
+    static long peakRss() {
+        final File status = new File("/proc/self/status");
+        if (! status.canRead()) {
+            return -1;
+        }
+        try {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(status), Dump.ENCODING));
+            try {
+                String line;
+                while (null != (line = reader.readLine())) {
+                    if (line.startsWith("VmHWM:")) {
+                        return Long.parseLong(line.substring(6).replace("kB", "").trim()) << 10;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            LOG.fine(format("Unable to read %s: %s", status, e));
+        } catch (NumberFormatException e) {
+            LOG.fine(format("Unable to read %s: %s", status, e));
+        }
+        return -1;
+    }
+
+    /**
+     * One line: how the session was opened, how long that took and the peak RSS so far.
+     */
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(128);
+        sb.append(format("Opened %s %s in %.1f s", databaseFilename,
+                options.readWrite ? "read-write" : "read-only", openNanos / 1e9));
+        if (0 != snapshotNanos) {
+            sb.append(format(" (after copying %.1f MB to %s in %.1f s)",
+                    snapshotBytes / (1024.0 * 1024.0), options.snapshotDir, snapshotNanos / 1e9));
+        }
+        final long rss = peakRss();
+        if (0 <= rss) {
+            sb.append(format("; peak RSS %d MB", rss >> 20));
+        }
+        return sb.toString();
+    }
+
+    long openNanos() {
+        return openNanos;
+    }
+
+    private final String databaseFilename;
+    private final ExportOptions options;
+    private String url;
+    private File snapshot;
+    private long openNanos;
+    private long snapshotNanos;
+    private long snapshotBytes;
+}
@@ -0,0 +1,279 @@
+package com.google.code.zaproxy;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.lang.String.format;
+
+/**
+ * Streams the entries into one uncompressed tar file, with the same
+ * {@code <spider>/<xx>/<fingerprint>/<file>} paths {@link FilesystemCacheSink} uses,
+ * so unpacking it under {@code HTTPCACHE_DIR} gives the same tree.
+ * Nothing is ever rewritten: a later entry for a fingerprint is simply appended again,
+ * and since tar extracts in order the later one is what ends up on disk.
+ * <p>
+ * Names that do not fit the 100 + 155 bytes of a ustar header, or that are not
+ * ASCII, are carried in a POSIX pax header in front of their entry.
+ * <p>
+ * With a {@link BodyDedup}, a {@code response_body} whose content is already in the
+ * archive goes in as a hard link to that earlier member, which tar extracts as a link.
+ * A member that a later entry has since replaced is no longer linked to,
+ * because by then it holds something else.
+ */
+class TarCacheSink implements CacheSink
+{
+    private static final int BLOCK = 512;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    TarCacheSink(File archive, String spiderName) throws IOException {
+        this(archive, spiderName, null);
+    }
+
+    /**
+     * @param gzip how to compress each file inside the archive, or null to leave them be
+     */
+    TarCacheSink(File archive, String spiderName, Gzip gzip) throws IOException {
+        this(archive, spiderName, gzip, null);
+    }
+
+    /**
+     * @param dedup where to count the bodies that were linked, or null to put each one in
+     */
+    TarCacheSink(File archive, String spiderName, Gzip gzip, BodyDedup dedup) throws IOException {
+        this.archive = archive;
+        this.gzip = gzip;
+        this.dedup = dedup;
+        this.spiderPath = spiderPath(spiderName);
+        this.out = new BufferedOutputStream(new FileOutputStream(archive), 1 << 16);
+    }
+
+    /**
+     * The archive is always a new one, so there is nothing to find in it.
+     */
+    @Override
+    public boolean isComplete(String fingerprint) {
+        return false;
+    }
+
+    /**
+     * Renders (and compresses) the entry's four files outside the lock,
+     * then appends them back to back.
+     */
+    @Override
+    public void write(CacheEntry entry) throws IOException {
+        final MetaEncoder meta = MetaEncoder.get().encode(entry);
+        final byte[][] contents = {
+                entry.responseBody,
+                entry.responseHeaders,
+                meta.jsonBytes(),
+                meta.pickleBytes(),
+        };
+        if (null != gzip) {
+            for (int i = 0; i < contents.length; i++) {
+                contents[i] = gzip.compress(contents[i]);
+            }
+        }
+        final String dir = format("%s%s/%s/", spiderPath, entry.fingerprint.substring(0, 2), entry.fingerprint);
+        final long mtime = Math.max(0, entry.millis / 1000);
+        final String bodyKey = null == dedup ? null : dedup.key(entry.responseBody);
+        synchronized (this) {
+            if (closed) {
+                throw new IOException(format("%s is already closed", archive));
+            }
+            for (int i = 0; i < contents.length; i++) {
+                final String name = dir + CacheEntryWriter.ENTRY_FILES[i];
+                if (0 == i && null != bodyKey) {
+                    appendBody(name, bodyKey, contents[i], mtime);
+                } else {
+                    append(name, null, contents[i], mtime);
+                }
+            }
+        }
+    }
+
+    private void appendBody(String name, String bodyKey, byte[] content, long mtime) throws IOException {
+        final String target = bodyMembers.get(bodyKey);
+        if (name.equals(target)) {
+            // the member an earlier entry left here already has these very bytes
+            dedup.linked(content.length);
+            return;
+        }
+        final String replaced = memberBodies.remove(name);
+        if (null != replaced) {
+            bodyMembers.remove(replaced);
+        }
+        if (null != target) {
+            append(name, target, content, mtime);
+            dedup.linked(content.length);
+        } else {
+            append(name, null, content, mtime);
+            bodyMembers.put(bodyKey, name);
+            memberBodies.put(name, bodyKey);
+            dedup.stored(content.length);
+        }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Writes the two zero blocks that end a tar.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            out.write(new byte[2 * BLOCK]);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @param linkTo the earlier member this one is a hard link to, or null for a regular file
+     */
+    private void append(String name, String linkTo, byte[] content, long mtime) throws IOException {
+        final byte[] nameBytes = name.getBytes(Dump.ENCODING);
+        final String[] split = nameBytes.length == name.length() ? ustarName(name) : null;
+        final ByteArrayOutputStream pax = new ByteArrayOutputStream();
+        if (null == split) {
+            pax.write(paxRecord("path", nameBytes));
+        }
+        String linkName = "";
+        if (null != linkTo) {
+            final byte[] linkBytes = linkTo.getBytes(Dump.ENCODING);
+            if (linkBytes.length != linkTo.length() || linkBytes.length > 100) {
+                pax.write(paxRecord("linkpath", linkBytes));
+            } else {
+                linkName = linkTo;
+            }
+        }
+        final String baseName = name.substring(name.lastIndexOf('/') + 1);
+        if (0 != pax.size()) {
+            writeHeader("PaxHeader/" + baseName, "", "", pax.size(), mtime, 'x');
+            writeContent(pax.toByteArray());
+        }
+        final String headerName = null == split ? baseName : split[1];
+        final String prefix = null == split ? "" : split[0];
+        if (null != linkTo) {
+            writeHeader(headerName, prefix, linkName, 0, mtime, '1');
+        } else {
+            writeHeader(headerName, prefix, "", content.length, mtime, '0');
+            writeContent(content);
+        }
+    }
+
+    private void writeHeader(String name, String prefix, String linkName, long size, long mtime, char type)
+            throws IOException {
+        final byte[] h = new byte[BLOCK];
+        put(h, 0, 100, name);
+        put(h, 100, 8, "0000644");
+        put(h, 108, 8, "0000000");
+        put(h, 116, 8, "0000000");
+        put(h, 124, 12, octal(size, 11));
+        put(h, 136, 12, octal(mtime, 11));
+        Arrays.fill(h, 148, 156, (byte) ' ');
+        h[156] = (byte) type;
+        put(h, 157, 100, linkName);
+        put(h, 257, 6, "ustar");
+        put(h, 263, 2, "00");
+        put(h, 345, 155, prefix);
+        int sum = 0;
+        for (final byte b : h) {
+            sum += 0xFF & b;
+        }
+        put(h, 148, 7, octal(sum, 6));
+        out.write(h);
+    }
+
+    private void writeContent(byte[] content) throws IOException {
+        out.write(content);
+        final int pad = (BLOCK - content.length % BLOCK) % BLOCK;
+        if (0 != pad) {
+            out.write(new byte[pad]);
+        }
+    }
+
+    /**
+     * @return {prefix, name} for a ustar header, or null if it will not fit
+     */
+    static String[] ustarName(String path) {
+        if (path.length() <= 100) {
+            return new String[] { "", path };
+        }
+        for (int slash = path.indexOf('/'); -1 != slash; slash = path.indexOf('/', slash + 1)) {
+            if (slash <= 155 && path.length() - slash - 1 <= 100) {
+                return new String[] { path.substring(0, slash), path.substring(slash + 1) };
+            }
+        }
+        return null;
+    }
+
+    /**
+     * {@code "<length> <key>=<value>\n"}, where the length counts itself.
+     */
+    static byte[] paxRecord(String key, byte[] value) {
+        final int rest = 1 + key.length() + 1 + value.length + 1;
+        int length = rest + String.valueOf(rest).length();
+        if (String.valueOf(length).length() != String.valueOf(rest).length()) {
+            length = rest + String.valueOf(length).length();
+        }
+        final ByteArrayOutputStream record = new ByteArrayOutputStream(length);
+        final byte[] head = format("%d %s=", length, key).getBytes(ASCII);
+        record.write(head, 0, head.length);
+        record.write(value, 0, value.length);
+        record.write('\n');
+        return record.toByteArray();
+    }
+
+    /**
+     * The spider's directory name as a relative, slash separated path ending in a slash.
+     */
+    static String spiderPath(String spiderName) {
+        final StringBuilder sb = new StringBuilder();
+        for (final String part : spiderName.replace(File.separatorChar, '/').split("/")) {
+            if (part.isEmpty() || ".".equals(part) || "..".equals(part)) {
+                continue;
+            }
+            sb.append(part).append('/');
+        }
+        return sb.toString();
+    }
+
+    private static String octal(long value, int digits) {
+        final String s = Long.toOctalString(value);
+        if (s.length() > digits) {
+            throw new IllegalArgumentException(format("%d does not fit in %d octal digits", value, digits));
+        }
+        final StringBuilder sb = new StringBuilder(digits);
+        for (int i = s.length(); i < digits; i++) {
+            sb.append('0');
+        }
+        return sb.append(s).toString();
+    }
+
+    private static void put(byte[] header, int offset, int length, String value) {
+        final byte[] bytes = value.getBytes(ASCII);
+        System.arraycopy(bytes, 0, header, offset, Math.min(length, bytes.length));
+    }
+
+    private final File archive;
+    private final Gzip gzip;
+    private final BodyDedup dedup;
+    /**
+     * Body key to the member that holds it, and back, for the members no later entry has replaced.
+     */
+    private final Map<String, String> bodyMembers = new HashMap<String, String>();
+    private final Map<String, String> memberBodies = new HashMap<String, String>();
+    private final String spiderPath;
+    private final OutputStream out;
+    private boolean closed;
+}
@@ -0,0 +1,440 @@
+package com.google.code.zaproxy;
+
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * A one-pass version of {@link Dump#canonicalUrl(String)} for the URLs that make up
+ * nearly all of a ZAP session: http or https, a plain host name or IPv4 address,
+ * and no fragment.
+ * It works from a reusable {@code char[]} and {@link StringBuilder}, looks characters
+ * up in tables built from {@link Dump#PCHAR} and {@link Dump#QUERY_PCHAR},
+ * and sorts the query arguments in place.
+ * <p>
+ * Anything it is not sure it can reproduce exactly, it hands back as {@code null},
+ * and the caller falls back on the {@code java.net.URI} round trip;
+ * the fingerprints have to match whatever Scrapy and earlier dumps computed.
+ * One instance per thread, please; {@link #get()} takes care of that.
+ */
+final class UrlCanonicalizer
+{
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    static final boolean[] PATH_SAFE = table(Dump.PCHAR);
+    static final boolean[] QUERY_SAFE = table(Dump.QUERY_PCHAR);
+    /**
+     * What {@code java.net.URI} leaves alone in a user-info, minus the '%'.
+     */
+    private static final boolean[] USERINFO_SAFE = table(
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_.!~*'();:&=+$,");
+    private static final ThreadLocal<UrlCanonicalizer> INSTANCE = new ThreadLocal<UrlCanonicalizer>() {
+        @Override
+        protected UrlCanonicalizer initialValue() {
+            return new UrlCanonicalizer();
+        }
+    };
+
+    static UrlCanonicalizer get() {
+        return INSTANCE.get();
+    }
+
+    private static boolean[] table(Pattern pat) {
+        final boolean[] result = new boolean[128];
+        for (char ch = 0; ch < result.length; ch++) {
+            result[ch] = pat.matcher(Character.toString(ch)).matches();
+        }
+        return result;
+    }
+
+    private static boolean[] table(String chars) {
+        final boolean[] result = new boolean[128];
+        for (int i = 0; i < chars.length(); i++) {
+            result[chars.charAt(i)] = true;
+        }
+        return result;
+    }
+
+    /**
+     * Percent-encodes every character of {@code s} that isn't in {@code safe},
+     * as UTF-8, and upper-cases whatever follows an existing '%'.
+     * This is the table-driven twin of the old regex-per-character loop,
+     * quirks and all: a lone surrogate becomes {@code %3F}, just as
+     * {@link String#getBytes} would have made it, and a '%' without two
+     * characters after it is a {@link StringIndexOutOfBoundsException}.
+     */
+    static String escape(String s, boolean[] safe) {
+        final StringBuilder sb = new StringBuilder(s.length() + 16);
+        for (int i = 0, len = s.length(); i < len; i++) {
+            final char ch = s.charAt(i);
+            if ('%' == ch) {
+                sb.append('%')
+                        .append(Character.toUpperCase(s.charAt(++i)))
+                        .append(Character.toUpperCase(s.charAt(++i)))
+                        ;
+            } else if (ch < 128 && safe[ch]) {
+                sb.append(ch);
+            } else {
+                appendEscaped(sb, ch);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void appendEscaped(StringBuilder sb, char ch) {
+        if (ch < 0x80) {
+            appendByte(sb, ch);
+        } else if (ch < 0x800) {
+            appendByte(sb, 0xC0 | (ch >> 6));
+            appendByte(sb, 0x80 | (ch & 0x3F));
+        } else if (Character.isSurrogate(ch)) {
+            appendByte(sb, '?');
+        } else {
+            appendByte(sb, 0xE0 | (ch >> 12));
+            appendByte(sb, 0x80 | ((ch >> 6) & 0x3F));
+            appendByte(sb, 0x80 | (ch & 0x3F));
+        }
+    }
+
+    private static void appendByte(StringBuilder sb, int b) {
+        sb.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+    }
+
+    static boolean isHex(char ch) {
+        return ('0' <= ch && ch <= '9') || ('A' <= ch && ch <= 'F') || ('a' <= ch && ch <= 'f');
+    }
+
+    /**
+     * @return the canonical form of {@code input}, or null if it needs the slow path
+     */
+    String canonicalize(String input) {
+        final int len = input.length();
+        if (0 == len || input.charAt(0) <= ' ' || input.charAt(len - 1) <= ' ') {
+            // java.net.URL trims those off first
+            return null;
+        }
+        if (chars.length < len) {
+            chars = new char[Math.max(len, 2 * chars.length)];
+        }
+        input.getChars(0, len, chars, 0);
+        out.setLength(0);
+        int p;
+        if (input.regionMatches(true, 0, "http://", 0, 7)) {
+            out.append("http://");
+            p = 7;
+        } else if (input.regionMatches(true, 0, "https://", 0, 8)) {
+            out.append("https://");
+            p = 8;
+        } else {
+            return null;
+        }
+        final int qMark = input.indexOf('?');
+        final int limit = -1 == qMark ? len : qMark;
+        if (-1 != input.indexOf('#')) {
+            return null;
+        }
+
+        // authority
+        int pathStart = p;
+        int at = -1;
+        int colon = -1;
+        for (; pathStart < limit; pathStart++) {
+            final char ch = chars[pathStart];
+            if ('/' == ch) {
+                break;
+            } else if ('@' == ch) {
+                if (-1 != at) {
+                    return null;
+                }
+                at = pathStart;
+                colon = -1;
+            } else if (':' == ch && -1 == colon) {
+                colon = pathStart;
+            }
+        }
+        int hostStart = p;
+        if (-1 != at) {
+            if (at == p) {
+                return null;
+            }
+            for (int i = p; i < at; i++) {
+                final char ch = chars[i];
+                if (ch >= 128 || ! USERINFO_SAFE[ch]) {
+                    return null;
+                }
+            }
+            out.append(chars, p, at - p).append('@');
+            hostStart = at + 1;
+        }
+        final int hostEnd = -1 == colon ? pathStart : colon;
+        if (! isHostName(hostStart, hostEnd) && ! isIPv4(hostStart, hostEnd)) {
+            return null;
+        }
+        out.append(chars, hostStart, hostEnd - hostStart);
+        if (-1 != colon && colon + 1 < pathStart) {
+            if (pathStart - colon - 1 > 5) {
+                return null;
+            }
+            int port = 0;
+            for (int i = colon + 1; i < pathStart; i++) {
+                final char ch = chars[i];
+                if (ch < '0' || '9' < ch) {
+                    return null;
+                }
+                port = 10 * port + (ch - '0');
+            }
+            out.append(':').append(port);
+        }
+
+        // path
+        if (pathStart == limit) {
+            out.append('/');
+        } else if (! appendPath(pathStart, limit)) {
+            return null;
+        }
+
+        // query
+        if (-1 != qMark) {
+            out.append('?');
+            if (! appendQuery(qMark + 1, len)) {
+                return null;
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * The labels {@code java.net.URI} accepts without complaint:
+     * alphanumerics with inner dashes, the last one starting with a letter.
+     */
+    private boolean isHostName(int start, int end) {
+        if (start == end) {
+            return false;
+        }
+        int labelStart = start;
+        int lastLabel = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || '.' == chars[i]) {
+                if (i == labelStart || '-' == chars[labelStart] || '-' == chars[i - 1]) {
+                    return false;
+                }
+                lastLabel = labelStart;
+                labelStart = i + 1;
+                continue;
+            }
+            final char ch = chars[i];
+            if (! (('a' <= ch && ch <= 'z') || ('A' <= ch && ch <= 'Z')
+                    || ('0' <= ch && ch <= '9') || '-' == ch)) {
+                return false;
+            }
+        }
+        final char first = chars[lastLabel];
+        return lastLabel == start || ('a' <= first && first <= 'z') || ('A' <= first && first <= 'Z');
+    }
+
+    private boolean isIPv4(int start, int end) {
+        int parts = 0;
+        int value = 0;
+        int digits = 0;
+        for (int i = start; i <= end; i++) {
+            if (i == end || '.' == chars[i]) {
+                if (0 == digits || 255 < value) {
+                    return false;
+                }
+                parts++;
+                value = digits = 0;
+                continue;
+            }
+            final char ch = chars[i];
+            if (ch < '0' || '9' < ch || 3 == digits) {
+                return false;
+            }
+            value = 10 * value + (ch - '0');
+            digits++;
+        }
+        return 4 == parts;
+    }
+
+    private boolean appendPath(int start, int end) {
+        for (int i = start; i < end; i++) {
+            final char ch = chars[i];
+            if ('%' == ch) {
+                if (i + 2 >= end || ! isHex(chars[i + 1]) || ! isHex(chars[i + 2])) {
+                    return false;
+                }
+                final char hi = Character.toUpperCase(chars[++i]);
+                final char lo = Character.toUpperCase(chars[++i]);
+                if ('2' == hi && 'C' == lo) {
+                    // URI and Scrapy agree to disagree about commas in paths
+                    out.append(',');
+                } else {
+                    out.append('%').append(hi).append(lo);
+                }
+            } else if (ch < 128 && PATH_SAFE[ch]) {
+                out.append(ch);
+            } else if (',' == ch) {
+                out.append(',');
+            } else {
+                appendEscaped(out, ch);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The same as {@link Dump#sortQueryString(String)}, including how
+     * {@link String#split} drops trailing empty arguments but not leading ones.
+     */
+    private boolean appendQuery(int start, int end) {
+        if (start == end) {
+            return true;
+        }
+        if ('&' == chars[start]) {
+            start++;
+        }
+        if (end > start && '&' == chars[end - 1]) {
+            end--;
+        }
+        count = 0;
+        int pairStart = start;
+        boolean sawAmpersand = false;
+        for (int i = start; i < end; i++) {
+            if ('&' == chars[i]) {
+                sawAmpersand = true;
+                addPair(pairStart, i);
+                pairStart = i + 1;
+            }
+        }
+        addPair(pairStart, end);
+        if (sawAmpersand) {
+            while (0 < count && starts[count - 1] == ends[count - 1]) {
+                count--;
+            }
+        }
+        sortPairs();
+        for (int k = 0; k < count; k++) {
+            final int pair = order[k];
+            if (0 != k) {
+                out.append('&');
+            }
+            final int eq = equals[pair];
+            if (! appendQueryPart(starts[pair], -1 == eq ? ends[pair] : eq)) {
+                return false;
+            }
+            out.append('=');
+            if (-1 != eq && ! appendQueryPart(eq + 1, ends[pair])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addPair(int start, int end) {
+        if (count == starts.length) {
+            final int n = 2 * count;
+            starts = Arrays.copyOf(starts, n);
+            ends = Arrays.copyOf(ends, n);
+            equals = Arrays.copyOf(equals, n);
+            order = new int[n];
+            scratch = new int[n];
+        }
+        int eq = -1;
+        for (int i = start; i < end; i++) {
+            if ('=' == chars[i]) {
+                eq = i;
+                break;
+            }
+        }
+        starts[count] = start;
+        ends[count] = end;
+        equals[count] = eq;
+        count++;
+    }
+
+    private boolean appendQueryPart(int start, int end) {
+        for (int i = start; i < end; i++) {
+            final char ch = chars[i];
+            if ('%' == ch) {
+                if (i + 2 >= end || ! isHex(chars[i + 1]) || ! isHex(chars[i + 2])) {
+                    return false;
+                }
+                final char hi = Character.toUpperCase(chars[++i]);
+                final char lo = Character.toUpperCase(chars[++i]);
+                if ('2' == hi && '0' == lo) {
+                    out.append('+');
+                } else {
+                    out.append('%').append(hi).append(lo);
+                }
+            } else if (ch < 128 && QUERY_SAFE[ch]) {
+                out.append(ch);
+            } else if (' ' == ch) {
+                out.append('+');
+            } else {
+                appendEscaped(out, ch);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Orders the pairs by name, then value, as {@link String#compareTo} would;
+     * a merge sort on indexes, so no Strings get made along the way.
+     */
+    private void sortPairs() {
+        for (int i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        for (int width = 1; width < count; width *= 2) {
+            for (int lo = 0; lo < count - width; lo += 2 * width) {
+                final int mid = lo + width;
+                final int hi = Math.min(lo + 2 * width, count);
+                int a = lo;
+                int b = mid;
+                int k = lo;
+                while (a < mid && b < hi) {
+                    scratch[k++] = comparePairs(order[a], order[b]) <= 0 ? order[a++] : order[b++];
+                }
+                while (a < mid) {
+                    scratch[k++] = order[a++];
+                }
+                while (b < hi) {
+                    scratch[k++] = order[b++];
+                }
+                System.arraycopy(scratch, lo, order, lo, hi - lo);
+            }
+        }
+    }
+
+    private int comparePairs(int x, int y) {
+        final int xEq = equals[x];
+        final int yEq = equals[y];
+        final int byName = compareRegions(starts[x], -1 == xEq ? ends[x] : xEq,
+                starts[y], -1 == yEq ? ends[y] : yEq);
+        if (0 != byName) {
+            return byName;
+        }
+        return compareRegions(-1 == xEq ? ends[x] : xEq + 1, ends[x],
+                -1 == yEq ? ends[y] : yEq + 1, ends[y]);
+    }
+
+    private int compareRegions(int a, int aEnd, int b, int bEnd) {
+        final int aLen = aEnd - a;
+        final int bLen = bEnd - b;
+        final int n = Math.min(aLen, bLen);
+        for (int i = 0; i < n; i++) {
+            final char ca = chars[a + i];
+            final char cb = chars[b + i];
+            if (ca != cb) {
+                return ca - cb;
+            }
+        }
+        return aLen - bLen;
+    }
+
+    private final StringBuilder out = new StringBuilder(256);
+    private char[] chars = new char[256];
+    private int count;
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private int[] equals = new int[16];
+    private int[] order = new int[16];
+    private int[] scratch = new int[16];
+}
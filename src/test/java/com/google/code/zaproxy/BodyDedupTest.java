@@ -0,0 +1,97 @@
+package com.google.code.zaproxy;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class BodyDedupTest {
+    @Test
+    public void testRepeatedBodiesAreHardLinked() throws Exception {
+        final ZapSessionFixture fx = new ZapSessionFixture("dedup");
+        final int rows = 20;
+        for (int id = 1; id <= rows; id++) {
+            fx.addRow(id, 1, "GET", "http://www.example.com/app.js?v=" + id, 200, "", "body " + id % 4);
+        }
+        fx.shutdown();
+        final ExportOptions options = fx.options();
+        options.threads = 3;
+        options.dedup = true;
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, options), 0);
+        // and again, over the top of the first one
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, options), 0);
+
+        final File[] shards = new File(fx.spiderDir(), ".bodies").listFiles();
+        int stored = 0;
+        for (final File shard : shards) {
+            stored += shard.list().length;
+        }
+        assertEquals(stored, 4);
+        for (int id = 1; id <= rows; id++) {
+            final File body = bodyOf(fx, id);
+            assertEquals(ZapSessionFixture.read(body), "body " + id % 4);
+            assertTrue(Files.isSameFile(body.toPath(), bodyOf(fx, 1 + (id - 1) % 4).toPath()));
+            if (id > 4) {
+                assertFalse(Files.isSameFile(body.toPath(), bodyOf(fx, 1 + id % 4).toPath()));
+            }
+        }
+    }
+
+    @Test
+    public void testOnlyOneOfManyWritersStoresANewBody() throws Exception {
+        final File dir = new File("target/fixtures/dedup-race");
+        ZapSessionFixture.delete(dir);
+        final BodyDedup dedup = new BodyDedup();
+        final FilesystemCacheSink sink = new FilesystemCacheSink(dir, null, dedup);
+        final byte[] body = "the same body".getBytes(Dump.ENCODING);
+        final ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            final List<Callable<Void>> writes = new ArrayList<Callable<Void>>();
+            for (int n = 0; n < 200; n++) {
+                final String url = "http://www.example.com/race?n=" + n;
+                writes.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        sink.write(new CacheEntry(ZapSessionFixture.fingerprint("GET", url, ""), "GET", url,
+                                200, 1393904644079L, "Content-Type: text/plain".getBytes(Dump.ENCODING), body));
+                        return null;
+                    }
+                });
+            }
+            for (final Future<Void> f : threads.invokeAll(writes)) {
+                f.get();
+            }
+        } finally {
+            threads.shutdown();
+        }
+        assertEquals(dedup.toString(),
+                "Body dedup: 1 distinct bodies (13 bytes) written, 199 repeats linked, 2587 bytes saved");
+    }
+
+    @Test
+    public void testSummaryCountsSavedBytes() {
+        final BodyDedup dedup = new BodyDedup();
+        assertEquals(dedup.key(new byte[0]), "da39a3ee5e6b4b0d3255bfef95601890afd80709");
+        dedup.stored(100);
+        dedup.linked(100);
+        dedup.linked(100);
+        assertEquals(dedup.savedBytes(), 200);
+        assertEquals(dedup.toString(),
+                "Body dedup: 1 distinct bodies (100 bytes) written, 2 repeats linked, 200 bytes saved");
+    }
+
+    private static File bodyOf(ZapSessionFixture fx, int id) {
+        final String fp = ZapSessionFixture.fingerprint("GET", "http://www.example.com/app.js?v=" + id, "");
+        return new File(fx.entryDir(fp), "response_body");
+    }
+}
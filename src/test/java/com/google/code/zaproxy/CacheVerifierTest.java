@@ -0,0 +1,85 @@
+package com.google.code.zaproxy;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class CacheVerifierTest {
+    @Test
+    public void testCleanDumpVerifies() throws Exception {
+        final ZapSessionFixture fx = new ZapSessionFixture("verify-clean");
+        for (int id = 1; id <= 300; id++) {
+            fx.addRow(id, 1, 0 == id % 7 ? "POST" : "GET", "http://www.example.com/v?n=" + id % 250,
+                    200, 0 == id % 7 ? "a=" + id : "", "body " + id);
+        }
+        fx.shutdown();
+        final ExportOptions options = fx.options();
+        options.gzip = true;
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, options), 0);
+
+        final CacheVerifier alone = new CacheVerifier(fx.spiderDir(), null);
+        // the POSTs' bodies are only in the session, which is not the cache's fault
+        assertEquals(alone.run(new ForkJoinPool(4)), 0, alone.problems().toString());
+        assertEquals(alone.problems().size(), 300 / 7, alone.problems().toString());
+        for (final String problem : alone.problems()) {
+            assertTrue(problem.contains("\tPOST "), problem);
+            assertTrue(problem.endsWith(" is unverifiable without the session"), problem);
+        }
+        final CacheVerifier withSession = new CacheVerifier(fx.spiderDir(),
+                CacheVerifier.loadHistory(fx.databaseFilename));
+        assertEquals(withSession.run(new ForkJoinPool(4)), 0, withSession.problems().toString());
+        assertTrue(withSession.toString().startsWith("Verified "), withSession.toString());
+    }
+
+    @Test
+    public void testReportsEachKindOfProblem() throws Exception {
+        final ZapSessionFixture fx = new ZapSessionFixture("verify-broken");
+        for (int id = 1; id <= 5; id++) {
+            fx.addRow(id, 1, "GET", "http://www.example.com/b?n=" + id, 200, "", "body " + id);
+        }
+        fx.shutdown();
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, fx.options()), 0);
+        final String[] fps = new String[6];
+        for (int id = 1; id <= 5; id++) {
+            fps[id] = ZapSessionFixture.fingerprint("GET", "http://www.example.com/b?n=" + id, "");
+        }
+        assertTrue(new File(fx.entryDir(fps[1]), "pickled_meta").delete());
+        // an entry under somebody else's name
+        final File moved = fx.entryDir("99" + fps[2].substring(2));
+        assertTrue(moved.getParentFile().mkdirs());
+        Files.move(fx.entryDir(fps[2]).toPath(), moved.toPath());
+        // and one whose request body changes its fingerprint
+        Files.write(new File(fx.entryDir(fps[3]), "request_body").toPath(), "x=1".getBytes(Dump.ENCODING));
+
+        final CacheVerifier verifier = new CacheVerifier(fx.spiderDir(),
+                CacheVerifier.loadHistory(fx.databaseFilename));
+        assertEquals(verifier.run(new ForkJoinPool(2)), 3);
+        final List<String> problems = verifier.problems();
+        assertEquals(problems.size(), 4, problems.toString());
+        assertTrue(problems.contains(fps[1].substring(0, 2) + "/" + fps[1] + "\tmissing pickled_meta"));
+        assertTrue(problems.contains("99/99" + fps[2].substring(2) + "\tno HISTORY row"));
+        assertTrue(problems.contains("99/99" + fps[2].substring(2) +
+                "\tGET http://www.example.com/b?n=2 is " + fps[2]));
+        assertTrue(problems.contains(fps[3].substring(0, 2) + "/" + fps[3] +
+                "\tGET http://www.example.com/b?n=3 is " +
+                ZapSessionFixture.fingerprint("GET", "http://www.example.com/b?n=3", "x=1")));
+    }
+
+    @Test
+    public void testMetaStrings() {
+        final String ours = "\"url\": \"http://x/\\\"q\\u00e9\", \"status\": 200, \"method\": \"GET\"";
+        assertEquals(CacheVerifier.metaString(ours, "url"), "http://x/\"qé");
+        assertEquals(CacheVerifier.metaString(ours, "method"), "GET");
+        final String scrapy = "{'url': 'http://x/it\\'s', 'status': 200, 'method': 'POST'}";
+        assertEquals(CacheVerifier.metaString(scrapy, "url"), "http://x/it's");
+        assertEquals(CacheVerifier.metaString(scrapy, "method"), "POST");
+        assertNull(CacheVerifier.metaString(scrapy, "timestamp"));
+    }
+}
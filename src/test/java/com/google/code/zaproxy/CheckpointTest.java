@@ -0,0 +1,103 @@
+package com.google.code.zaproxy;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.fail;
+
+public class CheckpointTest {
+    @Test
+    public void testResumeAppendsOnlyNewRows() throws Exception {
+        final ZapSessionFixture fx = new ZapSessionFixture("resume");
+        for (int id = 1; id <= 10; id++) {
+            fx.addRow(id, 1, "GET", "http://www.example.com/r" + id, 200, "", "body " + id);
+        }
+        fx.shutdown();
+        final ExportOptions options = fx.options();
+        options.resume = true;
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, options), 0);
+        final File cpFile = Checkpoint.fileFor(fx.databaseFilename);
+        Checkpoint cp = Checkpoint.load(cpFile);
+        assertNotNull(cp);
+        assertEquals(cp.historyId, 10);
+        assertEquals(cp.tsvLength, fx.tsv().length());
+
+        // a run that died after the checkpoint leaves a torn line behind
+        final FileOutputStream torn = new FileOutputStream(fx.tsv(), true);
+        torn.write("11\t1\tGET\thttp://www.exa".getBytes(Dump.ENCODING));
+        torn.close();
+        for (int id = 11; id <= 15; id++) {
+            fx.addRow(id, 1, "GET", "http://www.example.com/r" + id, 200, "", "body " + id);
+        }
+        fx.shutdown();
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, options), 0);
+        final List<String> lines = Files.readAllLines(fx.tsv().toPath(), Dump.ENCODING);
+        assertEquals(lines.size(), 16);
+        for (int id = 1; id <= 15; id++) {
+            assertEquals(lines.get(id).split("\t")[0], String.valueOf(id));
+        }
+        cp = Checkpoint.load(cpFile);
+        assertEquals(cp.historyId, 15);
+
+        // nothing new is not an error
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, options), 0);
+        assertEquals(Files.readAllLines(fx.tsv().toPath(), Dump.ENCODING).size(), 16);
+    }
+
+    @Test
+    public void testSinceAndSkipComplete() throws Exception {
+        final ZapSessionFixture fx = new ZapSessionFixture("since");
+        for (int id = 1; id <= 6; id++) {
+            fx.addRow(id, 1, "GET", "http://www.example.com/s" + id, 200, "", "body " + id);
+        }
+        fx.shutdown();
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, fx.options()), 0);
+        final File body = new File(fx.entryDir(ZapSessionFixture.fingerprint(
+                "GET", "http://www.example.com/s5", "")), "response_body");
+        Files.write(body.toPath(), "edited".getBytes(Dump.ENCODING));
+
+        final ExportOptions options = fx.options();
+        options.since = 4L;
+        options.skipComplete = true;
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, options), 0);
+        final List<String> lines = Files.readAllLines(fx.tsv().toPath(), Dump.ENCODING);
+        assertEquals(lines.size(), 3);
+        assertEquals(lines.get(1).split("\t")[0], "5");
+        assertEquals(ZapSessionFixture.read(body), "edited");
+    }
+
+    @Test
+    public void testResumeKeepsToTheTsvSetting() throws Exception {
+        final ZapSessionFixture fx = new ZapSessionFixture("resume-no-tsv");
+        for (int id = 1; id <= 4; id++) {
+            fx.addRow(id, 1, "GET", "http://www.example.com/t" + id, 200, "", "body " + id);
+        }
+        fx.shutdown();
+        final ExportOptions options = fx.options();
+        options.resume = true;
+        options.tsv = false;
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, options), 0);
+        final File cpFile = Checkpoint.fileFor(fx.databaseFilename);
+        final Checkpoint cp = Checkpoint.load(cpFile);
+        assertEquals(cp.historyId, 4);
+        assertFalse(cp.tsv);
+
+        options.tsv = true;
+        try {
+            Dump.dumpDatabase(fx.databaseFilename, null, options);
+            fail("Expected a resume with a TSV to refuse a checkpoint without one");
+        } catch (IOException e) {
+            // as it should be
+        }
+        assertFalse(fx.tsv().exists());
+        assertEquals(Checkpoint.load(cpFile).historyId, 4);
+    }
+}
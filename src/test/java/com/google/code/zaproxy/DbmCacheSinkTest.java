@@ -0,0 +1,109 @@
+package com.google.code.zaproxy;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class DbmCacheSinkTest {
+    /**
+     * What Python 3 gives for {@code pickle.dumps(v, 2)}, less the BINPUT memo opcodes.
+     */
+    @Test
+    public void testPicklerMatchesPython() {
+        assertEquals(hex(Pickler.dumps(200)), "80024bc82e");
+        assertEquals(hex(Pickler.dumps(1000)), "80024de8032e");
+        assertEquals(hex(Pickler.dumps(-1)), "80024affffffff2e");
+        assertEquals(hex(Pickler.dumps(70000)), "80024a701101002e");
+        assertEquals(hex(Pickler.dumps(1099511627776L)), "80028a060000000000012e");
+        assertEquals(hex(Pickler.dumps(-1099511627776L)), "80028a060000000000ff2e");
+        assertEquals(hex(Pickler.dumps(1393904644.079956)), "80024741d4c55301051e002e");
+        assertEquals(hex(Pickler.dumps(new byte[] {(byte) 0xFF, 0})),
+                "8002635f636f646563730a656e636f64650a" +
+                "5803000000c3bf00" + "58060000006c6174696e31" + "86522e");
+        assertEquals(hex(Pickler.dumps(Arrays.asList())), "80025d2e");
+    }
+
+    @Test
+    public void testDumpWritesADumbDbm() throws Exception {
+        final ZapSessionFixture fx = new ZapSessionFixture("dbm");
+        for (int id = 1; id <= 12; id++) {
+            fx.addRow(id, 1, "GET", "http://www.example.com/page?n=" + id % 5, 200, "", "body " + id);
+        }
+        fx.shutdown();
+        final ExportOptions options = fx.options();
+        options.threads = 3;
+        options.dbm = true;
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, options), 0);
+
+        final File base = new File(fx.cacheRoot, fx.databaseFilename + ".db");
+        final Map<String, byte[]> db = read(base);
+        assertEquals(db.size(), 2 * 5);
+        for (int n = 0; n < 5; n++) {
+            final String fp = ZapSessionFixture.fingerprint("GET", "http://www.example.com/page?n=" + n, "");
+            final String data = new String(db.get(fp + "_data"), "ISO-8859-1");
+            assertTrue(data.startsWith("\u0080\u0002}("), data);
+            assertTrue(data.endsWith("u."), data);
+            // the later rows win
+            final int last = 10 + n <= 12 ? 10 + n : 5 + n;
+            assertTrue(data.contains("body " + last), data);
+            assertTrue(data.contains("Content-Type"), data);
+            final long millis = 1393904644000L + last + 79;
+            assertEquals(new String(db.get(fp + "_time"), "ISO-8859-1"),
+                    java.math.BigDecimal.valueOf(millis, 3).toPlainString());
+        }
+
+        final long datLength = new File(base.getPath() + ".dat").length();
+        options.skipComplete = true;
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, options), 0);
+        assertEquals(new File(base.getPath() + ".dat").length(), datLength);
+        assertEquals(read(base).size(), 2 * 5);
+    }
+
+    @Test
+    public void testHeadersKeepRepeats() {
+        final Map<Object, Object> headers = DbmCacheSink.headers(
+                "Content-Type: text/html\r\nSet-Cookie: a=1\r\nSet-Cookie:b=2".getBytes(Dump.ENCODING));
+        assertEquals(headers.size(), 2);
+        final List<?> cookies = (List<?>) headers.values().toArray()[1];
+        assertEquals(new String((byte[]) cookies.get(1), Dump.ENCODING), "b=2");
+    }
+
+    private static Map<String, byte[]> read(File base) throws Exception {
+        final Pattern line = Pattern.compile("'([^']*)', \\((\\d+), (\\d+)\\)");
+        final Map<String, byte[]> result = new LinkedHashMap<String, byte[]>();
+        final RandomAccessFile dat = new RandomAccessFile(base.getPath() + ".dat", "r");
+        try {
+            for (final String s : ZapSessionFixture.read(new File(base.getPath() + ".dir")).split("\n")) {
+                final Matcher m = line.matcher(s);
+                assertTrue(m.matches(), s);
+                final long pos = Long.parseLong(m.group(2));
+                assertEquals(pos % 512, 0);
+                final byte[] value = new byte[Integer.parseInt(m.group(3))];
+                dat.seek(pos);
+                dat.readFully(value);
+                result.put(m.group(1), value);
+            }
+        } finally {
+            dat.close();
+        }
+        return result;
+    }
+
+    private static String hex(byte[] bytes) {
+        final StringBuilder sb = new StringBuilder();
+        for (final byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -3,7 +3,14 @@ package com.google.code.zaproxy;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
 
+import java.util.ArrayList;
+import java.util.ListIterator;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
 
 public class DumpTest {
     @Test(dataProvider = "urlPairs")
@@ -111,4 +118,44 @@ public class DumpTest {
         sig.setRequestUrl("https://www.google.com/xjs/_/js/k=xjs.s.en_US.Pk6WM5xCqOI.O/m=c,sb_mob,jp,rcs,ivf,jsa,mbsf,bct,elog,r,hsm,pcc,csi/am=cEYFAg/rt=j/d=1/sv=1/rs=AItRSTPrWBBy_Zt149JrvH_iQSWBlQ023Q");
         assertEquals(sig.toString(), expectedSig);
     }
+
+    @Test
+    public void testUpperEscapeCodesMatchesThePatternVersion() {
+        final String alphabet = "%%%aAbfFgG09/?=&\u00a3";
+        final Random rnd = new Random(1393904644L);
+        for (int n = 0; n < 50000; n++) {
+            final StringBuilder sb = new StringBuilder();
+            for (int i = rnd.nextInt(12); i > 0; i--) {
+                sb.append(alphabet.charAt(rnd.nextInt(alphabet.length())));
+            }
+            final String input = sb.toString();
+            assertEquals(Dump.upperEscapeCodes(input), patternUpperEscapeCodes(input), input);
+        }
+        final String unchanged = "http://www.example.com/a%A3do?k=%2F";
+        assertSame(Dump.upperEscapeCodes(unchanged), unchanged);
+    }
+
+    /**
+     * What upperEscapeCodes used to be, kept as the reference.
+     */
+    private static String patternUpperEscapeCodes(String uri) {
+        final String result;
+        final Matcher ma = Pattern.compile("%[0-9A-Fa-f][0-9A-Fa-f]").matcher(uri);
+        final ArrayList<Integer> starts = new ArrayList<Integer>();
+        while (ma.find()) {
+            starts.add(ma.start(0));
+        }
+        if (! starts.isEmpty()) {
+            StringBuilder sb = new StringBuilder(uri);
+            for (ListIterator<Integer> li = starts.listIterator(starts.size()); li.hasPrevious(); ) {
+                int start = li.previous();
+                final String upr = sb.subSequence(start, start+2).toString().toUpperCase();
+                sb.replace(start, start+2, upr);
+            }
+            result = sb.toString();
+        } else {
+            result = uri;
+        }
+        return result;
+    }
 }
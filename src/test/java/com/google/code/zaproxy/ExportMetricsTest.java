@@ -0,0 +1,86 @@
+package com.google.code.zaproxy;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class ExportMetricsTest {
+    @Test
+    public void testLatencyPercentiles() {
+        final ExportMetrics.Latency latency = new ExportMetrics.Latency();
+        assertEquals(latency.percentile(0.5), 0);
+        for (int i = 0; i < 98; i++) {
+            latency.record(1000000);
+        }
+        latency.record(50000000);
+        latency.record(80000000);
+        final long p50 = latency.percentile(0.50);
+        assertTrue(p50 <= 1000000 && p50 > 1000000 * 7 / 8, String.valueOf(p50));
+        final long p99 = latency.percentile(0.99);
+        assertTrue(p99 <= 50000000 && p99 > 50000000 * 7 / 8, String.valueOf(p99));
+        for (long v = 1; v < 1L << 40; v = v * 3 + 1) {
+            final long edge = ExportMetrics.Latency.lowEdge(ExportMetrics.Latency.bucket(v));
+            assertTrue(edge <= v && v - edge <= v / 8, v + " in " + edge);
+        }
+        assertEquals(ExportMetrics.clock(3 * 3600 + 62), "3:01:02");
+    }
+
+    @Test
+    public void testPipelineCountsRowsAndRecordsEvents() throws Exception {
+        final ZapSessionFixture fx = new ZapSessionFixture("metrics");
+        for (int id = 1; id <= 30; id++) {
+            fx.addRow(id, 0 == id % 3 ? 2 : 1, "GET", "http://www.example.com/m?n=" + id, 200, "", "body " + id);
+        }
+        fx.shutdown();
+        final ExportOptions options = fx.options();
+        options.threads = 2;
+        options.partitions = 2;
+        options.pageRows = 7;
+        final ExportPipeline pipeline = new ExportPipeline(fx.databaseFilename, null, options);
+        final File jfr = new File(fx.workDir, "metrics.jfr");
+        final Recording recording = new Recording();
+        try {
+            recording.enable("zapdump.Page");
+            recording.enable("zapdump.Entry");
+            recording.start();
+            assertEquals(pipeline.run(), 0);
+            recording.stop();
+            recording.dump(jfr.toPath());
+        } finally {
+            recording.close();
+        }
+
+        final ExportMetrics metrics = pipeline.metrics();
+        assertEquals(metrics.rowsRead(), 30);
+        assertEquals(metrics.rowsSkipped(), 10);
+        assertEquals(metrics.entries(), 20);
+        assertTrue(metrics.latency().percentile(0.99) > 0);
+        assertTrue(metrics.progress().startsWith("Progress: 30 of 30 rows (100%), 20 entries, "),
+                metrics.progress());
+
+        int entries = 0;
+        int pageRows = 0;
+        final Set<Long> ids = new HashSet<Long>();
+        for (final RecordedEvent event : RecordingFile.readAllEvents(jfr.toPath())) {
+            final String name = event.getEventType().getName();
+            if ("zapdump.Entry".equals(name)) {
+                entries++;
+                ids.add(event.getLong("historyId"));
+                assertEquals(event.getString("fingerprint").length(), 40);
+            } else if ("zapdump.Page".equals(name)) {
+                pageRows += event.getInt("rows");
+            }
+        }
+        assertEquals(entries, 20);
+        assertEquals(ids.size(), 20);
+        assertEquals(pageRows, 30);
+    }
+}
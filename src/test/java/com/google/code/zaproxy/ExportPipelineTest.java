@@ -0,0 +1,264 @@
+package com.google.code.zaproxy;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class ExportPipelineTest {
+    @Test
+    public void testParallelDumpKeepsTsvOrder() throws Exception {
+        final ZapSessionFixture fx = new ZapSessionFixture("parallel");
+        final int rows = 200;
+        for (int id = 1; id <= rows; id++) {
+            // every fifth row is a spider row, which has no cache entry
+            fx.addRow(id, 0 == id % 5 ? 2 : 1, "GET",
+                    "http://www.example.com/page?n=" + id, 200, "", "body " + id);
+        }
+        fx.shutdown();
+        final ExportOptions options = fx.options();
+        options.threads = 4;
+        options.queueCapacity = 3;
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, options), 0);
+
+        final List<String> lines = Files.readAllLines(fx.tsv().toPath(), Dump.ENCODING);
+        assertEquals(lines.size(), rows + 1);
+        assertTrue(lines.get(0).startsWith("HISTORYID|INTEGER\t"));
+        assertTrue(lines.get(0).endsWith("\tFINGERPRINT|VARCHAR"));
+        for (int id = 1; id <= rows; id++) {
+            final String[] cols = lines.get(id).split("\t", -1);
+            assertEquals(cols[0], String.valueOf(id));
+            final String fp = cols[cols.length - 1];
+            if (0 == id % 5) {
+                assertEquals(fp, "null");
+            } else {
+                final String uri = "http://www.example.com/page?n=" + id;
+                assertEquals(fp, ZapSessionFixture.fingerprint("GET", uri, ""));
+                final File entry = fx.entryDir(fp);
+                assertEquals(ZapSessionFixture.read(new File(entry, "response_body")), "body " + id);
+                assertEquals(ZapSessionFixture.read(new File(entry, "response_headers")),
+                        "Content-Type: text/plain\r\nX-Row: " + id + "\r\n");
+                assertTrue(new File(entry, "meta.json").isFile());
+                assertTrue(new File(entry, "pickled_meta").isFile());
+            }
+        }
+    }
+
+    @Test
+    public void testLaterRowWinsSharedFingerprint() throws Exception {
+        final ZapSessionFixture fx = new ZapSessionFixture("shared");
+        final String uri = "http://www.example.com/poll";
+        for (int id = 1; id <= 50; id++) {
+            fx.addRow(id, 1, "GET", uri, 200, "", "poll " + id);
+        }
+        fx.shutdown();
+        final ExportOptions options = fx.options();
+        options.threads = 8;
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, options), 0);
+        final File entry = fx.entryDir(ZapSessionFixture.fingerprint("GET", uri, ""));
+        assertEquals(ZapSessionFixture.read(new File(entry, "response_body")), "poll 50");
+    }
+
+    @Test
+    public void testWinnerPolicyPicksTheRow() throws Exception {
+        final ZapSessionFixture fx = new ZapSessionFixture("winner");
+        final String uri = "http://www.example.com/poll";
+        final int[] statuses = {500, 503, 200, 404, 200, 500};
+        for (int id = 1; id <= statuses.length; id++) {
+            fx.addRow(id, 1, "GET", uri, statuses[id - 1], "", "poll " + id);
+            fx.addRow(100 + id, 1, "GET", uri + "?n=" + id, 200, "", "other " + id);
+        }
+        fx.shutdown();
+        final File body = new File(fx.entryDir(ZapSessionFixture.fingerprint("GET", uri, "")), "response_body");
+        final String[] policies = {"oldest", "first-2xx", "newest"};
+        final String[] expected = {"poll 1", "poll 3", "poll 6"};
+        for (int p = 0; p < policies.length; p++) {
+            final ExportOptions options = fx.options();
+            options.threads = 4;
+            options.winner = FingerprintTable.Policy.parse(policies[p]);
+            assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, options), 0);
+            assertEquals(ZapSessionFixture.read(body), expected[p], policies[p]);
+            for (int id = 1; id <= statuses.length; id++) {
+                final File other = fx.entryDir(ZapSessionFixture.fingerprint("GET", uri + "?n=" + id, ""));
+                assertEquals(ZapSessionFixture.read(new File(other, "response_body")), "other " + id);
+            }
+        }
+    }
+
+    @Test
+    public void testPartitionedDumpMatchesSerialDump() throws Exception {
+        final ZapSessionFixture fx = new ZapSessionFixture("partitioned");
+        // leave gaps in the ids so the slices are uneven
+        for (int id = 1; id <= 300; id += 1 + id % 3) {
+            fx.addRow(id, 1, "GET", "http://www.example.com/shared?n=" + id % 7, 200, "", "body " + id);
+        }
+        fx.shutdown();
+        final ExportOptions serial = fx.options();
+        serial.threads = 1;
+        serial.partitions = 1;
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, serial), 0);
+        final List<String> expected = Files.readAllLines(fx.tsv().toPath(), Dump.ENCODING);
+        final String lastBody = ZapSessionFixture.read(new File(fx.entryDir(
+                ZapSessionFixture.fingerprint("GET", "http://www.example.com/shared?n=0", "")),
+                "response_body"));
+
+        ZapSessionFixture.delete(fx.cacheRoot);
+        final ExportOptions options = fx.options();
+        options.threads = 4;
+        options.partitions = 5;
+        options.pageRows = 7;
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, options), 0);
+        assertEquals(Files.readAllLines(fx.tsv().toPath(), Dump.ENCODING), expected);
+        assertEquals(ZapSessionFixture.read(new File(fx.entryDir(
+                ZapSessionFixture.fingerprint("GET", "http://www.example.com/shared?n=0", "")),
+                "response_body")), lastBody);
+        assertEquals(ExportPipeline.split(1, 3, 8).length, 3);
+    }
+
+    @Test
+    public void testFiltersArePushedIntoTheQuery() throws Exception {
+        final ZapSessionFixture fx = new ZapSessionFixture("filters");
+        fx.addRow(1, 1, "GET", "http://www.example.com/a", 200, "", "a");
+        fx.addRow(2, 1, "POST", "http://www.example.com/b", 200, "x=1", "b");
+        fx.addRow(3, 1, "GET", "https://www.example.com:8443/c", 404, "", "c");
+        fx.addRow(4, 1, "GET", "http://www.example.com.evil/d", 200, "", "d");
+        fx.addRow(5, 2, "GET", "http://www.example.com/e", 200, "", "e");
+        fx.addRow(6, 1, "GET", "http://other.example.com/?u=http://www.example.com/", 200, "", "f");
+        fx.shutdown();
+        final ExportOptions options = fx.options();
+        options.host = "www.example.com";
+        options.methods = Arrays.asList("GET");
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, options), 0);
+        final List<String> lines = Files.readAllLines(fx.tsv().toPath(), Dump.ENCODING);
+        assertEquals(lines.size(), 4);
+        assertEquals(lines.get(1).split("\t")[0], "1");
+        assertEquals(lines.get(2).split("\t")[0], "3");
+        assertEquals(lines.get(3).split("\t")[0], "5");
+        // the spider row is in the TSV, but its body never left the database
+        assertTrue(lines.get(3).contains("\tNULL\t"));
+        assertTrue(lines.get(3).endsWith("\tnull"));
+        // so a plain -resume afterwards still has the POST row to do
+        assertFalse(Checkpoint.fileFor(fx.databaseFilename).exists());
+
+        ZapSessionFixture.delete(fx.cacheRoot);
+        assertTrue(fx.tsv().delete());
+        options.tsv = false;
+        options.statusCodes = Arrays.asList(200);
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, options), 0);
+        assertFalse(fx.tsv().exists());
+        assertTrue(fx.entryDir(ZapSessionFixture.fingerprint("GET", "http://www.example.com/a", "")).isDirectory());
+        assertEquals(fx.spiderDir().list().length, 1);
+    }
+
+    @Test
+    public void testOnlyUrlMissing() throws Exception {
+        final ZapSessionFixture fx = new ZapSessionFixture("missing");
+        fx.addRow(1, 1, "GET", "http://www.example.com/", 200, "", "hello");
+        fx.shutdown();
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, "http://nope.example.com/", fx.options()), 1);
+        assertFalse(fx.spiderDir().exists());
+    }
+
+    @Test
+    public void testManyUrlsInOnePass() throws Exception {
+        final ZapSessionFixture fx = new ZapSessionFixture("urls");
+        for (int id = 1; id <= 60; id++) {
+            fx.addRow(id, 1, "GET", "http://www.example.com/page?n=" + id % 20, 200, "", "body " + id);
+        }
+        fx.shutdown();
+        final File list = new File(fx.workDir, "urls.txt");
+        Files.write(list.toPath(), ("http://www.example.com/page?n=3\n\n" +
+                "http://www.example.com/page?n=17\r\n" +
+                "http://www.example.com/page?n=3\n" +
+                "http://nope.example.com/\n").getBytes(Dump.ENCODING));
+        final ExportOptions options = fx.options();
+        options.urls = Dump.readUrls(list.getPath());
+        assertEquals(options.urls.size(), 3);
+        options.partitions = 3;
+        options.pageRows = 4;
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, options), 0);
+
+        final List<String> lines = Files.readAllLines(fx.tsv().toPath(), Dump.ENCODING);
+        assertEquals(lines.size(), 1 + 6);
+        final String[] ids = {"3", "17", "23", "37", "43", "57"};
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals(lines.get(1 + i).split("\t")[0], ids[i]);
+        }
+        final File entry = fx.entryDir(ZapSessionFixture.fingerprint("GET", "http://www.example.com/page?n=17", ""));
+        assertEquals(ZapSessionFixture.read(new File(entry, "response_body")), "body 57");
+        assertEquals(fx.spiderDir().list().length, 2);
+        assertFalse(Checkpoint.fileFor(fx.databaseFilename).exists());
+    }
+
+    @Test
+    public void testBigBodyIsMovedIntoPlaceWhole() throws Exception {
+        final ZapSessionFixture fx = new ZapSessionFixture("big-body");
+        final StringBuilder sb = new StringBuilder();
+        while (sb.length() < 300000) {
+            sb.append("line ").append(sb.length()).append('\n');
+        }
+        final String uri = "http://www.example.com/big";
+        fx.addRow(1, 1, "GET", uri, 200, "", "old");
+        fx.addRow(2, 1, "GET", uri, 200, "", sb.toString());
+        fx.shutdown();
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, fx.options()), 0);
+        final File entry = fx.entryDir(ZapSessionFixture.fingerprint("GET", uri, ""));
+        assertEquals(ZapSessionFixture.read(new File(entry, "response_body")), sb.toString());
+        assertEquals(entry.list().length, CacheEntryWriter.ENTRY_FILES.length);
+    }
+
+    @Test
+    public void testRowsBiggerThanTheByteBudgetStillGoThrough() throws Exception {
+        final ZapSessionFixture fx = new ZapSessionFixture("queue-bytes");
+        for (int id = 1; id <= 40; id++) {
+            fx.addRow(id, 1, "POST", "http://www.example.com/q" + id, 200, "request " + id, "a longer body " + id);
+        }
+        fx.shutdown();
+        final ExportOptions options = fx.options();
+        options.threads = 4;
+        options.partitions = 2;
+        // not even one row fits
+        options.queueBytes = 8;
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, options), 0);
+        for (int id = 1; id <= 40; id++) {
+            assertEquals(ZapSessionFixture.read(new File(fx.entryDir(ZapSessionFixture.fingerprint(
+                    "POST", "http://www.example.com/q" + id, "request " + id)), "response_body")),
+                    "a longer body " + id);
+        }
+    }
+
+    @Test
+    public void testLaterSliceWaitsOnceItHoldsTooMuch() throws Exception {
+        final ExportPipeline.Retirement retirement = new ExportPipeline.Retirement(
+                new CacheEntryWriter(null), 2, 2);
+        final Exception[] failure = new Exception[1];
+        final Thread later = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    for (int id = 101; id <= 105; id++) {
+                        retirement.retire(1, "sig" + id, id);
+                    }
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        later.start();
+        retirement.retire(0, "sig1", 1);
+        later.join(500);
+        assertTrue(later.isAlive());
+        retirement.finished(0);
+        later.join(5000);
+        assertFalse(later.isAlive());
+        if (null != failure[0]) {
+            throw failure[0];
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package com.google.code.zaproxy;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class FilesystemCacheSinkTest {
+    @Test
+    public void testOneDirectoryCallPerEntry() throws Exception {
+        final ZapSessionFixture fx = new ZapSessionFixture("shards");
+        fx.shutdown();
+        final FilesystemCacheSink sink = new FilesystemCacheSink(fx.spiderDir());
+        final int entries = 3000;
+        for (int round = 0; round < 2; round++) {
+            for (int i = 0; i < entries; i++) {
+                sink.write(entry("http://www.example.com/page?n=" + i));
+            }
+        }
+        // 3000 fingerprints all but surely cover every shard
+        assertEquals(fx.spiderDir().list().length, 256);
+        // a mkdirs() of each entry would have looked at all of its parents as well
+        assertEquals(sink.directoryCalls(), 256 + 2 * entries);
+
+        final String fp = ZapSessionFixture.fingerprint("GET", "http://www.example.com/page?n=1", "");
+        ZapSessionFixture.delete(fx.spiderDir());
+        sink.write(entry("http://www.example.com/page?n=1"));
+        assertEquals(ZapSessionFixture.read(new File(fx.entryDir(fp), "response_body")), "body");
+        sink.close();
+    }
+
+    @Test
+    public void testEntryCutShortIsNotComplete() throws Exception {
+        final File dir = new File("target/fixtures/cut-short");
+        ZapSessionFixture.delete(dir);
+        final FilesystemCacheSink sink = new FilesystemCacheSink(dir, new Gzip(6));
+        final String url = "http://www.example.com/cut";
+        final String fp = ZapSessionFixture.fingerprint("GET", url, "");
+        sink.write(entry(url));
+        assertTrue(sink.isComplete(fp));
+        final File entryDir = sink.entryDir(fp);
+        // every file was moved into place, with no temp file left behind
+        assertEquals(entryDir.list().length, CacheEntryWriter.ENTRY_FILES.length);
+        // as a crash before the last file would have left it
+        assertTrue(new File(entryDir, "pickled_meta").delete());
+        assertFalse(sink.isComplete(fp));
+        sink.write(entry(url));
+        assertTrue(sink.isComplete(fp));
+        sink.close();
+    }
+
+    private static CacheEntry entry(String url) {
+        final String fp = ZapSessionFixture.fingerprint("GET", url, "");
+        return new CacheEntry(fp, "GET", url, 200, 1393904644079L,
+                "Content-Type: text/plain".getBytes(Dump.ENCODING), "body".getBytes(Dump.ENCODING));
+    }
+}
@@ -0,0 +1,82 @@
+package com.google.code.zaproxy;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class FingerprintCacheTest {
+    @Test
+    public void testLruForgetsTheLeastRecentlyUsed() {
+        // room for four 1-char entries in each of the 16 segments
+        final FingerprintCache.Lru lru = new FingerprintCache.Lru(
+                16 * 4 * (FingerprintCache.Lru.ENTRY_OVERHEAD + 4));
+        // keep everything in one segment so the order is easy to follow
+        final String[] keys = sameSegment(6);
+        for (int i = 0; i < 4; i++) {
+            lru.put(keys[i], "v");
+        }
+        assertEquals(lru.get(keys[0]), "v");
+        lru.put(keys[4], "v");
+        assertNull(lru.get(keys[1]));
+        assertEquals(lru.get(keys[0]), "v");
+        assertEquals(lru.evictions(), 1);
+        assertEquals(lru.hits(), 2);
+        assertEquals(lru.misses(), 1);
+    }
+
+    @Test
+    public void testAgreesWithTheUncachedFingerprint() {
+        final FingerprintCache cache = new FingerprintCache(1 << 20);
+        final String url = "https://www.example.com/search?q=zap&hl=en";
+        for (int n = 0; n < 3; n++) {
+            final String uri = cache.canonicalUrl(url);
+            assertEquals(cache.fingerprint("GET", uri, null), ZapSessionFixture.fingerprint("GET", url, ""));
+            assertEquals(cache.fingerprint("POST", uri, "a=1".getBytes(Dump.ENCODING)),
+                    ZapSessionFixture.fingerprint("POST", url, "a=1"));
+        }
+        assertEquals(cache.canonical.hits(), 2);
+        assertEquals(cache.fingerprints.hits(), 2);
+        assertEquals(cache.fingerprints.misses(), 1);
+    }
+
+    @Test
+    public void testCachedDumpMatchesUncachedDump() throws Exception {
+        final ZapSessionFixture fx = new ZapSessionFixture("url-cache");
+        for (int id = 1; id <= 120; id++) {
+            fx.addRow(id, 1, 0 == id % 4 ? "POST" : "GET",
+                    "http://www.example.com/poll?b=2&a=" + id % 6, 200, 0 == id % 4 ? "x=" + id : "", "body " + id);
+        }
+        fx.shutdown();
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, fx.options()), 0);
+        final List<String> expected = Files.readAllLines(fx.tsv().toPath(), Dump.ENCODING);
+        ZapSessionFixture.delete(fx.cacheRoot);
+
+        final ExportOptions options = fx.options();
+        options.threads = 4;
+        // small enough to evict
+        options.urlCacheBytes = 16 * 3 * FingerprintCache.Lru.ENTRY_OVERHEAD;
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, options), 0);
+        assertEquals(Files.readAllLines(fx.tsv().toPath(), Dump.ENCODING), expected);
+        final String fp = ZapSessionFixture.fingerprint("GET", "http://www.example.com/poll?a=5&b=2", "");
+        assertTrue(new File(fx.entryDir(fp), "pickled_meta").isFile());
+    }
+
+    private static String[] sameSegment(int count) {
+        final String[] result = new String[count];
+        int found = 0;
+        for (char c = 'A'; found < count; c++) {
+            final String key = String.valueOf(c);
+            final int h = key.hashCode();
+            if (0 == ((h ^ (h >>> 16)) & 15)) {
+                result[found++] = key;
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,125 @@
+package com.google.code.zaproxy;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class FingerprintIndexTest {
+    @Test
+    public void testLookupsAgainstAWrittenIndex() throws Exception {
+        final File dir = new File("target/fixtures/fpindex");
+        ZapSessionFixture.delete(dir);
+        assertTrue(dir.mkdirs());
+        final File file = new File(dir, "test.fpindex");
+        final Random random = new Random(23);
+        final FingerprintIndex.Builder builder = new FingerprintIndex.Builder();
+        final List<String> fingerprints = new ArrayList<String>();
+        for (int id = 1; id <= 5000; id++) {
+            final byte[] fp = new byte[Fingerprinter.DIGEST_LENGTH];
+            random.nextBytes(fp);
+            fingerprints.add(Fingerprinter.hex(fp));
+            builder.add(fp, id, 1000L + id, 200 + id % 3, ("http://h" + id % 7 + "/p" + id).getBytes(Dump.ENCODING));
+        }
+        // a second row for an early fingerprint
+        builder.add(fingerprints.get(9), 5001, 7, 404, "http://h3/again");
+        builder.write(file, 5001);
+
+        final FingerprintIndex index = FingerprintIndex.load(file);
+        assertEquals(index.size(), 5001);
+        assertEquals(index.through(), 5001);
+        final List<FingerprintIndex.Entry> ten = index.lookup(fingerprints.get(9));
+        assertEquals(ten.size(), 2);
+        assertEquals(ten.get(0).historyId, 10);
+        assertEquals(ten.get(0).uri, "http://h3/p10");
+        assertEquals(ten.get(0).millis, 1010);
+        assertEquals(ten.get(1).historyId, 5001);
+        assertEquals(ten.get(1).status, 404);
+        for (int i = 0; i < fingerprints.size(); i += 97) {
+            assertEquals(index.lookup(fingerprints.get(i)).get(0).historyId, i + 1);
+        }
+        assertTrue(index.lookup("0000000000000000000000000000000000000000").isEmpty());
+        String previous = "";
+        for (int i = 0; i < index.size(); i++) {
+            final String fp = index.entry(i).fingerprint;
+            assertTrue(previous.compareTo(fp) <= 0, previous + " after " + fp);
+            previous = fp;
+        }
+
+        final List<FingerprintIndex.Entry> h3 = index.grepUri("http://h3/");
+        final List<String> uris = new ArrayList<String>();
+        for (final FingerprintIndex.Entry e : h3) {
+            uris.add(e.uri);
+        }
+        final List<String> sorted = new ArrayList<String>(uris);
+        Collections.sort(sorted);
+        assertEquals(uris, sorted);
+        // ids 3, 10, 17, ... below 5000, and the extra row
+        assertEquals(h3.size(), (4999 - 3) / 7 + 1 + 1);
+        assertEquals(index.grepUri("http://h3/again").size(), 1);
+        int p10 = 0;
+        for (int id = 1; id <= 5000; id++) {
+            if (3 == id % 7 && String.valueOf(id).startsWith("10")) {
+                p10++;
+            }
+        }
+        assertEquals(index.grepUri("http://h3/p10").size(), p10);
+        assertTrue(index.grepUri("http://h9").isEmpty());
+        assertTrue(index.grepUri("zzz").isEmpty());
+    }
+
+    @Test
+    public void testDumpWritesAndResumeCatchesUpTheIndex() throws Exception {
+        final ZapSessionFixture fx = new ZapSessionFixture("fpindex-dump");
+        for (int id = 1; id <= 10; id++) {
+            fx.addRow(id, 0 == id % 5 ? 2 : 1, "GET", "http://www.example.com/i" + id % 4, 200, "", "body " + id);
+        }
+        fx.shutdown();
+        final ExportOptions options = fx.options();
+        options.resume = true;
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, options), 0);
+        final File file = FingerprintIndex.fileFor(fx.databaseFilename);
+        FingerprintIndex index = FingerprintIndex.load(file);
+        assertEquals(index.size(), 8);
+        final List<FingerprintIndex.Entry> i1 = index.lookup(
+                ZapSessionFixture.fingerprint("GET", "http://www.example.com/i1", ""));
+        // 5 is a spider row
+        assertEquals(i1.size(), 2);
+        assertEquals(i1.get(0).historyId, 1);
+        assertEquals(i1.get(1).historyId, 9);
+        assertEquals(i1.get(1).millis, 1393904644009L);
+
+        // dumps of only some of the rows leave the index alone
+        final ExportOptions some = fx.options();
+        some.tsv = false;
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, "http://www.example.com/i3", some), 0);
+        some.methods = Arrays.asList("POST");
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, some), 1);
+        some.methods = null;
+        some.tsv = true;
+        some.since = 7L;
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, some), 0);
+        index = FingerprintIndex.load(file);
+        assertEquals(index.size(), 8);
+        assertEquals(index.through(), 10);
+
+        // as if the index had been lost along with a dump that died
+        assertTrue(file.delete());
+        for (int id = 11; id <= 12; id++) {
+            fx.addRow(id, 1, "GET", "http://www.example.com/i" + id, 200, "", "body " + id);
+        }
+        fx.shutdown();
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, options), 0);
+        index = FingerprintIndex.load(file);
+        assertEquals(index.size(), 10);
+        assertEquals(index.through(), 12);
+        assertEquals(index.grepUri("http://www.example.com/i1").size(), 4);
+    }
+}
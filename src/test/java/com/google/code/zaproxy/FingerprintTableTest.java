@@ -0,0 +1,60 @@
+package com.google.code.zaproxy;
+
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class FingerprintTableTest {
+    @Test
+    public void testGrowsAndFindsEveryKey() {
+        final FingerprintTable table = new FingerprintTable(FingerprintTable.Policy.NEWEST);
+        final int keys = 50000;
+        final byte[][] fps = new byte[keys][];
+        final Random random = new Random(17);
+        for (int i = 0; i < keys; i++) {
+            fps[i] = new byte[Fingerprinter.DIGEST_LENGTH];
+            random.nextBytes(fps[i]);
+            table.offer(fps[i], i + 1, 1000, 200);
+        }
+        assertEquals(table.size(), keys);
+        assertTrue(table.offHeapBytes() >= (long) keys * FingerprintTable.SLOT);
+        for (int i = 0; i < keys; i++) {
+            assertEquals(table.winner(fps[i]), i + 1);
+        }
+        final byte[] absent = new byte[Fingerprinter.DIGEST_LENGTH];
+        random.nextBytes(absent);
+        assertEquals(table.winner(absent), 0);
+        assertEquals(table.winner(Fingerprinter.hex(fps[7])), 8);
+    }
+
+    @Test
+    public void testPolicies() {
+        final byte[] fp = new byte[Fingerprinter.DIGEST_LENGTH];
+        // {HISTORYID, TIMESENTMILLIS, STATUSCODE}, in HISTORYID order as the pre-pass sees them
+        final long[][] rows = {
+                {1, 5000, 500}, {2, 3000, 200}, {3, 9000, 304}, {4, 1000, 204}, {5, 9000, 404},
+        };
+        final long[] expected = {5, 4, 2};
+        final FingerprintTable.Policy[] policies = FingerprintTable.Policy.values();
+        for (int p = 0; p < policies.length; p++) {
+            final FingerprintTable table = new FingerprintTable(policies[p]);
+            for (final long[] row : rows) {
+                table.offer(fp, row[0], row[1], (int) row[2]);
+            }
+            assertEquals(table.size(), 1);
+            assertEquals(table.winner(fp), expected[p], policies[p].toString());
+        }
+
+        final FingerprintTable none2xx = new FingerprintTable(FingerprintTable.Policy.FIRST_2XX);
+        none2xx.offer(fp, 1, 1, 500);
+        none2xx.offer(fp, 2, 1, 404);
+        assertEquals(none2xx.winner(fp), 2);
+
+        assertEquals(FingerprintTable.Policy.parse("first-2xx"), FingerprintTable.Policy.FIRST_2XX);
+        assertNull(FingerprintTable.Policy.parse("latest"));
+    }
+}
@@ -0,0 +1,65 @@
+package com.google.code.zaproxy;
+
+import org.testng.annotations.Test;
+
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+
+public class FingerprinterTest {
+    private static final String ALPHABET = "aZ09/?&=%é日€😀𐀀";
+
+    @Test
+    public void testAgreesWithAFreshDigest() throws Exception {
+        final Random rnd = new Random(20140304L);
+        final Fingerprinter fp = new Fingerprinter();
+        for (int n = 0; n < 2000; n++) {
+            final String method = n % 2 == 0 ? "GET" : "POST";
+            final StringBuilder sb = new StringBuilder("http://example.com/");
+            // long enough now and then to make the scratch buffer grow
+            final int len = rnd.nextInt(n % 100 == 0 ? 3000 : 40);
+            for (int i = 0; i < len; i++) {
+                sb.append(ALPHABET.charAt(rnd.nextInt(ALPHABET.length())));
+            }
+            final String url = sb.toString();
+            final byte[] body = 0 == n % 3 ? null : new byte[rnd.nextInt(64)];
+            if (null != body) {
+                rnd.nextBytes(body);
+            }
+            final MessageDigest sha1 = MessageDigest.getInstance("SHA1");
+            sha1.update(method.getBytes(Dump.ENCODING));
+            sha1.update(url.getBytes(Dump.ENCODING));
+            if (null != body) {
+                sha1.update(body);
+            }
+            final byte[] expected = sha1.digest();
+            assertEquals(fp.digest(method, url, body), expected, url);
+            assertEquals(fp.fingerprint(method, url, body), legacyHex(expected), url);
+        }
+    }
+
+    @Test
+    public void testMatchesSignatureParts() {
+        final String url = "https://www.example.com/café?b=2&a=1";
+        final byte[] body = "q=zap".getBytes(Dump.ENCODING);
+        final Dump.SignatureParts sig = new Dump.SignatureParts();
+        sig.setRequestMethod("POST");
+        sig.setRequestUrl(url);
+        sig.write(body, 0, body.length);
+        assertEquals(Fingerprinter.get().fingerprint("POST",
+                Dump.SignatureParts.canonical(url), body), sig.toString());
+    }
+
+    private static String legacyHex(byte[] digest) {
+        final StringBuilder sb = new StringBuilder();
+        for (final byte b : digest) {
+            final int i = (0xFF & b);
+            if (i <= 0xF) {
+                sb.append('0');
+            }
+            sb.append(Integer.toHexString(i));
+        }
+        return sb.toString();
+    }
+}
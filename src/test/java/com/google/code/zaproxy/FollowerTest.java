@@ -0,0 +1,85 @@
+package com.google.code.zaproxy;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class FollowerTest {
+    @Test
+    public void testFollowAppendsRowsAsTheyArrive() throws Exception {
+        final ZapSessionFixture fx = new ZapSessionFixture("follow");
+        for (int id = 1; id <= 10; id++) {
+            fx.addRow(id, 1, "GET", "http://www.example.com/f" + id, 200, "", "body " + id);
+        }
+        final ExportOptions options = fx.options();
+        options.progressSeconds = 0;
+        options.skipComplete = true;
+        final Follower follower = new Follower(fx.databaseFilename, options);
+        final Exception[] failure = new Exception[1];
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    follower.run();
+                } catch (Exception e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        thread.start();
+        final File cpFile = Checkpoint.fileFor(fx.databaseFilename);
+        try {
+            awaitCheckpoint(cpFile, 10);
+            // ZAP keeps writing while we follow, faster than one batch at a time
+            for (int id = 11; id <= 500; id++) {
+                // and now and then asks for f1 again, whose entry is already complete
+                fx.addRow(id, 0 == id % 10 ? 2 : 1, "GET", "http://www.example.com/f" + (25 == id % 50 ? 1 : id),
+                        200, "", "body " + id);
+            }
+            awaitCheckpoint(cpFile, 500);
+            // the passes leave the index on disk alone until the follower stops
+            assertEquals(FingerprintIndex.load(FingerprintIndex.fileFor(fx.databaseFilename)).through(), 10);
+        } finally {
+            follower.stop();
+            thread.join();
+        }
+        if (null != failure[0]) {
+            throw failure[0];
+        }
+        fx.shutdown();
+
+        final List<String> lines = Files.readAllLines(fx.tsv().toPath(), Dump.ENCODING);
+        assertEquals(lines.size(), 501);
+        for (int id = 1; id <= 500; id++) {
+            assertEquals(lines.get(id).split("\t")[0], String.valueOf(id));
+        }
+        // every tenth of the new rows is a spider row, in the TSV but without an entry,
+        // and the ten repeats of f1 are left alone
+        assertEquals(follower.entries(), 441 - 10);
+        assertTrue(follower.batchIds() > Follower.MIN_BATCH, String.valueOf(follower.batchIds()));
+        assertEquals(ZapSessionFixture.read(new File(fx.entryDir(ZapSessionFixture.fingerprint(
+                "GET", "http://www.example.com/f499", "")), "response_body")), "body 499");
+        assertEquals(Checkpoint.load(cpFile).tsvLength, fx.tsv().length());
+        final FingerprintIndex index = FingerprintIndex.load(FingerprintIndex.fileFor(fx.databaseFilename));
+        assertEquals(index.through(), 500);
+        assertEquals(index.size(), 10 + 441);
+        assertEquals(index.lookup(ZapSessionFixture.fingerprint("GET", "http://www.example.com/f1", "")).size(), 11);
+    }
+
+    private static void awaitCheckpoint(File cpFile, long historyId) throws Exception {
+        final long deadline = System.currentTimeMillis() + 30000;
+        while (true) {
+            final Checkpoint cp = Checkpoint.load(cpFile);
+            if (null != cp && cp.historyId >= historyId) {
+                return;
+            }
+            assertTrue(System.currentTimeMillis() < deadline, "still waiting for HISTORYID " + historyId);
+            Thread.sleep(50);
+        }
+    }
+}
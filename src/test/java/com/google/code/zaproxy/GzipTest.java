@@ -0,0 +1,91 @@
+package com.google.code.zaproxy;
+
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.zip.GZIPInputStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class GzipTest {
+    @Test
+    public void testOneDeflaterMakesManyMembers() throws Exception {
+        final Gzip gzip = new Gzip(9);
+        final byte[] big = new byte[300000];
+        new Random(15).nextBytes(big);
+        final byte[][] samples = {
+                new byte[0], "hello, hello, hello".getBytes(Dump.ENCODING), big, new byte[70000],
+        };
+        for (final byte[] sample : samples) {
+            final byte[] gz = gzip.compress(sample);
+            assertEquals(gz[0], (byte) 0x1f);
+            assertEquals(gz[1], (byte) 0x8b);
+            assertEquals(gunzip(gz), sample);
+        }
+        assertTrue(gzip.compress(samples[3]).length < 1000);
+    }
+
+    @Test
+    public void testGzipDumpGunzipsToThePlainDump() throws Exception {
+        final ZapSessionFixture fx = new ZapSessionFixture("gzip");
+        for (int id = 1; id <= 30; id++) {
+            fx.addRow(id, 1, "GET", "http://www.example.com/page?n=" + id % 12, 200,
+                    "", "body body body " + id);
+        }
+        fx.shutdown();
+        final ExportOptions plain = fx.options();
+        plain.threads = 3;
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, plain), 0);
+        final Map<String, byte[]> expected = readTree(fx.cacheRoot, false);
+
+        final ExportOptions gzipped = fx.options();
+        gzipped.threads = 3;
+        gzipped.gzip = true;
+        gzipped.gzipLevel = 1;
+        gzipped.cacheRoot = new File(fx.workDir, "gzipped");
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, gzipped), 0);
+        final Map<String, byte[]> actual = readTree(gzipped.cacheRoot, true);
+        assertEquals(actual.keySet(), expected.keySet());
+        for (final String name : expected.keySet()) {
+            assertEquals(actual.get(name), expected.get(name), name);
+        }
+    }
+
+    private static byte[] gunzip(byte[] gz) throws IOException {
+        return readFully(new GZIPInputStream(new ByteArrayInputStream(gz)));
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            final byte[] buf = new byte[8192];
+            int n;
+            while (-1 != (n = in.read(buf))) {
+                out.write(buf, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static Map<String, byte[]> readTree(final File root, final boolean gunzip) throws IOException {
+        final Map<String, byte[]> result = new TreeMap<String, byte[]>();
+        Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                final String name = root.toPath().relativize(file).toString().replace(File.separatorChar, '/');
+                final InputStream in = new FileInputStream(file.toFile());
+                result.put(name, readFully(gunzip ? new GZIPInputStream(in) : in));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return result;
+    }
+}
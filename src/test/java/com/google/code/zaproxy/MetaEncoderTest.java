@@ -0,0 +1,46 @@
+package com.google.code.zaproxy;
+
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertEquals;
+
+public class MetaEncoderTest {
+    /**
+     * The opcodes from the pickletools listing Scrapy's own pickled_meta gives.
+     */
+    @Test
+    public void testPickleMatchesScrapys() {
+        final MetaEncoder meta = MetaEncoder.get().encode("GET", "facebook://108215512553828", 404, 1393904644080L);
+        final long bits = Double.doubleToLongBits(1393904644.080);
+        assertEquals(hex(meta.pickleBytes()),
+                "8002" + "7d" + "7101" + "28" +
+                "5503" + hex("url") + "7102" + "551a" + hex("facebook://108215512553828") + "7103" +
+                "5506" + hex("status") + "7104" + "4d9401" +
+                "5506" + hex("method") + "7105" + "5503" + hex("GET") + "7106" +
+                "5509" + hex("timestamp") + "7107" + "47" + String.format("%016x", bits) +
+                "550c" + hex("response_url") + "7108" + "6803" +
+                "75" + "2e");
+    }
+
+    @Test
+    public void testJsonEscapes() {
+        final MetaEncoder meta = MetaEncoder.get().encode("GET", "http://x/\"a\\b\"/é", 200, 1393904644079L);
+        assertEquals(new String(meta.jsonBytes(), Dump.ENCODING),
+                "\"url\": \"http://x/\\\"a\\\\b\\\"/é\",\"status\": 200,\"method\": \"GET\"," +
+                "\"timestamp\": 1393904644.079,\"response_url\": \"http://x/\\\"a\\\\b\\\"/é\"");
+        // a non-ASCII url goes into the pickle as unicode
+        assertEquals(meta.pickleBytes()[13], (byte) 'X');
+    }
+
+    private static String hex(String ascii) {
+        return hex(ascii.getBytes(Dump.ENCODING));
+    }
+
+    private static String hex(byte[] bytes) {
+        final StringBuilder sb = new StringBuilder();
+        for (final byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
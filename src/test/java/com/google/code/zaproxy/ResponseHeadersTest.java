@@ -0,0 +1,63 @@
+package com.google.code.zaproxy;
+
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+
+public class ResponseHeadersTest {
+    private static final String ALPHABET = "aZ09:; \r\n\té日€😀𐀀";
+
+    @Test
+    public void testStripsEveryStatusLine() {
+        final ResponseHeaders headers = new ResponseHeaders();
+        for (final String status : new String[] {
+                "HTTP/1.0 200 OK", "HTTP/1.1 404 Not Found", "HTTP/2 200", "HTTP/2.0 301 Moved", }) {
+            assertEquals(text(headers.split(status + "\r\nContent-Type: text/plain\r\nX-Row: 1\r\n", null)),
+                    "Content-Type: text/plain\r\nX-Row: 1", status);
+        }
+        // not a status line at all
+        assertEquals(text(headers.split("HTTP/x: y\r\n", null)), "HTTP/x: y");
+        assertEquals(text(headers.split("Content-Type: text/plain", null)), "Content-Type: text/plain");
+        assertEquals(text(headers.split("HTTP/1.1 200 OK\r\n", null)), "");
+        assertEquals(text(headers.split("HTTP/1.1 200 OK", null)), "");
+        assertEquals(text(headers.split("", null)), "");
+    }
+
+    @Test
+    public void testEscapesTheWholeFieldForTheTsv() {
+        final StringBuilder tsv = new StringBuilder("1\t");
+        final byte[] bytes = new ResponseHeaders().split("HTTP/1.1 200 OK\r\nA: b\r\n\r\n", tsv);
+        assertEquals(tsv.toString(), "1\tHTTP/1.1 200 OK\\r\\nA: b\\r\\n\\r\\n");
+        assertEquals(text(bytes), "A: b\r\n");
+    }
+
+    @Test
+    public void testAgreesWithStringGetBytes() {
+        final Random rnd = new Random(20140304L);
+        final ResponseHeaders headers = new ResponseHeaders();
+        for (int n = 0; n < 2000; n++) {
+            final StringBuilder sb = new StringBuilder("HTTP/1.1 200 OK\r\n");
+            // long enough now and then to make the scratch buffer grow
+            final int len = rnd.nextInt(n % 100 == 0 ? 5000 : 60);
+            for (int i = 0; i < len; i++) {
+                sb.append(ALPHABET.charAt(rnd.nextInt(ALPHABET.length())));
+            }
+            if (0 == n % 7) {
+                // a lone surrogate
+                sb.append('\uD800');
+            }
+            sb.append("\r\n");
+            final String resHeader = sb.toString();
+            final String expected = resHeader.substring("HTTP/1.1 200 OK\r\n".length(), resHeader.length() - 2);
+            final StringBuilder tsv = new StringBuilder();
+            assertEquals(headers.split(resHeader, tsv), expected.getBytes(Dump.ENCODING), resHeader);
+            assertEquals(tsv.toString(), resHeader.replace("\r", "\\r").replace("\n", "\\n"));
+        }
+    }
+
+    private static String text(byte[] bytes) {
+        return new String(bytes, Dump.ENCODING);
+    }
+}
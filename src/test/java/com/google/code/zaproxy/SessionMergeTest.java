@@ -0,0 +1,60 @@
+package com.google.code.zaproxy;
+
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+public class SessionMergeTest {
+    @Test
+    public void testNewestRowOfAnySessionWinsOnce() throws Exception {
+        final ZapSessionFixture a = new ZapSessionFixture("merge-a");
+        for (int id = 1; id <= 20; id++) {
+            a.addRow(id, 0 == id % 4 ? 2 : 1, "GET", "http://www.example.com/m?n=" + id, 200, "", "a " + id);
+        }
+        a.shutdown();
+        final ZapSessionFixture b = new ZapSessionFixture("merge-b");
+        // sent later than all of a's rows, so these win the ten URLs they share
+        for (int id = 101; id <= 115; id++) {
+            b.addRow(id, 1, "GET", "http://www.example.com/m?n=" + (id <= 110 ? id - 100 : id), 200, "", "b " + id);
+        }
+        b.shutdown();
+
+        final ExportOptions options = a.options();
+        options.spider = new File(a.workDir, "merged").getPath();
+        options.threads = 2;
+        final SessionMerge merge = new SessionMerge(Arrays.asList(a.databaseFilename, b.databaseFilename), options);
+        assertEquals(merge.run(), 0);
+        // a's 15 capture rows and b's 15 rows share eight fingerprints (4 and 8 are spider rows in a)
+        assertEquals(merge.entries(), 22);
+
+        final File spiderDir = new File(options.cacheRoot, options.spider);
+        for (int n : new int[] { 3, 10 }) {
+            assertEquals(body(spiderDir, "http://www.example.com/m?n=" + n), "b " + (100 + n));
+        }
+        assertEquals(body(spiderDir, "http://www.example.com/m?n=11"), "a 11");
+        assertEquals(body(spiderDir, "http://www.example.com/m?n=113"), "b 113");
+
+        final File tsv = new File(options.spider + ".tsv");
+        final List<String> lines = Files.readAllLines(tsv.toPath(), Dump.ENCODING);
+        assertEquals(lines.size(), 1 + 20 + 15);
+        assertTrue(lines.get(0).endsWith("\tFINGERPRINT|VARCHAR\tSOURCE|VARCHAR"), lines.get(0));
+        assertTrue(lines.get(1).startsWith("1\t"), lines.get(1));
+        assertTrue(lines.get(1).endsWith("\t" + a.databaseFilename), lines.get(1));
+        assertTrue(lines.get(21).startsWith("101\t"), lines.get(21));
+        assertTrue(lines.get(35).endsWith("\t" + b.databaseFilename), lines.get(35));
+        assertFalse(new File(options.spider + ".tsv.0").exists());
+        assertFalse(Checkpoint.fileFor(a.databaseFilename).exists());
+    }
+
+    private static String body(File spiderDir, String uri) throws Exception {
+        final String fp = ZapSessionFixture.fingerprint("GET", uri, "");
+        return ZapSessionFixture.read(new File(new File(new File(spiderDir, fp.substring(0, 2)), fp), "response_body"));
+    }
+}
@@ -0,0 +1,118 @@
+package com.google.code.zaproxy;
+
+import org.hsqldb.DatabaseManager;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class SessionOpenerTest {
+    @Test
+    public void testReadOnlyLeavesTheSessionAlone() throws Exception {
+        final ZapSessionFixture fx = new ZapSessionFixture("readonly");
+        for (int id = 1; id <= 20; id++) {
+            fx.addRow(id, 1, "GET", "http://www.example.com/ro" + id, 200, "", "body " + id);
+        }
+        fx.shutdown();
+        final Map<String, Long> before = sessionFiles(fx);
+        // a read-write open would rewrite them within the second
+        Thread.sleep(1100);
+        final ExportOptions options = fx.options();
+        // which needs a temporary table, and so a session that can hold one
+        options.urls = new HashSet<String>(Arrays.asList("http://www.example.com/ro3", "http://www.example.com/ro9"));
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, options), 0);
+        assertEquals(sessionFiles(fx), before);
+        assertFalse(new File(fx.databaseFilename + ".lck").exists());
+        assertEquals(ZapSessionFixture.read(new File(fx.entryDir(ZapSessionFixture.fingerprint(
+                "GET", "http://www.example.com/ro3", "")), "response_body")), "body 3");
+    }
+
+    @Test
+    public void testSnapshotIsReadAndRemoved() throws Exception {
+        final ZapSessionFixture fx = new ZapSessionFixture("snapshot");
+        for (int id = 1; id <= 20; id++) {
+            fx.addRow(id, 1, "GET", "http://www.example.com/s" + id, 200, "", "body " + id);
+        }
+        fx.shutdown();
+        final ExportOptions options = fx.options();
+        options.snapshotDir = new File(fx.workDir, "scratch");
+        assertTrue(options.snapshotDir.mkdirs());
+        final SessionOpener opener = new SessionOpener(fx.databaseFilename, options);
+        opener.connect().close();
+        final String[] copies = options.snapshotDir.list();
+        assertEquals(copies.length, 1);
+        assertTrue(new File(new File(options.snapshotDir, copies[0]), "test.session.script").exists());
+        assertTrue(opener.toString().contains(" (after copying "), opener.toString());
+        opener.close();
+        assertEquals(options.snapshotDir.list().length, 0);
+
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, options), 0);
+        assertEquals(ZapSessionFixture.read(new File(fx.entryDir(ZapSessionFixture.fingerprint(
+                "GET", "http://www.example.com/s7", "")), "response_body")), "body 7");
+        assertEquals(options.snapshotDir.list().length, 0);
+    }
+
+    @Test
+    public void testEverySliceLetsGoOfTheSession() throws Exception {
+        final ZapSessionFixture fx = new ZapSessionFixture("slices-close");
+        for (int id = 1; id <= 30; id++) {
+            fx.addRow(id, 1, "GET", "http://www.example.com/sc" + id, 200, "", "body " + id);
+        }
+        fx.shutdown();
+        final ExportOptions options = fx.options();
+        options.tsv = false;
+        options.partitions = 3;
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, options), 0);
+        for (final Object uri : DatabaseManager.getDatabaseURIs()) {
+            assertFalse(String.valueOf(uri).contains("slices-close"), String.valueOf(uri));
+        }
+    }
+
+    @Test
+    public void testMissingSessionIsNotCreated() throws Exception {
+        final ZapSessionFixture fx = new ZapSessionFixture("no-session");
+        final String nowhere = new File(fx.workDir, "nowhere.session").getPath();
+        try {
+            Dump.dumpDatabase(nowhere, null, fx.options());
+            fail("Expected no session at " + nowhere);
+        } catch (SQLException e) {
+            // as it should be
+        }
+        assertFalse(new File(nowhere + ".script").exists());
+        assertFalse(new File(nowhere + ".properties").exists());
+    }
+
+    @Test
+    public void testUrlSizesTheCache() {
+        final long quarter = Runtime.getRuntime().maxMemory() / 4;
+        final String small = SessionOpener.url("x", 1 << 20, false);
+        assertTrue(small.startsWith("jdbc:hsqldb:file:x;ifexists=true;shutdown=true;readonly=true;"), small);
+        assertTrue(small.contains(";hsqldb.cache_size=8192;"), small);
+        assertTrue(small.contains(";hsqldb.nio_max_size=256"), small);
+        final String big = SessionOpener.url("x", 20L << 30, true);
+        assertFalse(big.contains("readonly"), big);
+        assertTrue(big.contains(";hsqldb.cache_size=" + (quarter >> 10) + ";"), big);
+        assertTrue(big.contains(";hsqldb.nio_max_size=" + ((20 << 10) + 64)), big);
+        assertTrue(SessionOpener.peakRss() > 0);
+    }
+
+    private static Map<String, Long> sessionFiles(ZapSessionFixture fx) {
+        final Map<String, Long> files = new HashMap<String, Long>();
+        for (final String suffix : SessionOpener.SESSION_FILES) {
+            final File f = new File(fx.databaseFilename + suffix);
+            if (f.exists()) {
+                files.put(f.getName(), f.lastModified() ^ (f.length() << 40));
+            }
+        }
+        return files;
+    }
+}
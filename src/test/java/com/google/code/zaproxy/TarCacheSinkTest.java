@@ -0,0 +1,149 @@
+package com.google.code.zaproxy;
+
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+public class TarCacheSinkTest {
+    @Test
+    public void testArchiveUnpacksToTheFilesystemLayout() throws Exception {
+        final ZapSessionFixture fx = new ZapSessionFixture("tar");
+        for (int id = 1; id <= 40; id++) {
+            // repeats, so the archive has entries that later ones replace
+            fx.addRow(id, 1, "GET", "http://www.example.com/page?n=" + id % 15, 200, "", "body " + id);
+        }
+        fx.shutdown();
+        final ExportOptions plain = fx.options();
+        plain.threads = 3;
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, plain), 0);
+        final Map<String, String> expected = readTree(fx.cacheRoot);
+        assertEquals(expected.size(), 15 * CacheEntryWriter.ENTRY_FILES.length);
+
+        final ExportOptions archived = fx.options();
+        archived.threads = 3;
+        archived.archive = new File(fx.workDir, "cache.tar");
+        archived.cacheRoot = new File(fx.workDir, "unused");
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, archived), 0);
+        assertEquals(readTar(archived.archive), expected);
+        assertEquals(archived.archive.length() % 512, 0);
+    }
+
+    @Test
+    public void testDedupLinksRepeatedBodies() throws Exception {
+        final ZapSessionFixture fx = new ZapSessionFixture("tar-dedup");
+        for (int id = 1; id <= 40; id++) {
+            // later rows replace members that earlier ones were linked to
+            fx.addRow(id, 1, "GET", "http://www.example.com/page?n=" + id % 15, 200, "", "body " + id % 4);
+        }
+        fx.shutdown();
+        final ExportOptions plain = fx.options();
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, plain), 0);
+        final Map<String, String> expected = readTree(fx.cacheRoot);
+
+        final ExportOptions archived = fx.options();
+        archived.threads = 3;
+        archived.dedup = true;
+        archived.archive = new File(fx.workDir, "cache.tar");
+        assertEquals(Dump.dumpDatabase(fx.databaseFilename, null, archived), 0);
+        assertEquals(readTar(archived.archive), expected);
+    }
+
+    @Test
+    public void testLongNamesGoThroughPax() {
+        final String dir = "a/" + new String(new char[150]).replace('\0', 'b') + "/";
+        assertEquals(TarCacheSink.ustarName("x/y"), new String[] {"", "x/y"});
+        assertEquals(TarCacheSink.ustarName(dir + "c/d"),
+                new String[] {dir.substring(0, dir.length() - 1), "c/d"});
+        assertNull(TarCacheSink.ustarName(dir + dir + "c"));
+        final byte[] record = TarCacheSink.paxRecord("path", new byte[90]);
+        assertEquals(new String(record, 0, 4, Dump.ENCODING), record.length + " p");
+        assertEquals(TarCacheSink.spiderPath("/tmp/./x/../y.session"), "tmp/x/y.session/");
+    }
+
+    /**
+     * The last entry with a name wins, as it does for tar itself.
+     */
+    private static Map<String, String> readTar(File tar) throws IOException {
+        final Map<String, String> result = new TreeMap<String, String>();
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(tar)));
+        try {
+            final byte[] header = new byte[512];
+            String paxPath = null;
+            String paxLink = null;
+            while (true) {
+                in.readFully(header);
+                if (Arrays.equals(header, new byte[512])) {
+                    break;
+                }
+                final int size = Integer.parseInt(field(header, 124, 12).trim(), 8);
+                final byte[] content = new byte[size];
+                in.readFully(content);
+                in.readFully(new byte[(512 - size % 512) % 512]);
+                final char type = (char) header[156];
+                if ('x' == type) {
+                    final String records = new String(content, Dump.ENCODING);
+                    for (int at = 0; at < records.length(); ) {
+                        final int space = records.indexOf(' ', at);
+                        final int end = at + Integer.parseInt(records.substring(at, space));
+                        final String record = records.substring(space + 1, end - 1);
+                        final int eq = record.indexOf('=');
+                        if ("path".equals(record.substring(0, eq))) {
+                            paxPath = record.substring(eq + 1);
+                        } else if ("linkpath".equals(record.substring(0, eq))) {
+                            paxLink = record.substring(eq + 1);
+                        }
+                        at = end;
+                    }
+                    continue;
+                }
+                final String prefix = field(header, 345, 155);
+                String name = (prefix.isEmpty() ? "" : prefix + "/") + field(header, 0, 100);
+                if (null != paxPath) {
+                    name = paxPath;
+                    paxPath = null;
+                }
+                if ('1' == type) {
+                    final String link = null == paxLink ? field(header, 157, 100) : paxLink;
+                    paxLink = null;
+                    assertTrue(result.containsKey(link), link);
+                    result.put(name, result.get(link));
+                    continue;
+                }
+                result.put(name, new String(content, Dump.ENCODING));
+            }
+        } finally {
+            in.close();
+        }
+        return result;
+    }
+
+    private static String field(byte[] header, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && 0 != header[end]) {
+            end++;
+        }
+        return new String(header, offset, end - offset, Dump.ENCODING);
+    }
+
+    private static Map<String, String> readTree(final File root) throws IOException {
+        final Map<String, String> result = new TreeMap<String, String>();
+        Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                final String name = root.toPath().relativize(file).toString().replace(File.separatorChar, '/');
+                result.put(name, ZapSessionFixture.read(file.toFile()));
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return result;
+    }
+}
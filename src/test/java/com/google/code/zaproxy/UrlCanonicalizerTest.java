@@ -0,0 +1,77 @@
+package com.google.code.zaproxy;
+
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.fail;
+
+public class UrlCanonicalizerTest {
+    private static final String[] SCHEMES = {"http://", "https://", "HTTP://", "ftp://", ""};
+    private static final String[] AUTHORITIES = {
+            "www.example.com", "WWW.Example.COM", "user:pass@www.example.com",
+            "www.example.com:81", "www.example.com:080", "www.example.com:", "10.0.0.1",
+            "10.0.0.256", "-bad.example.com", "under_score.example.com", "a@b@c",
+            "[::1]:8080", "localhost", "www.example.123", "us%2cer@host",
+    };
+    private static final String ALPHABET = "aZ09-._~!$&'()*+,;=:@/?%2cCfF #[]{}|\\^`\"<>\t£€😀";
+
+    @Test
+    public void testAgreesWithTheUriRoundTrip() throws Exception {
+        final Random rnd = new Random(20140304L);
+        int fast = 0;
+        for (int n = 0; n < 20000; n++) {
+            final StringBuilder sb = new StringBuilder();
+            sb.append(SCHEMES[rnd.nextInt(SCHEMES.length)]);
+            sb.append(AUTHORITIES[rnd.nextInt(AUTHORITIES.length)]);
+            final int tail = rnd.nextInt(24);
+            for (int i = 0; i < tail; i++) {
+                final int r = rnd.nextInt(10);
+                if (r == 0) {
+                    sb.append('&');
+                } else if (r == 1) {
+                    sb.append('=');
+                } else if (r == 2) {
+                    sb.append('%').append("0123456789abcdefABCDEF".charAt(rnd.nextInt(22)))
+                            .append("0123456789abcdef".charAt(rnd.nextInt(16)));
+                } else {
+                    sb.append(ALPHABET.charAt(rnd.nextInt(ALPHABET.length())));
+                }
+            }
+            if (rnd.nextInt(5) == 0) {
+                sb.insert(rnd.nextInt(sb.length() + 1), "?");
+            }
+            final String input = sb.toString();
+            final String actual = UrlCanonicalizer.get().canonicalize(input);
+            if (null == actual) {
+                continue;
+            }
+            fast++;
+            final String expected;
+            try {
+                expected = Dump.canonicalUrlViaUri(input);
+            } catch (Exception e) {
+                fail("The fast path accepted <" + input + "> but the URI way threw " + e);
+                return;
+            }
+            assertEquals(actual, expected, input);
+        }
+        // make sure the fast path isn't just saying no to everything
+        if (fast < 500) {
+            fail("Only " + fast + " inputs took the fast path");
+        }
+    }
+
+    @Test
+    public void testDeclinesWhatItCannotVouchFor() throws Exception {
+        assertNull(UrlCanonicalizer.get().canonicalize("http://www.example.com/a#frag"));
+        assertNull(UrlCanonicalizer.get().canonicalize(" http://www.example.com/"));
+        assertNull(UrlCanonicalizer.get().canonicalize("http://[::1]/"));
+        assertNotNull(UrlCanonicalizer.get().canonicalize("http://www.example.com/a/.well-known"));
+        assertEquals(Dump.canonicalUrl("http://www.example.com/a/./b?&&b=1&&"),
+                "http://www.example.com/a/./b?=&b=1");
+    }
+}
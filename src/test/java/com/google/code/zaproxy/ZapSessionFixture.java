@@ -0,0 +1,143 @@
+package com.google.code.zaproxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static java.lang.String.format;
+
+/**
+ * A throwaway HSQLDB file database with a HISTORY table shaped like ZAP's.
+ */
+class ZapSessionFixture
+{
+    static final String HISTORY_DDL =
+            "CREATE CACHED TABLE HISTORY (" +
+            " HISTORYID INTEGER PRIMARY KEY," +
+            " SESSIONID BIGINT NOT NULL," +
+            " HISTTYPE INTEGER DEFAULT 1," +
+            " METHOD VARCHAR(1024) DEFAULT ''," +
+            " URI VARCHAR(1048576) DEFAULT ''," +
+            " STATUSCODE INTEGER," +
+            " TIMESENTMILLIS BIGINT DEFAULT 0," +
+            " TIMEELAPSEDMILLIS INTEGER DEFAULT 0," +
+            " REQHEADER VARCHAR(1048576) DEFAULT ''," +
+            " REQBODY VARBINARY(16777216) DEFAULT ''," +
+            " RESHEADER VARCHAR(1048576) DEFAULT ''," +
+            " RESBODY VARBINARY(16777216) DEFAULT ''," +
+            " TAG VARCHAR(32768) DEFAULT ''," +
+            " NOTE VARCHAR(1048576) DEFAULT '')";
+
+    ZapSessionFixture(String name) throws IOException, SQLException {
+        workDir = new File("target/fixtures/" + name);
+        delete(workDir);
+        if (! workDir.mkdirs()) {
+            throw new IOException(format("Unable to create %s", workDir));
+        }
+        databaseFilename = new File(workDir, "test.session").getPath();
+        cacheRoot = new File(workDir, "httpcache");
+        final Statement st = connection().createStatement();
+        st.execute(HISTORY_DDL);
+        st.close();
+    }
+
+    void addRow(int id, int histType, String method, String uri, int status,
+                String requestBody, String responseBody) throws SQLException {
+        final PreparedStatement st = connection().prepareStatement(
+                "INSERT INTO HISTORY (HISTORYID, SESSIONID, HISTTYPE, METHOD, URI, STATUSCODE," +
+                " TIMESENTMILLIS, TIMEELAPSEDMILLIS, REQHEADER, REQBODY, RESHEADER, RESBODY)" +
+                " VALUES (?, 1, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+        st.setInt(1, id);
+        st.setInt(2, histType);
+        st.setString(3, method);
+        st.setString(4, uri);
+        st.setInt(5, status);
+        st.setLong(6, 1393904644000L + id);
+        st.setInt(7, 79);
+        st.setString(8, format("%s %s HTTP/1.1\r\nHost: example.com\r\n\r\n", method, uri));
+        st.setBytes(9, requestBody.getBytes(Dump.ENCODING));
+        st.setString(10, format("HTTP/1.1 %d OK\r\nContent-Type: text/plain\r\nX-Row: %d\r\n\r\n", status, id));
+        st.setBytes(11, responseBody.getBytes(Dump.ENCODING));
+        st.executeUpdate();
+        st.close();
+    }
+
+    /**
+     * Lets go of the database so the code under test gets a clean open.
+     */
+    void shutdown() throws SQLException {
+        final Statement st = connection().createStatement();
+        st.execute("SHUTDOWN");
+        st.close();
+        conn.close();
+        conn = null;
+    }
+
+    private Connection connection() throws SQLException {
+        if (null == conn) {
+            conn = DriverManager.getConnection(format("jdbc:hsqldb:%s", databaseFilename));
+        }
+        return conn;
+    }
+
+    ExportOptions options() {
+        final ExportOptions options = new ExportOptions();
+        options.cacheRoot = cacheRoot;
+        return options;
+    }
+
+    File spiderDir() {
+        return new File(cacheRoot, databaseFilename);
+    }
+
+    File entryDir(String fingerprint) {
+        return new File(new File(spiderDir(), fingerprint.substring(0, 2)), fingerprint);
+    }
+
+    File tsv() {
+        return new File(databaseFilename + ".tsv");
+    }
+
+    static String fingerprint(String method, String uri, String requestBody) {
+        final Dump.SignatureParts sig = new Dump.SignatureParts();
+        sig.setRequestMethod(method);
+        sig.setRequestUrl(uri);
+        final byte[] body = requestBody.getBytes(Dump.ENCODING);
+        sig.write(body, 0, body.length);
+        return sig.toString();
+    }
+
+    static String read(File f) throws IOException {
+        return new String(Files.readAllBytes(f.toPath()), Dump.ENCODING);
+    }
+
+    static void delete(File dir) throws IOException {
+        if (! dir.exists()) {
+            return;
+        }
+        Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    final File workDir;
+    final String databaseFilename;
+    final File cacheRoot;
+    private Connection conn;
+}